@@ -0,0 +1,71 @@
+package apps.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import util.game.GameRepository;
+import util.game.LocalGameRepository;
+import util.gdl.grammar.Gdl;
+import util.propnet.architecture.PropNet;
+import util.propnet.factory.OptimizingPropNetFactory;
+
+/**
+ * This program compares the wall-clock time taken to build propnets with the
+ * OptimizingPropNetFactory serially and with its parallel build mode, on the
+ * games in the local game repository.
+ *
+ * Usage: PropNetBuildBenchmark [parallelism [repetitions [game ...]]]
+ *
+ * By default it uses one thread per available processor, three timed builds
+ * of each kind per game (after one untimed warm-up build of each), and every
+ * game in the repository. Games that the factory cannot handle are reported
+ * and skipped. As with LoadPropnet, large games may need "-Xss20m".
+ */
+public class PropNetBuildBenchmark {
+    public static void main(String[] args) {
+        int parallelism = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        int repetitions = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+
+        GameRepository theRepository = new LocalGameRepository();
+        List<String> theKeys;
+        if (args.length > 2) {
+            theKeys = Arrays.asList(args).subList(2, args.length);
+        } else {
+            theKeys = new ArrayList<String>(theRepository.getGameKeys());
+            Collections.sort(theKeys);
+        }
+
+        System.out.println("Parallelism: " + parallelism + ", repetitions: " + repetitions);
+        System.out.println(String.format("%-30s %10s %10s %8s %12s", "game", "serial ms", "parallel ms", "speedup", "components"));
+        for (String theKey : theKeys) {
+            List<Gdl> description = theRepository.getGame(theKey).getRules();
+            try {
+                // Warm up both paths, and check that they agree.
+                PropNet serialNet = OptimizingPropNetFactory.create(description);
+                PropNet parallelNet = OptimizingPropNetFactory.createInParallel(description, parallelism);
+                String theSizes = serialNet.getSize() + (serialNet.getSize() == parallelNet.getSize() ? "" : "/" + parallelNet.getSize());
+
+                long serialTime = 0, parallelTime = 0;
+                for (int i = 0; i < repetitions; i++) {
+                    long startTime = System.currentTimeMillis();
+                    OptimizingPropNetFactory.create(description);
+                    serialTime += System.currentTimeMillis() - startTime;
+
+                    startTime = System.currentTimeMillis();
+                    OptimizingPropNetFactory.createInParallel(description, parallelism);
+                    parallelTime += System.currentTimeMillis() - startTime;
+                }
+                serialTime /= repetitions;
+                parallelTime /= repetitions;
+                double speedup = (double) serialTime / Math.max(parallelTime, 1);
+                System.out.println(String.format("%-30s %10d %10d %8.2f %12s", theKey, serialTime, parallelTime, speedup, theSizes));
+            } catch (Exception e) {
+                System.out.println(String.format("%-30s failed: %s", theKey, e));
+            } catch (StackOverflowError e) {
+                System.out.println(String.format("%-30s failed: stack overflow", theKey));
+            }
+        }
+    }
+}
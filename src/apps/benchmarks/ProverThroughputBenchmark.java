@@ -0,0 +1,114 @@
+package apps.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import util.game.GameRepository;
+import util.game.LocalGameRepository;
+import util.gdl.grammar.Gdl;
+import util.statemachine.StateMachine;
+import util.statemachine.implementation.prover.ProverStateMachine;
+
+/**
+ * This program measures how the depth-charge throughput of the
+ * ProverStateMachine scales with the number of threads, on the games in the
+ * local game repository. One machine is initialized per game, and every
+ * thread runs depth charges from the initial state on its own instance from
+ * createThreadInstance(), so the threads share the compiled rules.
+ *
+ * Usage: ProverThroughputBenchmark [maxThreads [seconds [game ...]]]
+ *
+ * By default it goes up to one thread per available processor, doubling
+ * the number of threads each time, runs each thread count for five seconds
+ * (after a one second warm-up), and uses every game in the repository. The
+ * prover is chosen as usual, with -Dggp.prover.
+ */
+public class ProverThroughputBenchmark {
+    public static void main(String[] args) throws Exception {
+        int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        GameRepository theRepository = new LocalGameRepository();
+        List<String> theKeys;
+        if (args.length > 2) {
+            theKeys = Arrays.asList(args).subList(2, args.length);
+        } else {
+            theKeys = new ArrayList<String>(theRepository.getGameKeys());
+            Collections.sort(theKeys);
+        }
+
+        List<Integer> threadCounts = new ArrayList<Integer>();
+        for (int threads = 1; threads < maxThreads; threads *= 2) {
+            threadCounts.add(threads);
+        }
+        threadCounts.add(maxThreads);
+
+        ExecutorService executor = Executors.newFixedThreadPool(maxThreads);
+        try {
+            System.out.println("Max threads: " + maxThreads + ", seconds per run: " + seconds);
+            System.out.println(String.format("%-30s %8s %14s %8s", "game", "threads", "charges/sec", "speedup"));
+            for (String theKey : theKeys) {
+                List<Gdl> description = theRepository.getGame(theKey).getRules();
+                try {
+                    StateMachine theMachine = new ProverStateMachine();
+                    theMachine.initialize(description);
+                    runDepthCharges(theMachine, executor, 1, 1000);
+
+                    double baseline = 0;
+                    for (int threads : threadCounts) {
+                        long charges = runDepthCharges(theMachine, executor, threads, seconds * 1000L);
+                        double throughput = charges / (double) seconds;
+                        if (baseline == 0) {
+                            baseline = throughput;
+                        }
+                        double speedup = throughput / Math.max(baseline, 1);
+                        System.out.println(String.format("%-30s %8d %14.1f %8.2f", theKey, threads, throughput, speedup));
+                    }
+                } catch (Exception e) {
+                    System.out.println(String.format("%-30s failed: %s", theKey, e));
+                } catch (StackOverflowError e) {
+                    System.out.println(String.format("%-30s failed: stack overflow", theKey));
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Runs depth charges from the initial state on the given number of
+     * threads, each with its own thread instance of the machine, until the
+     * time is up, and returns how many were completed in total.
+     */
+    private static long runDepthCharges(StateMachine theMachine, ExecutorService executor, int threads, long millis) throws Exception {
+        final long deadline = System.currentTimeMillis() + millis;
+        List<Callable<Long>> tasks = new ArrayList<Callable<Long>>();
+        for (int i = 0; i < threads; i++) {
+            final StateMachine threadMachine = theMachine.createThreadInstance();
+            tasks.add(new Callable<Long>() {
+                @Override
+                public Long call() throws Exception {
+                    long charges = 0;
+                    int[] theDepth = new int[1];
+                    while (System.currentTimeMillis() < deadline) {
+                        threadMachine.performDepthCharge(threadMachine.getInitialState(), theDepth);
+                        charges++;
+                    }
+                    return charges;
+                }
+            });
+        }
+
+        long total = 0;
+        for (Future<Long> result : executor.invokeAll(tasks)) {
+            total += result.get();
+        }
+        return total;
+    }
+}
@@ -0,0 +1,245 @@
+package apps.benchmarks;
+
+import java.io.FileWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.SplittableRandom;
+
+import external.JSON.JSONArray;
+import external.JSON.JSONObject;
+import util.game.GameRepository;
+import util.game.LocalGameRepository;
+import util.gdl.grammar.Gdl;
+import util.statemachine.DepthChargeResult;
+import util.statemachine.MachineState;
+import util.statemachine.Move;
+import util.statemachine.Role;
+import util.statemachine.StateMachine;
+
+/**
+ * This program measures every state machine implementation on the games in
+ * the local game repository, and writes the results as JSON so that they can
+ * be compared from release to release. For each game and machine it records:
+ *
+ *   - the time taken by initialize(), as the median of three fresh machines;
+ *   - depth charges per second from the initial state, and their depth;
+ *   - the latency of getLegalMoves() and getNextState(), over a fixed sample
+ *     of states reached by seeded random play;
+ *   - the bytes allocated per depth charge, per legal move query and per
+ *     next state, where the JVM can count allocations per thread.
+ *
+ * Usage: StateMachineBenchmark [seconds [outputFile [game ...]]]
+ *
+ * By default each measurement runs for five seconds (after a one second
+ * warm-up), the results go to statemachine-benchmark.json, and every game in
+ * the repository is used. The machines are given by class name with
+ * -Dggp.benchmark.machines=class1,class2,...; each needs a public no-argument
+ * constructor. By default every machine in the tree is measured. Machines
+ * that fail on a game are reported, with the error, and skipped. Random play
+ * is seeded, so every run samples the same states.
+ */
+public class StateMachineBenchmark {
+    private static final String[] DEFAULT_MACHINES = {
+        "util.statemachine.implementation.prover.ProverStateMachine",
+        "util.statemachine.implementation.propnet.PropNetStateMachine",
+        "util.statemachine.implementation.propnet.CompiledPropNetStateMachine",
+        "util.statemachine.implementation.propnet.GeneratedPropNetStateMachine",
+    };
+
+    private static final long SEED = 42;
+    private static final int INIT_REPETITIONS = 3;
+    private static final int SAMPLE_STATES = 256;
+    private static final int CHARGES_PER_BATCH = 16;
+    private static final long WARMUP_MILLIS = 1000;
+
+    public static void main(String[] args) throws Exception {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        String outputFile = args.length > 1 ? args[1] : "statemachine-benchmark.json";
+
+        GameRepository theRepository = new LocalGameRepository();
+        List<String> theKeys;
+        if (args.length > 2) {
+            theKeys = Arrays.asList(args).subList(2, args.length);
+        } else {
+            theKeys = new ArrayList<String>(theRepository.getGameKeys());
+            Collections.sort(theKeys);
+        }
+
+        String machineProperty = System.getProperty("ggp.benchmark.machines");
+        List<String> theMachines = Arrays.asList(machineProperty == null ? DEFAULT_MACHINES : machineProperty.split(","));
+
+        JSONObject theReport = new JSONObject();
+        theReport.put("timestamp", System.currentTimeMillis());
+        theReport.put("javaVersion", System.getProperty("java.version"));
+        theReport.put("javaVm", System.getProperty("java.vm.name"));
+        theReport.put("os", System.getProperty("os.name") + " " + System.getProperty("os.arch"));
+        theReport.put("processors", Runtime.getRuntime().availableProcessors());
+        theReport.put("secondsPerMeasurement", seconds);
+        theReport.put("seed", SEED);
+        JSONArray theResults = new JSONArray();
+
+        System.out.println("Seconds per measurement: " + seconds + ", output: " + outputFile);
+        System.out.println(String.format("%-24s %-30s %9s %12s %10s %10s %11s", "game", "machine", "init ms", "charges/sec", "legal ns", "next ns", "KB/charge"));
+        for (String theKey : theKeys) {
+            List<Gdl> description = theRepository.getGame(theKey).getRules();
+            for (String theMachine : theMachines) {
+                String theName = theMachine.substring(theMachine.lastIndexOf('.') + 1);
+                JSONObject theResult;
+                try {
+                    theResult = measure(theMachine.trim(), description, seconds * 1000L);
+                    System.out.println(String.format("%-24s %-30s %9.1f %12.1f %10.0f %10.0f %11.1f", theKey, theName,
+                            theResult.getDouble("initializeMillis"), theResult.getDouble("depthChargesPerSecond"),
+                            theResult.getDouble("legalMovesNanos"), theResult.getDouble("nextStateNanos"),
+                            theResult.getDouble("bytesPerDepthCharge") / 1024));
+                } catch (Exception e) {
+                    theResult = new JSONObject();
+                    theResult.put("error", e.toString());
+                    System.out.println(String.format("%-24s %-30s failed: %s", theKey, theName, e));
+                } catch (StackOverflowError e) {
+                    theResult = new JSONObject();
+                    theResult.put("error", "stack overflow");
+                    System.out.println(String.format("%-24s %-30s failed: stack overflow", theKey, theName));
+                }
+                theResult.put("game", theKey);
+                theResult.put("machine", theMachine.trim());
+                theResults.put(theResult);
+            }
+        }
+        theReport.put("results", theResults);
+
+        FileWriter theWriter = new FileWriter(outputFile);
+        try {
+            theWriter.write(theReport.toString(2));
+            theWriter.write("\n");
+        } finally {
+            theWriter.close();
+        }
+    }
+
+    /**
+     * Runs every measurement for one machine on one game. Latencies are in
+     * nanoseconds per call; allocations are -1 when the JVM cannot count
+     * them.
+     */
+    private static JSONObject measure(String className, List<Gdl> description, long millis) throws Exception {
+        JSONObject theResult = new JSONObject();
+
+        StateMachine theMachine = null;
+        double[] initTimes = new double[INIT_REPETITIONS];
+        for (int i = 0; i < INIT_REPETITIONS; i++) {
+            theMachine = (StateMachine) Class.forName(className).newInstance();
+            long startTime = System.nanoTime();
+            theMachine.initialize(description);
+            initTimes[i] = (System.nanoTime() - startTime) / 1e6;
+        }
+        Arrays.sort(initTimes);
+        theResult.put("initializeMillis", initTimes[INIT_REPETITIONS / 2]);
+
+        MachineState initialState = theMachine.getInitialState();
+        List<Role> roles = theMachine.getRoles();
+
+        // Depth charges, in batches so that the clock is not read per charge.
+        SplittableRandom random = new SplittableRandom(SEED);
+        runDepthCharges(theMachine, initialState, random, WARMUP_MILLIS);
+        long startBytes = getAllocatedBytes();
+        long startTime = System.nanoTime();
+        DepthChargeResult charges = runDepthCharges(theMachine, initialState, random, millis);
+        double elapsed = (System.nanoTime() - startTime) / 1e9;
+        long bytes = getAllocatedBytes() - startBytes;
+        theResult.put("depthChargesPerSecond", charges.getPlayouts() / elapsed);
+        theResult.put("averageDepth", charges.getAverageDepth());
+        theResult.put("bytesPerDepthCharge", (startBytes < 0) ? -1 : (double) bytes / charges.getPlayouts());
+        theResult.put("allocatedBytesPerSecond", (startBytes < 0) ? -1 : bytes / elapsed);
+
+        // A fixed sample of states and joint moves, from seeded random play.
+        List<MachineState> states = new ArrayList<MachineState>();
+        List<List<Move>> jointMoves = new ArrayList<List<Move>>();
+        random = new SplittableRandom(SEED);
+        while (states.size() < SAMPLE_STATES) {
+            MachineState state = initialState;
+            while (!theMachine.isTerminal(state) && states.size() < SAMPLE_STATES) {
+                List<Move> jointMove = new ArrayList<Move>(roles.size());
+                for (Role role : roles) {
+                    List<Move> legals = theMachine.getLegalMoves(state, role);
+                    jointMove.add(legals.get(random.nextInt(legals.size())));
+                }
+                states.add(state);
+                jointMoves.add(jointMove);
+                state = theMachine.getNextState(state, jointMove);
+            }
+            if (states.isEmpty())
+                throw new IllegalStateException("The initial state is terminal.");
+        }
+
+        // Each call goes to a different state than the one before, so that
+        // machines which remember the last state do not skip the work.
+        measureLegalMoves(theMachine, states, roles, WARMUP_MILLIS, null);
+        measureLegalMoves(theMachine, states, roles, millis, theResult);
+        measureNextStates(theMachine, states, jointMoves, WARMUP_MILLIS, null);
+        measureNextStates(theMachine, states, jointMoves, millis, theResult);
+        return theResult;
+    }
+
+    private static DepthChargeResult runDepthCharges(StateMachine theMachine, MachineState state, SplittableRandom random, long millis) throws Exception {
+        DepthChargeResult theResult = new DepthChargeResult(theMachine.getRoles().size());
+        long deadline = System.currentTimeMillis() + millis;
+        while (System.currentTimeMillis() < deadline) {
+            theResult.add(theMachine.performDepthCharges(state, CHARGES_PER_BATCH, random));
+        }
+        return theResult;
+    }
+
+    private static void measureLegalMoves(StateMachine theMachine, List<MachineState> states, List<Role> roles, long millis, JSONObject theResult) throws Exception {
+        long calls = 0;
+        long startBytes = getAllocatedBytes();
+        long startTime = System.nanoTime();
+        long deadline = System.currentTimeMillis() + millis;
+        while (System.currentTimeMillis() < deadline) {
+            for (MachineState state : states) {
+                for (Role role : roles) {
+                    theMachine.getLegalMoves(state, role);
+                }
+            }
+            calls += states.size() * roles.size();
+        }
+        if (theResult != null) {
+            theResult.put("legalMovesNanos", (double) (System.nanoTime() - startTime) / calls);
+            theResult.put("bytesPerLegalMoves", (startBytes < 0) ? -1 : (double) (getAllocatedBytes() - startBytes) / calls);
+        }
+    }
+
+    private static void measureNextStates(StateMachine theMachine, List<MachineState> states, List<List<Move>> jointMoves, long millis, JSONObject theResult) throws Exception {
+        long calls = 0;
+        long startBytes = getAllocatedBytes();
+        long startTime = System.nanoTime();
+        long deadline = System.currentTimeMillis() + millis;
+        while (System.currentTimeMillis() < deadline) {
+            for (int i = 0; i < states.size(); i++) {
+                theMachine.getNextState(states.get(i), jointMoves.get(i));
+            }
+            calls += states.size();
+        }
+        if (theResult != null) {
+            theResult.put("nextStateNanos", (double) (System.nanoTime() - startTime) / calls);
+            theResult.put("bytesPerNextState", (startBytes < 0) ? -1 : (double) (getAllocatedBytes() - startBytes) / calls);
+        }
+    }
+
+    /**
+     * Returns the number of bytes allocated so far by the current thread, or
+     * -1 if the JVM does not keep count.
+     */
+    private static long getAllocatedBytes() {
+        ThreadMXBean theBean = ManagementFactory.getThreadMXBean();
+        if (theBean instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean theSunBean = (com.sun.management.ThreadMXBean) theBean;
+            if (theSunBean.isThreadAllocatedMemorySupported() && theSunBean.isThreadAllocatedMemoryEnabled())
+                return theSunBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+}
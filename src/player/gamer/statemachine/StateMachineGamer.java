@@ -8,6 +8,7 @@ import player.gamer.exception.MetaGamingException;
 import player.gamer.exception.MoveSelectionException;
 import util.gdl.grammar.GdlSentence;
 import util.logging.GamerLogger;
+import util.statemachine.DepthChargeService;
 import util.statemachine.MachineState;
 import util.statemachine.Move;
 import util.statemachine.Role;
@@ -97,6 +98,29 @@ public abstract class StateMachineGamer extends Gamer
 		return stateMachine;
 	}
 	
+    /**
+     * Creates a DepthChargeService with a worker for each processor. Each
+     * worker gets a thread instance of the state machine where the machine
+     * supports them, and otherwise a new machine from getInitialStateMachine()
+     * initialized with the rules of the match. The gamer owns the service, and
+     * should shut it down in stateMachineStop().
+     * 
+     * @return a depth charge service for the current match
+     */
+    protected final DepthChargeService createDepthChargeService() {
+        int nThreads = Runtime.getRuntime().availableProcessors();
+        List<StateMachine> theMachines = new ArrayList<StateMachine>(nThreads);
+        for (int i = 0; i < nThreads; i++) {
+            StateMachine theMachine = stateMachine.createThreadInstance();
+            if (theMachine == null) {
+                theMachine = getInitialStateMachine();
+                theMachine.initialize(getMatch().getGame().getRules());
+            }
+            theMachines.add(theMachine);
+        }
+        return new DepthChargeService(theMachines, System.nanoTime());
+    }
+    
     /**
      * Cleans up the role, currentState and stateMachine. This should only be
      * used when a match is over, and even then only when you really need to
@@ -6,6 +6,8 @@ import java.util.Random;
 import player.gamer.statemachine.StateMachineGamer;
 import player.gamer.statemachine.reflex.event.ReflexMoveSelectionEvent;
 import player.gamer.statemachine.reflex.gui.ReflexDetailPanel;
+import util.statemachine.CachedStateMachine;
+import util.statemachine.JointMoveCursor;
 import util.statemachine.MachineState;
 import util.statemachine.Move;
 import util.statemachine.Role;
@@ -43,6 +45,7 @@ public final class AlphaBetaGamer extends StateMachineGamer
 		
 		StateMachine curMachine = getStateMachine();
 		MachineState rootState = getCurrentState();
+		curMachine.updateRoot(rootState);
 		List<Move> moves = curMachine.getLegalMoves(rootState, getRole());
 		ScoredMove bestMove =  findBestMove(rootState, getRole(), -1, 101, start, timeout - 20);
 		Move selection = bestMove.move;
@@ -63,12 +66,12 @@ public final class AlphaBetaGamer extends StateMachineGamer
 		for (Move move : moves)
 		{
 			if (System.currentTimeMillis() > retTimeout-20) break;
-			List<List<Move>> oppoMoves = curMachine.getLegalJointMoves(rootState, curRole, move);
+			JointMoveCursor oppoMoves = curMachine.getJointMoveCursor(rootState, curRole, move);
 			int minScore = curBeta;
-			for (List<Move> curMoveList : oppoMoves)
+			while (oppoMoves.next())
 			{
 				if (System.currentTimeMillis() > retTimeout-20) break;
-				MachineState nextState = curMachine.getNextState(rootState, curMoveList);
+				MachineState nextState = curMachine.getNextState(rootState, oppoMoves.getMoves());
 				if (curMachine.isTerminal(nextState))
 				{
 					int goalScore = curMachine.getGoal(nextState, curRole);
@@ -105,11 +108,12 @@ public final class AlphaBetaGamer extends StateMachineGamer
 	}
 
 	/**
-	 * Uses a ProverStateMachine
+	 * Uses a ProverStateMachine, behind a cache so that states shared by
+	 * several lines of play are only expanded once.
 	 */
 	@Override
 	public StateMachine getInitialStateMachine() {
-		return new ProverStateMachine();
+		return new CachedStateMachine(new ProverStateMachine());
 	}
 	@Override
 	public String getName() {
@@ -9,6 +9,7 @@ import java.util.HashSet;
 import player.gamer.statemachine.StateMachineGamer;
 import player.gamer.statemachine.reflex.event.ReflexMoveSelectionEvent;
 import player.gamer.statemachine.reflex.gui.ReflexDetailPanel;
+import util.statemachine.JointMoveCursor;
 import util.statemachine.MachineState;
 import util.statemachine.Move;
 import util.statemachine.Role;
@@ -119,12 +120,12 @@ public final class MinimaxGamer extends StateMachineGamer
 				curMoveNode.move = curMove;
 				curMoveNode.prevState = curNode;
 				curMoveNode.minState = null;
-				List<List<Move>> curMoveLists = curMachine.getLegalJointMoves(curNode.state, curRole, curMove);
+				JointMoveCursor curMoveLists = curMachine.getJointMoveCursor(curNode.state, curRole, curMove);
 				
 				//Look at all possible moveLists with chosen move
-				for (List<Move> curMoveList : curMoveLists)
+				while (curMoveLists.next())
 				{
-					MachineState nextState = curMachine.getNextState(curNode.state, curMoveList);
+					MachineState nextState = curMachine.getNextState(curNode.state, curMoveLists.getMoves());
 					//Check if state already exists
 					if (stateMap.containsKey(nextState))
 					{
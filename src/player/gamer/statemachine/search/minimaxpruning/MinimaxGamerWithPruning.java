@@ -9,6 +9,9 @@ import java.util.HashSet;
 import player.gamer.statemachine.StateMachineGamer;
 import player.gamer.statemachine.reflex.event.ReflexMoveSelectionEvent;
 import player.gamer.statemachine.reflex.gui.ReflexDetailPanel;
+import util.statemachine.DepthChargeResult;
+import util.statemachine.DepthChargeService;
+import util.statemachine.JointMoveCursor;
 import util.statemachine.MachineState;
 import util.statemachine.Move;
 import util.statemachine.Role;
@@ -39,6 +42,9 @@ public final class MinimaxGamerWithPruning extends StateMachineGamer
 		stateMap = new HashMap<MachineState, StateNode>(10000);
 		nodeQueue = new PriorityQueue<StateNode>(10000);
 		StateMachine curMachine = getStateMachine();
+		roleIndex = curMachine.getRoles().indexOf(getRole());
+		//Probes run on every core, and stop at the search deadline
+		if (NUM_PROBES > 0) depthCharges = createDepthChargeService();
 		MachineState initState = curMachine.getInitialState();
 		Role initRole = getRole();
 		searchTreeFromRoot(initState, initRole, timeout-20 );
@@ -78,6 +84,7 @@ public final class MinimaxGamerWithPruning extends StateMachineGamer
 	public void searchTreeFromRoot(MachineState rootState, Role curRole, long timeout) throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException
 	{
 		StateMachine curMachine = getStateMachine();
+		searchTimeout = timeout;
 		
 		//For some reason, state is out of this tree, so create and find it
 		if (!stateMap.containsKey(rootState)) 
@@ -125,12 +132,12 @@ public final class MinimaxGamerWithPruning extends StateMachineGamer
 				curMoveNode.move = curMove;
 				curMoveNode.prevState = curNode;
 				curMoveNode.minState = null;
-				List<List<Move>> curMoveLists = curMachine.getLegalJointMoves(curNode.state, curRole, curMove);
+				JointMoveCursor curMoveLists = curMachine.getJointMoveCursor(curNode.state, curRole, curMove);
 				
 				//Look at all possible moveLists with chosen move
-				for (List<Move> curMoveList : curMoveLists)
+				while (curMoveLists.next())
 				{
-					MachineState nextState = curMachine.getNextState(curNode.state, curMoveList);
+					MachineState nextState = curMachine.getNextState(curNode.state, curMoveLists.getMoves());
 					//Check if state already exists
 					if (stateMap.containsKey(nextState))
 					{
@@ -258,18 +265,16 @@ public final class MinimaxGamerWithPruning extends StateMachineGamer
 	
 	public void calcStateScore(StateNode curNode) throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException
 	{
-		StateMachine curMachine = getStateMachine();
-		
 		if (curNode.maxMove == null)
 		{
 			long start = System.currentTimeMillis();
 			if (NUM_PROBES == 0) curNode.stateScore = 50;
-			else curNode.stateScore = 0;
-			MachineState probeState = null;
-			for (int i=0; i<NUM_PROBES; i++)
+			else
 			{
-				probeState = curMachine.performDepthCharge(curNode.state, null);
-				curNode.stateScore += curMachine.getGoal(probeState, getRole())/NUM_PROBES;
+				DepthChargeResult probes = depthCharges.run(curNode.state, NUM_PROBES, searchTimeout);
+				//Out of time before any probe finished
+				if (probes.getPlayouts() == 0) curNode.stateScore = 50;
+				else curNode.stateScore = probes.getAverageGoal(roleIndex);
 			}
 			if (NUM_PROBES > 0) averageDepthTime = (numDepthSamples * averageDepthTime + (System.currentTimeMillis() - start)) / (numDepthSamples + NUM_PROBES);
 			numDepthSamples += NUM_PROBES;
@@ -506,6 +511,11 @@ public final class MinimaxGamerWithPruning extends StateMachineGamer
 	
 	@Override
 	public void stateMachineStop() {
+		if (depthCharges != null)
+		{
+			depthCharges.shutdown();
+			depthCharges = null;
+		}
 		stateMap.clear();
 		searchedMoves.clear();
 		nodeQueue.clear();
@@ -528,6 +538,7 @@ public final class MinimaxGamerWithPruning extends StateMachineGamer
 		return new ReflexDetailPanel();
 	}
 	
+	//Playouts per fringe state, shared out among the depth charge workers when above 0
 	public static final int NUM_PROBES = 0;
 	
 	private long numMovesExpanded;
@@ -536,6 +547,9 @@ public final class MinimaxGamerWithPruning extends StateMachineGamer
 	private List<Move> searchedMoves;
 	private HashMap<MachineState, StateNode> stateMap;
 	private PriorityQueue<StateNode> nodeQueue;
+	private DepthChargeService depthCharges;
+	private long searchTimeout;
+	private int roleIndex;
 }
 
 class StateNode implements Comparable<StateNode>
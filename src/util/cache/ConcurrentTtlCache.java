@@ -0,0 +1,368 @@
+package util.cache;
+
+import java.util.AbstractCollection;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This is a concurrent version of TtlCache, with the same meaning of TTL:
+ * whenever a pair (K,V) is put or read with get(), its TTL is reset, and
+ * every call to prune() decrements the TTL of every pair, removing the pairs
+ * whose TTL has run out. Optionally, the cache also holds at most a fixed
+ * number of pairs, evicting the least recently used first.
+ *
+ * Unlike TtlCache, it has no single lock. The pairs are kept in a
+ * ConcurrentHashMap, so get(), put() and the rest never wait for each other,
+ * and only prune() and evictions take a lock. Rather than decrementing a TTL
+ * in every pair, prune() advances a generation counter: each pair records
+ * the generation it was last used in, and its key is queued in a timing
+ * wheel with one slot per generation that can still be alive. prune() then
+ * only visits the slot whose generation has just expired, so it costs time
+ * in proportion to the pairs used in that generation, not to the size of
+ * the cache. A key used in several generations is queued in each, and the
+ * stale queue entries are simply skipped. Evicting for size works through
+ * the slots in the same way, oldest generation first, so it is least
+ * recently used to the nearest generation.
+ *
+ * The cache counts hits and misses of get(), and the pairs it evicts, either
+ * because they expired or to make room.
+ *
+ * Like any ConcurrentHashMap, it does not allow null keys or values, and its
+ * views are weakly consistent: they reflect some of the changes made while
+ * they are being iterated over. A pair used at the same moment it expires
+ * may still be evicted.
+ *
+ * @param <K> Key type
+ * @param <V> Value type
+ */
+public final class ConcurrentTtlCache<K, V> implements Map<K, V>
+{
+	private static final class Entry<V>
+	{
+		public final V value;
+		public volatile long generation;
+
+		public Entry(V value, long generation)
+		{
+			this.value = value;
+			this.generation = generation;
+		}
+	}
+
+	private final ConcurrentHashMap<K, Entry<V>> contents;
+	private final int ttl;
+	private final int maxSize;
+	/** For each generation that can still be alive, the keys used in it (and possibly stale ones). */
+	private final List<Queue<K>> wheel;
+	private final ReentrantLock evictionLock;
+	private volatile long generation;
+
+	private final LongAdder hits;
+	private final LongAdder misses;
+	private final LongAdder evictions;
+
+	public ConcurrentTtlCache(int ttl)
+	{
+		this(ttl, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Creates a cache whose pairs expire after ttl calls to prune() without
+	 * being used, and which holds at most maxSize pairs.
+	 */
+	public ConcurrentTtlCache(int ttl, int maxSize)
+	{
+		if (ttl < 0 || maxSize < 1)
+		{
+			throw new IllegalArgumentException("Invalid TTL " + ttl + " or maximum size " + maxSize + ".");
+		}
+
+		this.contents = new ConcurrentHashMap<K, Entry<V>>();
+		this.ttl = ttl;
+		this.maxSize = maxSize;
+		this.evictionLock = new ReentrantLock();
+		this.generation = 0;
+
+		// One more slot than there are live generations, so that a key queued
+		// late for a generation that was just pruned is still visited later.
+		this.wheel = new ArrayList<Queue<K>>(ttl + 2);
+		for (int i = 0; i < ttl + 2; i++)
+		{
+			wheel.add(new ConcurrentLinkedQueue<K>());
+		}
+
+		this.hits = new LongAdder();
+		this.misses = new LongAdder();
+		this.evictions = new LongAdder();
+	}
+
+	public boolean containsKey(Object key)
+	{
+		return contents.containsKey(key);
+	}
+
+	public V get(Object key)
+	{
+		Entry<V> entry = contents.get(key);
+		if (entry == null)
+		{
+			misses.increment();
+			return null;
+		}
+
+		// Reset the TTL when a value is accessed directly.
+		hits.increment();
+		touch(key, entry);
+		return entry.value;
+	}
+
+	/**
+	 * Decrements the TTL of every pair, removing those whose TTL has run out.
+	 * Only the pairs last used ttl generations ago are visited.
+	 */
+	public void prune()
+	{
+		evictionLock.lock();
+		try
+		{
+			long oldest = generation - ttl;
+			generation++;
+			drain(oldest, Integer.MAX_VALUE);
+		}
+		finally
+		{
+			evictionLock.unlock();
+		}
+	}
+
+	public V put(K key, V value)
+	{
+		long current = generation;
+		Entry<V> previous = contents.put(key, new Entry<V>(value, current));
+		if (previous == null || previous.generation != current)
+		{
+			wheel.get(slot(current)).add(key);
+		}
+
+		if (previous == null && contents.size() > maxSize)
+		{
+			evictForSize();
+		}
+		return (previous == null) ? null : previous.value;
+	}
+
+	public int size()
+	{
+		return contents.size();
+	}
+
+	public void clear()
+	{
+		contents.clear();
+		for (Queue<K> slot : wheel)
+		{
+			slot.clear();
+		}
+	}
+
+	public boolean containsValue(Object value)
+	{
+		for (Entry<V> entry : contents.values())
+		{
+			if (entry.value.equals(value))
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public boolean isEmpty()
+	{
+		return contents.isEmpty();
+	}
+
+	public Set<K> keySet()
+	{
+		return contents.keySet();
+	}
+
+	public void putAll(Map<? extends K, ? extends V> m)
+	{
+		for (Map.Entry<? extends K, ? extends V> anEntry : m.entrySet())
+		{
+			this.put(anEntry.getKey(), anEntry.getValue());
+		}
+	}
+
+	public V remove(Object key)
+	{
+		Entry<V> entry = contents.remove(key);
+		return (entry == null) ? null : entry.value;
+	}
+
+	public Collection<V> values()
+	{
+		return new AbstractCollection<V>()
+		{
+			@Override
+			public Iterator<V> iterator()
+			{
+				final Iterator<Entry<V>> theEntries = contents.values().iterator();
+				return new Iterator<V>()
+				{
+					public boolean hasNext() { return theEntries.hasNext(); }
+					public V next() { return theEntries.next().value; }
+					public void remove() { theEntries.remove(); }
+				};
+			}
+
+			@Override
+			public int size()
+			{
+				return contents.size();
+			}
+		};
+	}
+
+	public Set<Map.Entry<K, V>> entrySet()
+	{
+		return new AbstractSet<Map.Entry<K, V>>()
+		{
+			@Override
+			public Iterator<Map.Entry<K, V>> iterator()
+			{
+				final Iterator<Map.Entry<K, Entry<V>>> theEntries = contents.entrySet().iterator();
+				return new Iterator<Map.Entry<K, V>>()
+				{
+					public boolean hasNext() { return theEntries.hasNext(); }
+					public void remove() { theEntries.remove(); }
+
+					public Map.Entry<K, V> next()
+					{
+						final Map.Entry<K, Entry<V>> e = theEntries.next();
+						return new AbstractMap.SimpleEntry<K, V>(e.getKey(), e.getValue().value)
+						{
+							private static final long serialVersionUID = 1L;
+
+							@Override
+							public V setValue(V value)
+							{
+								put(getKey(), value);
+								return super.setValue(value);
+							}
+						};
+					}
+				};
+			}
+
+			@Override
+			public int size()
+			{
+				return contents.size();
+			}
+		};
+	}
+
+	/**
+	 * Returns the number of calls to get() that found a value.
+	 */
+	public long getHits()
+	{
+		return hits.sum();
+	}
+
+	/**
+	 * Returns the number of calls to get() that found nothing.
+	 */
+	public long getMisses()
+	{
+		return misses.sum();
+	}
+
+	/**
+	 * Returns the number of pairs removed by prune() or to make room.
+	 */
+	public long getEvictions()
+	{
+		return evictions.sum();
+	}
+
+	/**
+	 * Moves a pair into the current generation, queueing its key there unless
+	 * it already is.
+	 */
+	private void touch(Object key, Entry<V> entry)
+	{
+		long current = generation;
+		if (entry.generation != current)
+		{
+			entry.generation = current;
+			@SuppressWarnings("unchecked")
+			K theKey = (K) key;
+			wheel.get(slot(current)).add(theKey);
+		}
+	}
+
+	/**
+	 * Evicts pairs, oldest generation first, until the cache fits. If another
+	 * thread is already evicting or pruning, this leaves it to that thread.
+	 */
+	private void evictForSize()
+	{
+		if (!evictionLock.tryLock())
+		{
+			return;
+		}
+		try
+		{
+			for (long g = generation - ttl; g <= generation && contents.size() > maxSize; g++)
+			{
+				drain(g, contents.size() - maxSize);
+			}
+		}
+		finally
+		{
+			evictionLock.unlock();
+		}
+	}
+
+	/**
+	 * Takes keys from the slot of the given generation, removing the pairs
+	 * that were last used in that generation or before, until the limit of
+	 * removals is reached or the slot is empty. Keys of pairs that have been
+	 * used since are dropped from the slot, since they are queued again in a
+	 * later one.
+	 */
+	private void drain(long oldGeneration, int limit)
+	{
+		Queue<K> slot = wheel.get(slot(oldGeneration));
+		int removed = 0;
+		K key;
+		while (removed < limit && (key = slot.poll()) != null)
+		{
+			Entry<V> entry = contents.get(key);
+			if (entry != null && entry.generation <= oldGeneration && contents.remove(key, entry))
+			{
+				evictions.increment();
+				removed++;
+			}
+		}
+	}
+
+	private int slot(long theGeneration)
+	{
+		return (int) (((theGeneration % wheel.size()) + wheel.size()) % wheel.size());
+	}
+}
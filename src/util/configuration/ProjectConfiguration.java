@@ -45,6 +45,9 @@ public class ProjectConfiguration {
     private static final String propNetCacheDirectoryPath = "propnet_cache";
     public static final File propNetCacheDirectory = new File(propNetCacheDirectoryPath);
     
+    /* Prover used by the ProverStateMachine: "aima" (top-down), "datalog" (bottom-up) or "incremental" */
+    public static final String proverName = System.getProperty("ggp.prover", "aima");
+    
     /* Class object file information */
     public static final String[] classRoots = new String[] {"bin"};    
 }
\ No newline at end of file
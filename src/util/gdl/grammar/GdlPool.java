@@ -3,7 +3,9 @@ package util.gdl.grammar;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 
@@ -41,6 +43,36 @@ public final class GdlPool
 	    //constantPool.clear();
 	}
 	
+	/**
+	 * Returns the number of objects in each of the pools, by pool name. A
+	 * player that runs for a long time can log this to check that the pools
+	 * are not growing from match to match, or during a match.
+	 */
+	public static Map<String, Integer> getPoolSizes()
+	{
+		Map<String, Integer> sizes = new LinkedHashMap<String, Integer>();
+		sizes.put("constant", constantPool.size());
+		sizes.put("distinct", getNestedSize(distinctPool));
+		sizes.put("function", getNestedSize(functionPool));
+		sizes.put("not", notPool.size());
+		sizes.put("or", orPool.size());
+		sizes.put("proposition", propositionPool.size());
+		sizes.put("relation", getNestedSize(relationPool));
+		sizes.put("rule", getNestedSize(rulePool));
+		sizes.put("variable", variablePool.size());
+		return sizes;
+	}
+
+	private static <K, V> int getNestedSize(ConcurrentMap<K, ? extends Map<?, V>> pool)
+	{
+		int size = 0;
+		for (Map<?, V> bucket : pool.values())
+		{
+			size += bucket.size();
+		}
+		return size;
+	}
+
 	/**
 	 * If the pool does not have a mapping for the given key, adds a mapping from key to value
 	 * to the pool.
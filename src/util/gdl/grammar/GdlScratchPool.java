@@ -0,0 +1,122 @@
+package util.gdl.grammar;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A GdlScratchPool is a private, short-lived counterpart to the GdlPool for
+ * the temporary variables that a prover invents while answering queries.
+ * Objects it creates are unique within the scratch pool, so they can be
+ * compared by identity like pooled ones, but they are never added to the
+ * global GdlPool and are garbage collected along with the scratch pool.
+ *
+ * Only terms and sentences containing a variable are kept here: anything
+ * ground is taken from the GdlPool as usual, so that it is identical to the
+ * same GDL anywhere else. Objects from different scratch pools are never
+ * identical to one another, and objects with scratch variables should not
+ * be mixed into GDL that outlives the scratch pool.
+ *
+ * A GdlScratchPool is not safe to share between threads.
+ */
+public final class GdlScratchPool
+{
+
+	private final Map<String, GdlVariable> variablePool;
+	private final Map<GdlConstant, Map<List<GdlTerm>, GdlFunction>> functionPool;
+	private final Map<GdlConstant, Map<List<GdlTerm>, GdlRelation>> relationPool;
+
+	public GdlScratchPool()
+	{
+		variablePool = new HashMap<String, GdlVariable>();
+		functionPool = new HashMap<GdlConstant, Map<List<GdlTerm>, GdlFunction>>();
+		relationPool = new HashMap<GdlConstant, Map<List<GdlTerm>, GdlRelation>>();
+	}
+
+	public GdlFunction getFunction(GdlConstant name, List<GdlTerm> body)
+	{
+		if (isGround(body))
+		{
+			return GdlPool.getFunction(name, body);
+		}
+
+		Map<List<GdlTerm>, GdlFunction> bucket = functionPool.get(name);
+		if (bucket == null)
+		{
+			bucket = new HashMap<List<GdlTerm>, GdlFunction>();
+			functionPool.put(name, bucket);
+		}
+
+		GdlFunction ret = bucket.get(body);
+		if (ret == null)
+		{
+			ret = new GdlFunction(name, body);
+			bucket.put(body, ret);
+		}
+		return ret;
+	}
+
+	public GdlRelation getRelation(GdlConstant name, List<GdlTerm> body)
+	{
+		if (isGround(body))
+		{
+			return GdlPool.getRelation(name, body);
+		}
+
+		Map<List<GdlTerm>, GdlRelation> bucket = relationPool.get(name);
+		if (bucket == null)
+		{
+			bucket = new HashMap<List<GdlTerm>, GdlRelation>();
+			relationPool.put(name, bucket);
+		}
+
+		GdlRelation ret = bucket.get(body);
+		if (ret == null)
+		{
+			ret = new GdlRelation(name, body);
+			bucket.put(body, ret);
+		}
+		return ret;
+	}
+
+	public GdlVariable getVariable(String name)
+	{
+		GdlVariable ret = variablePool.get(name);
+		if (ret == null)
+		{
+			ret = new GdlVariable(name);
+			variablePool.put(name, ret);
+		}
+		return ret;
+	}
+
+	/**
+	 * Returns the number of objects created by this scratch pool.
+	 */
+	public int size()
+	{
+		int size = variablePool.size();
+		for (Map<List<GdlTerm>, GdlFunction> bucket : functionPool.values())
+		{
+			size += bucket.size();
+		}
+		for (Map<List<GdlTerm>, GdlRelation> bucket : relationPool.values())
+		{
+			size += bucket.size();
+		}
+		return size;
+	}
+
+	private static boolean isGround(List<GdlTerm> body)
+	{
+		for (GdlTerm term : body)
+		{
+			if (!term.isGround())
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+}
@@ -0,0 +1,537 @@
+package util.propnet.architecture;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+
+import util.gdl.grammar.GdlConstant;
+import util.gdl.grammar.GdlRelation;
+import util.gdl.grammar.GdlSentence;
+import util.gdl.grammar.GdlTerm;
+import util.propnet.architecture.components.And;
+import util.propnet.architecture.components.Constant;
+import util.propnet.architecture.components.Not;
+import util.propnet.architecture.components.Or;
+import util.propnet.architecture.components.Proposition;
+import util.propnet.architecture.components.Transition;
+import util.statemachine.Role;
+
+/**
+ * The CompiledPropNet class is a frozen, array-backed copy of a PropNet.
+ *
+ * Every component of the original network is assigned a dense integer id,
+ * and the network is stored as a table of component type codes together with
+ * CSR-style (compressed sparse row) input and output tables: the inputs of
+ * component <tt>i</tt> are <tt>getInputIds()[getInputOffsets()[i]]</tt> up to
+ * (but not including) <tt>getInputIds()[getInputOffsets()[i+1]]</tt>, and the
+ * outputs are laid out the same way.
+ *
+ * Ids are assigned so that the network can be evaluated with a single pass
+ * over a contiguous range:
+ * <ol>
+ * <li>Base propositions come first, so base proposition <tt>i</tt> has id
+ *     <tt>i</tt> and a state can be stored as a bitset over the base ids.</li>
+ * <li>Input propositions come next, followed by the init proposition, the
+ *     constants, and any other propositions without inputs.</li>
+ * <li>All remaining components follow in topological order, starting at
+ *     <tt>getFirstEvaluatedId()</tt>.</li>
+ * </ol>
+ *
+ * A CompiledPropNet is immutable and holds no truth values, so a single
+ * instance can be shared by any number of state machines that each keep
+ * their own value buffer.
+ */
+public final class CompiledPropNet
+{
+	/* Component type codes. */
+	public static final int TYPE_BASE = 0;
+	public static final int TYPE_INPUT = 1;
+	public static final int TYPE_INIT = 2;
+	public static final int TYPE_TRUE = 3;
+	public static final int TYPE_FALSE = 4;
+	public static final int TYPE_PROPOSITION = 5;
+	public static final int TYPE_AND = 6;
+	public static final int TYPE_OR = 7;
+	public static final int TYPE_NOT = 8;
+	public static final int TYPE_TRANSITION = 9;
+
+	/** The type code of every component, indexed by id. */
+	private final int[] types;
+
+	/** The CSR input table. */
+	private final int[] inputOffsets;
+	private final int[] inputIds;
+
+	/** The CSR output table. */
+	private final int[] outputOffsets;
+	private final int[] outputIds;
+
+	/** The number of base propositions; these have ids [0, numBases). */
+	private final int numBases;
+	/** The number of input propositions; these directly follow the bases. */
+	private final int numInputs;
+	/** The id of the first component that needs to be evaluated. */
+	private final int firstEvaluatedId;
+
+	/** The name of every proposition, indexed by id (null for gates). */
+	private final GdlTerm[] names;
+
+	/** The sentence of every base proposition, indexed by base id. */
+	private final GdlSentence[] baseSentences;
+	/** The id of the transition feeding every base proposition. */
+	private final int[] baseTransitionIds;
+	/** The base ids, indexed by the sentences they represent. */
+	private final Map<GdlSentence, Integer> baseIds;
+	/** The input ids, indexed by the (does ?player ?action) terms they represent. */
+	private final Map<GdlTerm, Integer> inputIdsByName;
+
+	/** The player roles. */
+	private final List<Role> roles;
+	/** The legal proposition ids for every role, indexed by role. */
+	private final int[][] legalIds;
+	/** The input id matching every legal proposition, or -1 if none exists. */
+	private final int[][] legalInputIds;
+	/** The goal proposition ids for every role, indexed by role. */
+	private final int[][] goalIds;
+	/** The goal values of the goal propositions, indexed by role. */
+	private final int[][] goalValues;
+
+	/** The id of the init proposition, or -1 if there is none. */
+	private final int initId;
+	/** The id of the terminal proposition, or -1 if there is none. */
+	private final int terminalId;
+
+	/**
+	 * Freezes a PropNet into its compiled form. The PropNet itself is not
+	 * modified, and is not referenced by the compiled network afterwards.
+	 *
+	 * @param propNet
+	 *            The network to compile.
+	 * @throws RuntimeException
+	 *             If the network contains a cycle that does not pass through
+	 *             a transition, since such networks cannot be evaluated in a
+	 *             single pass.
+	 */
+	public CompiledPropNet(PropNet propNet)
+	{
+		Set<Component> components = propNet.getComponents();
+		Proposition initProposition = propNet.getInitProposition();
+
+		// Lay out the sources first: bases, inputs, init and then constants
+		// and any other components whose value does not depend on an input.
+		List<Component> ordering = new ArrayList<Component>(components.size());
+		Map<Component, Integer> ids = new HashMap<Component, Integer>(components.size() * 2);
+		List<Proposition> baseList = new ArrayList<Proposition>(propNet.getBasePropositions().values());
+		for (Proposition p : baseList)
+			addToOrdering(p, ordering, ids);
+		for (Proposition p : propNet.getInputPropositions().values())
+			addToOrdering(p, ordering, ids);
+		if (initProposition != null && !ids.containsKey(initProposition))
+			addToOrdering(initProposition, ordering, ids);
+		for (Component c : components)
+		{
+			if (!ids.containsKey(c) && c.getInputs().isEmpty())
+				addToOrdering(c, ordering, ids);
+		}
+		int firstEvaluated = ordering.size();
+
+		// Then order everything else topologically with Kahn's algorithm.
+		// Edges into sources (bases in particular) are ignored, which breaks
+		// every cycle that passes through a transition.
+		Map<Component, Integer> pendingInputs = new HashMap<Component, Integer>(components.size() * 2);
+		Queue<Component> ready = new LinkedList<Component>();
+		for (Component c : components)
+		{
+			if (!ids.containsKey(c))
+				pendingInputs.put(c, c.getInputs().size());
+		}
+		for (int i = 0; i < ordering.size(); i++)
+			releaseOutputs(ordering.get(i), pendingInputs, ready);
+		while (!ready.isEmpty())
+		{
+			Component c = ready.remove();
+			addToOrdering(c, ordering, ids);
+			releaseOutputs(c, pendingInputs, ready);
+		}
+		if (ordering.size() != components.size())
+		{
+			throw new RuntimeException("Cannot compile a propnet with " + (components.size() - ordering.size()) + " components on cycles that do not pass through a transition.");
+		}
+
+		int n = ordering.size();
+		this.numBases = baseList.size();
+		this.numInputs = propNet.getInputPropositions().size();
+		this.firstEvaluatedId = firstEvaluated;
+
+		// Build the type and CSR tables.
+		this.types = new int[n];
+		this.names = new GdlTerm[n];
+		this.inputOffsets = new int[n + 1];
+		this.outputOffsets = new int[n + 1];
+		int numInputEdges = 0;
+		int numOutputEdges = 0;
+		for (int id = 0; id < n; id++)
+		{
+			Component c = ordering.get(id);
+			inputOffsets[id] = numInputEdges;
+			outputOffsets[id] = numOutputEdges;
+			if (id >= firstEvaluated)
+				numInputEdges += c.getInputs().size();
+			numOutputEdges += c.getOutputs().size();
+		}
+		inputOffsets[n] = numInputEdges;
+		outputOffsets[n] = numOutputEdges;
+		this.inputIds = new int[numInputEdges];
+		this.outputIds = new int[numOutputEdges];
+		for (int id = 0; id < n; id++)
+		{
+			Component c = ordering.get(id);
+			types[id] = getType(c, id, initProposition);
+			if (c instanceof Proposition)
+				names[id] = ((Proposition) c).getName();
+			if (id >= firstEvaluated)
+			{
+				int offset = inputOffsets[id];
+				for (Component in : c.getInputs())
+					inputIds[offset++] = ids.get(in);
+			}
+			int offset = outputOffsets[id];
+			for (Component out : c.getOutputs())
+				outputIds[offset++] = ids.get(out);
+		}
+
+		// Index the base and input propositions.
+		this.baseSentences = new GdlSentence[numBases];
+		this.baseTransitionIds = new int[numBases];
+		this.baseIds = new HashMap<GdlSentence, Integer>(numBases * 2);
+		for (int id = 0; id < numBases; id++)
+		{
+			Proposition p = baseList.get(id);
+			baseSentences[id] = p.getName().toSentence();
+			baseTransitionIds[id] = ids.get(p.getSingleInput());
+			baseIds.put(baseSentences[id], id);
+		}
+		this.inputIdsByName = new HashMap<GdlTerm, Integer>(numInputs * 2);
+		for (int id = numBases; id < numBases + numInputs; id++)
+			inputIdsByName.put(names[id], id);
+
+		// Index the legal and goal propositions by role.
+		this.roles = propNet.getRoles();
+		this.legalIds = new int[roles.size()][];
+		this.legalInputIds = new int[roles.size()][];
+		this.goalIds = new int[roles.size()][];
+		this.goalValues = new int[roles.size()][];
+		Map<Proposition, Proposition> legalInputMap = propNet.getLegalInputMap();
+		for (int r = 0; r < roles.size(); r++)
+		{
+			List<Proposition> legals = getPropositionsForRole(propNet.getLegalPropositions(), roles.get(r));
+			legalIds[r] = new int[legals.size()];
+			legalInputIds[r] = new int[legals.size()];
+			for (int i = 0; i < legals.size(); i++)
+			{
+				legalIds[r][i] = ids.get(legals.get(i));
+				Proposition input = legalInputMap.get(legals.get(i));
+				legalInputIds[r][i] = (input == null || !ids.containsKey(input)) ? -1 : ids.get(input);
+			}
+
+			List<Proposition> goals = getPropositionsForRole(propNet.getGoalPropositions(), roles.get(r));
+			goalIds[r] = new int[goals.size()];
+			goalValues[r] = new int[goals.size()];
+			for (int i = 0; i < goals.size(); i++)
+			{
+				goalIds[r][i] = ids.get(goals.get(i));
+				goalValues[r][i] = getGoalValue(goals.get(i));
+			}
+		}
+
+		this.initId = (initProposition == null) ? -1 : ids.get(initProposition);
+		Proposition terminalProposition = propNet.getTerminalProposition();
+		this.terminalId = (terminalProposition == null) ? -1 : ids.get(terminalProposition);
+	}
+
+	private static void addToOrdering(Component c, List<Component> ordering, Map<Component, Integer> ids)
+	{
+		ids.put(c, ordering.size());
+		ordering.add(c);
+	}
+
+	private static void releaseOutputs(Component c, Map<Component, Integer> pendingInputs, Queue<Component> ready)
+	{
+		for (Component out : c.getOutputs())
+		{
+			Integer pending = pendingInputs.get(out);
+			if (pending == null)
+				continue;
+			if (pending == 1)
+			{
+				pendingInputs.remove(out);
+				ready.add(out);
+			}
+			else
+			{
+				pendingInputs.put(out, pending - 1);
+			}
+		}
+	}
+
+	private int getType(Component c, int id, Proposition initProposition)
+	{
+		if (id < numBases)
+			return TYPE_BASE;
+		if (id < numBases + numInputs)
+			return TYPE_INPUT;
+		if (c == initProposition)
+			return TYPE_INIT;
+		if (c instanceof Constant)
+			return c.getValue() ? TYPE_TRUE : TYPE_FALSE;
+		if (c instanceof Proposition)
+			return TYPE_PROPOSITION;
+		if (c instanceof And)
+			return TYPE_AND;
+		if (c instanceof Or)
+			return TYPE_OR;
+		if (c instanceof Not)
+			return TYPE_NOT;
+		if (c instanceof Transition)
+			return TYPE_TRANSITION;
+		throw new RuntimeException("Cannot compile unknown component type " + c.getClass().getName());
+	}
+
+	private static List<Proposition> getPropositionsForRole(Map<Role, Set<Proposition>> propositions, Role role)
+	{
+		Set<Proposition> forRole = propositions.get(role);
+		if (forRole == null)
+			return new ArrayList<Proposition>();
+		return new ArrayList<Proposition>(forRole);
+	}
+
+	private static int getGoalValue(Proposition goalProposition)
+	{
+		GdlRelation relation = (GdlRelation) goalProposition.getName().toSentence();
+		GdlConstant constant = (GdlConstant) relation.get(1);
+		return Integer.parseInt(constant.toString());
+	}
+
+	/**
+	 * Getter method.
+	 *
+	 * @return The total number of components in the network.
+	 */
+	public int getSize()
+	{
+		return types.length;
+	}
+
+	/**
+	 * Getter method.
+	 *
+	 * @return The type codes of every component, indexed by id.
+	 */
+	public int[] getTypes()
+	{
+		return types;
+	}
+
+	/**
+	 * Getter method.
+	 *
+	 * @return The offsets into the input id table, indexed by id, with one
+	 *         extra trailing entry.
+	 */
+	public int[] getInputOffsets()
+	{
+		return inputOffsets;
+	}
+
+	/**
+	 * Getter method.
+	 *
+	 * @return The input id table. Sources have no entries in this table.
+	 */
+	public int[] getInputIds()
+	{
+		return inputIds;
+	}
+
+	/**
+	 * Getter method.
+	 *
+	 * @return The offsets into the output id table, indexed by id, with one
+	 *         extra trailing entry.
+	 */
+	public int[] getOutputOffsets()
+	{
+		return outputOffsets;
+	}
+
+	/**
+	 * Getter method.
+	 *
+	 * @return The output id table.
+	 */
+	public int[] getOutputIds()
+	{
+		return outputIds;
+	}
+
+	/**
+	 * Getter method.
+	 *
+	 * @return The number of base propositions, which have ids [0, n).
+	 */
+	public int getNumBases()
+	{
+		return numBases;
+	}
+
+	/**
+	 * Getter method.
+	 *
+	 * @return The number of input propositions, which directly follow the
+	 *         base propositions.
+	 */
+	public int getNumInputs()
+	{
+		return numInputs;
+	}
+
+	/**
+	 * Getter method.
+	 *
+	 * @return The id of the first component that needs to be evaluated; every
+	 *         component before it is a source.
+	 */
+	public int getFirstEvaluatedId()
+	{
+		return firstEvaluatedId;
+	}
+
+	/**
+	 * Getter method.
+	 *
+	 * @return The name of every proposition, indexed by id (null for gates).
+	 */
+	public GdlTerm[] getNames()
+	{
+		return names;
+	}
+
+	/**
+	 * Getter method.
+	 *
+	 * @return The sentence represented by every base proposition, indexed by
+	 *         base id.
+	 */
+	public GdlSentence[] getBaseSentences()
+	{
+		return baseSentences;
+	}
+
+	/**
+	 * Getter method.
+	 *
+	 * @return The id of the transition feeding every base proposition,
+	 *         indexed by base id.
+	 */
+	public int[] getBaseTransitionIds()
+	{
+		return baseTransitionIds;
+	}
+
+	/**
+	 * Looks up the base proposition for a sentence.
+	 *
+	 * @return The id of the base proposition, or -1 if there is none.
+	 */
+	public int getBaseId(GdlSentence sentence)
+	{
+		Integer id = baseIds.get(sentence);
+		return (id == null) ? -1 : id;
+	}
+
+	/**
+	 * Looks up the input proposition for a (does ?player ?action) term.
+	 *
+	 * @return The id of the input proposition, or -1 if there is none.
+	 */
+	public int getInputId(GdlTerm doesTerm)
+	{
+		Integer id = inputIdsByName.get(doesTerm);
+		return (id == null) ? -1 : id;
+	}
+
+	/**
+	 * Getter method.
+	 *
+	 * @return The player roles, in the same order as the per-role tables.
+	 */
+	public List<Role> getRoles()
+	{
+		return roles;
+	}
+
+	/**
+	 * Getter method.
+	 *
+	 * @return The legal proposition ids for every role, indexed by role.
+	 */
+	public int[][] getLegalIds()
+	{
+		return legalIds;
+	}
+
+	/**
+	 * Getter method.
+	 *
+	 * @return The id of the input proposition matching every legal
+	 *         proposition, or -1 where there is none, indexed by role.
+	 */
+	public int[][] getLegalInputIds()
+	{
+		return legalInputIds;
+	}
+
+	/**
+	 * Getter method.
+	 *
+	 * @return The goal proposition ids for every role, indexed by role.
+	 */
+	public int[][] getGoalIds()
+	{
+		return goalIds;
+	}
+
+	/**
+	 * Getter method.
+	 *
+	 * @return The value of every goal proposition, indexed by role.
+	 */
+	public int[][] getGoalValues()
+	{
+		return goalValues;
+	}
+
+	/**
+	 * Getter method.
+	 *
+	 * @return The id of the init proposition, or -1 if there is none.
+	 */
+	public int getInitId()
+	{
+		return initId;
+	}
+
+	/**
+	 * Getter method.
+	 *
+	 * @return The id of the terminal proposition, or -1 if there is none.
+	 */
+	public int getTerminalId()
+	{
+		return terminalId;
+	}
+}
@@ -1,5 +1,6 @@
 package util.propnet.factory;
 
+import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -12,6 +13,11 @@ import java.util.Map;
 import java.util.Queue;
 import java.util.Set;
 import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 import util.gdl.grammar.Gdl;
 import util.gdl.grammar.GdlConstant;
@@ -103,6 +109,20 @@ public class OptimizingPropNetFactory {
 		return create(description, verbose, true, false, false, false, true, true);
 	}
 	
+	/**
+	 * Builds the propnet with the default heuristics, instantiating the
+	 * sentence forms of each dependency stratum concurrently on a fork-join
+	 * pool with the given parallelism.
+	 */
+	public static PropNet createInParallel(List<Gdl> description, int parallelism) {
+		ForkJoinPool pool = new ForkJoinPool(parallelism);
+		try {
+			return create(description, false, true, false, false, false, true, true, pool);
+		} finally {
+			pool.shutdown();
+		}
+	}
+
 	public static PropNet create(List<Gdl> description,
 			boolean verbose,
 			boolean useAdvancedCondensers,
@@ -111,6 +131,25 @@ public class OptimizingPropNetFactory {
 			boolean constConstraint,
 			boolean useHeuristic,
 			boolean analyticFunctionOrdering)
+	{
+		return create(description, verbose, useAdvancedCondensers, moreRestraint, useCrudeSplitter, constConstraint, useHeuristic, analyticFunctionOrdering, null);
+	}
+
+	/**
+	 * As above, but if <tt>pool</tt> is not null, the sentence forms are
+	 * added one dependency stratum at a time, with the forms of a stratum
+	 * instantiated concurrently on the pool. Constant and self-recursive
+	 * forms are still added serially.
+	 */
+	public static PropNet create(List<Gdl> description,
+			boolean verbose,
+			boolean useAdvancedCondensers,
+			boolean moreRestraint,
+			boolean useCrudeSplitter,
+			boolean constConstraint,
+			boolean useHeuristic,
+			boolean analyticFunctionOrdering,
+			ForkJoinPool pool)
 	{
 		System.out.println("Building propnet...");
 
@@ -168,61 +207,35 @@ public class OptimizingPropNetFactory {
 		//Now what?
 		//PropNet propnet = new PropNet(); This is actually the last step
 		List<Role> roles = Role.computeRoles(description);
-		Map<GdlSentence, Component> components = new HashMap<GdlSentence, Component>();
-		Map<GdlSentence, Component> negations = new HashMap<GdlSentence, Component>();
+		Map<GdlSentence, Component> components;
+		Map<GdlSentence, Component> negations;
+		if(pool == null) {
+			components = new HashMap<GdlSentence, Component>();
+			negations = new HashMap<GdlSentence, Component>();
+		} else {
+			components = new ConcurrentHashMap<GdlSentence, Component>();
+			negations = new ConcurrentHashMap<GdlSentence, Component>();
+		}
 		Constant trueComponent = new Constant(true);
 		Constant falseComponent = new Constant(false);
 		Map<SentenceForm, ConstantForm> constantForms = new HashMap<SentenceForm, ConstantForm>();
 		Map<SentenceForm, Collection<GdlSentence>> completedSentenceFormValues = new HashMap<SentenceForm, Collection<GdlSentence>>();
-		for(SentenceForm form : topologicalOrdering) {
-			if(verbose) {
-				System.out.print("Adding sentence form " + form);
-				System.out.flush();
+		if(pool == null) {
+			for(SentenceForm form : topologicalOrdering) {
+				addFormToComponents(form, verbose, model, description, components, negations, trueComponent, falseComponent, usingBase, usingInput, constantForms, constantChecker, completedSentenceFormValues);
 			}
-			if(constantChecker.isConstantForm(form)) {
-				if(verbose)
-					System.out.println(" (constant)");
-				//Only add it if it's important
-				if(form.getName().equals(LEGAL)
-						|| form.getName().equals(GOAL)
-						|| form.getName().equals(INIT)) {
-					//Add it
-					Iterator<GdlSentence> sentenceItr = constantChecker.getTrueSentences(form);
-					if(!sentenceItr.hasNext())
-						System.out.println("Empty sentence iterator");
-					while(sentenceItr.hasNext()) {
-						GdlSentence trueSentence = sentenceItr.next();
-						//System.out.println("Adding prop for sentence " + trueSentence);
-						Proposition trueProp = new Proposition(trueSentence.toTerm());
-						trueProp.addInput(trueComponent);
-						trueComponent.addOutput(trueProp);
-						//components.put(trueSentence, trueProp);
-						components.put(trueSentence, trueComponent);
-					}
-				}
-
-				if(verbose)
-					System.out.println("Checking whether " + form + " is a functional constant...");
-				addToConstants(form, constantChecker, constantForms);
-				addFormToCompletedValues(form, completedSentenceFormValues, constantChecker);
-				
-				continue;
+		} else {
+			//Fill in the model's lazily-built caches now, so that the worker
+			//threads only ever read from it.
+			model.getSentenceFormsWithName(TRUE);
+			model.getConstantSentenceForms();
+			for(SentenceForm form : model.getSentenceForms()) {
+				model.getRelations(form);
+				model.getRules(form);
+			}
+			for(List<SentenceForm> stratum : getStrata(topologicalOrdering, dependencyGraph, usingBase, usingInput)) {
+				addStratumToComponents(stratum, pool, verbose, model, description, components, negations, trueComponent, falseComponent, usingBase, usingInput, constantForms, constantChecker, completedSentenceFormValues, dependencyGraph);
 			}
-			if(verbose)
-				System.out.println();
-			//TODO: Adjust "recursive forms" appropriately
-			//Add a temporary sentence form thingy? ...
-			Map<GdlSentence, Component> temporaryComponents = new HashMap<GdlSentence, Component>();
-			Map<GdlSentence, Component> temporaryNegations = new HashMap<GdlSentence, Component>();
-			addSentenceForm(form, model, description, components, negations, trueComponent, falseComponent, usingBase, usingInput, Collections.singleton(form), temporaryComponents, temporaryNegations, constantForms, constantChecker, completedSentenceFormValues);
-			//TODO: Pass these over groups of multiple sentence forms
-			if(verbose && !temporaryComponents.isEmpty())
-				System.out.println("Processing temporary components...");
-			processTemporaryComponents(temporaryComponents, temporaryNegations, components, negations, trueComponent, falseComponent);
-			addFormToCompletedValues(form, completedSentenceFormValues, components);
-			//if(verbose)
-				//TODO: Add this, but with the correct total number of components (not just Propositions)
-				//System.out.println("  "+completedSentenceFormValues.get(form).size() + " components added");
 		}
 		//Connect "next" to "true"
 		if(verbose)
@@ -253,6 +266,200 @@ public class OptimizingPropNetFactory {
 		return propnet;
 	}
 
+	/**
+	 * Adds the components for a single sentence form, as one step of the
+	 * serial build.
+	 */
+	private static void addFormToComponents(SentenceForm form, boolean verbose,
+			SentenceModel model, List<Gdl> description,
+			Map<GdlSentence, Component> components, Map<GdlSentence, Component> negations,
+			Constant trueComponent, Constant falseComponent,
+			boolean usingBase, boolean usingInput,
+			Map<SentenceForm, ConstantForm> constantForms, ConstantChecker constantChecker,
+			Map<SentenceForm, Collection<GdlSentence>> completedSentenceFormValues) {
+		if(verbose) {
+			System.out.print("Adding sentence form " + form);
+			System.out.flush();
+		}
+		if(constantChecker.isConstantForm(form)) {
+			if(verbose)
+				System.out.println(" (constant)");
+			//Only add it if it's important
+			if(form.getName().equals(LEGAL)
+					|| form.getName().equals(GOAL)
+					|| form.getName().equals(INIT)) {
+				//Add it
+				Iterator<GdlSentence> sentenceItr = constantChecker.getTrueSentences(form);
+				if(!sentenceItr.hasNext())
+					System.out.println("Empty sentence iterator");
+				while(sentenceItr.hasNext()) {
+					GdlSentence trueSentence = sentenceItr.next();
+					//System.out.println("Adding prop for sentence " + trueSentence);
+					Proposition trueProp = new Proposition(trueSentence.toTerm());
+					trueProp.addInput(trueComponent);
+					trueComponent.addOutput(trueProp);
+					//components.put(trueSentence, trueProp);
+					components.put(trueSentence, trueComponent);
+				}
+			}
+
+			if(verbose)
+				System.out.println("Checking whether " + form + " is a functional constant...");
+			addToConstants(form, constantChecker, constantForms);
+			addFormToCompletedValues(form, completedSentenceFormValues, constantChecker);
+			
+			return;
+		}
+		if(verbose)
+			System.out.println();
+		//TODO: Adjust "recursive forms" appropriately
+		//Add a temporary sentence form thingy? ...
+		Map<GdlSentence, Component> temporaryComponents = new HashMap<GdlSentence, Component>();
+		Map<GdlSentence, Component> temporaryNegations = new HashMap<GdlSentence, Component>();
+		addSentenceForm(form, model, description, components, negations, trueComponent, falseComponent, usingBase, usingInput, Collections.singleton(form), temporaryComponents, temporaryNegations, constantForms, constantChecker, completedSentenceFormValues);
+		//TODO: Pass these over groups of multiple sentence forms
+		if(verbose && !temporaryComponents.isEmpty())
+			System.out.println("Processing temporary components...");
+		processTemporaryComponents(temporaryComponents, temporaryNegations, components, negations, trueComponent, falseComponent);
+		addFormToCompletedValues(form, completedSentenceFormValues, components);
+		//if(verbose)
+			//TODO: Add this, but with the correct total number of components (not just Propositions)
+			//System.out.println("  "+completedSentenceFormValues.get(form).size() + " components added");
+	}
+
+	/**
+	 * Adds the components for one stratum of the parallel build. Constant
+	 * forms are added first, then the ordinary forms concurrently on the pool,
+	 * then the self-recursive forms, whose temporary components are resolved
+	 * by rewiring the shared true/false constants. The completed sentence
+	 * values of the stratum are merged in once all of its forms are done.
+	 */
+	private static void addStratumToComponents(List<SentenceForm> stratum, ForkJoinPool pool,
+			final boolean verbose, final SentenceModel model, final List<Gdl> description,
+			final Map<GdlSentence, Component> components, final Map<GdlSentence, Component> negations,
+			final Constant trueComponent, final Constant falseComponent,
+			final boolean usingBase, final boolean usingInput,
+			final Map<SentenceForm, ConstantForm> constantForms, final ConstantChecker constantChecker,
+			final Map<SentenceForm, Collection<GdlSentence>> completedSentenceFormValues,
+			Map<SentenceForm, Set<SentenceForm>> dependencyGraph) {
+		List<SentenceForm> parallelForms = new ArrayList<SentenceForm>();
+		List<SentenceForm> recursiveForms = new ArrayList<SentenceForm>();
+		for(SentenceForm form : stratum) {
+			if(constantChecker.isConstantForm(form)) {
+				addFormToComponents(form, verbose, model, description, components, negations, trueComponent, falseComponent, usingBase, usingInput, constantForms, constantChecker, completedSentenceFormValues);
+			} else if(dependencyGraph.get(form) != null && dependencyGraph.get(form).contains(form)) {
+				recursiveForms.add(form);
+			} else {
+				parallelForms.add(form);
+			}
+		}
+
+		List<Callable<List<GdlSentence>>> tasks = new ArrayList<Callable<List<GdlSentence>>>(parallelForms.size());
+		for(final SentenceForm form : parallelForms) {
+			tasks.add(new Callable<List<GdlSentence>>() {
+				@Override
+				public List<GdlSentence> call() {
+					if(verbose)
+						System.out.println("Adding sentence form " + form);
+					//Not recursive, so these stay empty
+					Map<GdlSentence, Component> temporaryComponents = new HashMap<GdlSentence, Component>();
+					Map<GdlSentence, Component> temporaryNegations = new HashMap<GdlSentence, Component>();
+					//Everything the form adds is a sentence of the form, so
+					//record those rather than scan all the components
+					RecordingComponentMap formComponents = new RecordingComponentMap(components);
+					addSentenceForm(form, model, description, formComponents, negations, trueComponent, falseComponent, usingBase, usingInput, Collections.singleton(form), temporaryComponents, temporaryNegations, constantForms, constantChecker, completedSentenceFormValues);
+					return new ArrayList<GdlSentence>(formComponents.getAddedSentences());
+				}
+			});
+		}
+		List<Future<List<GdlSentence>>> results = pool.invokeAll(tasks);
+		for(int i = 0; i < parallelForms.size(); i++) {
+			try {
+				completedSentenceFormValues.put(parallelForms.get(i), results.get(i).get());
+			} catch(InterruptedException e) {
+				throw new RuntimeException(e);
+			} catch(ExecutionException e) {
+				throw new RuntimeException("Failed to add sentence form " + parallelForms.get(i), e.getCause());
+			}
+		}
+
+		for(SentenceForm form : recursiveForms) {
+			addFormToComponents(form, verbose, model, description, components, negations, trueComponent, falseComponent, usingBase, usingInput, constantForms, constantChecker, completedSentenceFormValues);
+		}
+	}
+
+	/**
+	 * A view of the shared components map for one form of the parallel build,
+	 * which passes everything through and remembers the sentences put into
+	 * it. It is only used by one thread.
+	 */
+	private static final class RecordingComponentMap extends AbstractMap<GdlSentence, Component> {
+		private final Map<GdlSentence, Component> components;
+		private final Set<GdlSentence> addedSentences = new HashSet<GdlSentence>();
+
+		public RecordingComponentMap(Map<GdlSentence, Component> components) {
+			this.components = components;
+		}
+
+		public Set<GdlSentence> getAddedSentences() {
+			return addedSentences;
+		}
+
+		@Override
+		public Component get(Object key) {
+			return components.get(key);
+		}
+
+		@Override
+		public boolean containsKey(Object key) {
+			return components.containsKey(key);
+		}
+
+		@Override
+		public Component put(GdlSentence key, Component value) {
+			addedSentences.add(key);
+			return components.put(key, value);
+		}
+
+		@Override
+		public Set<Entry<GdlSentence, Component>> entrySet() {
+			return components.entrySet();
+		}
+	}
+
+	/**
+	 * Splits the topological ordering into strata: each form is placed one
+	 * stratum after the latest of its dependencies (ignoring itself), so the
+	 * forms within a stratum never depend on one another.
+	 */
+	private static List<List<SentenceForm>> getStrata(List<SentenceForm> ordering,
+			Map<SentenceForm, Set<SentenceForm>> dependencyGraph, boolean usingBase, boolean usingInput) {
+		Map<SentenceForm, Integer> levels = new HashMap<SentenceForm, Integer>();
+		List<List<SentenceForm>> strata = new ArrayList<List<SentenceForm>>();
+		for(SentenceForm form : ordering) {
+			Set<SentenceForm> dependencies = new HashSet<SentenceForm>();
+			if(dependencyGraph.get(form) != null)
+				dependencies.addAll(dependencyGraph.get(form));
+			//The same extra constraints as in getTopologicalOrdering
+			if(usingBase && (form.getName().equals(TRUE) || form.getName().equals(NEXT) || form.getName().equals(INIT)))
+				dependencies.add(form.getCopyWithName("base"));
+			if(usingInput && (form.getName().equals(DOES) || form.getName().equals(LEGAL)))
+				dependencies.add(form.getCopyWithName("input"));
+
+			int level = 0;
+			for(SentenceForm dependency : dependencies) {
+				Integer dependencyLevel = levels.get(dependency);
+				if(dependencyLevel != null && !dependency.equals(form))
+					level = Math.max(level, dependencyLevel + 1);
+			}
+			levels.put(form, level);
+			while(strata.size() <= level)
+				strata.add(new ArrayList<SentenceForm>());
+			strata.get(level).add(form);
+		}
+		return strata;
+	}
+
 	/**
 	 * Changes the propositions contained in the propnet so that they correspond
 	 * to the outputs of the PropNetFactory. This is for consistency and for
@@ -658,8 +865,7 @@ public class OptimizingPropNetFactory {
 		for(Component in : inputs) {
 			if(in instanceof Constant && in.getValue()) {
 				//True constant: connect that to the component, done
-				in.addOutput(output);
-				output.addInput(in);
+				link(in, output);
 				return;
 			}		
 		}
@@ -672,24 +878,20 @@ public class OptimizingPropNetFactory {
 		Or or = new Or();
 		for(Component in : inputs) {
 			if(!(in instanceof Constant)) {
-				in.addOutput(or);
-				or.addInput(in);
+				link(in, or);
 			}
 		}
 		//What if they're all false? (Or inputs is empty?) Then no inputs at this point...
 		if(or.getInputs().isEmpty()) {
 			//Hook up to "false"
-			falseProp.addOutput(output);
-			output.addInput(falseProp);
+			link(falseProp, output);
 			return;
 		}
 		//If there's just one, on the other hand, don't use the or gate
 		if(or.getInputs().size() == 1) {
 			Component in = or.getSingleInput();
-			in.removeOutput(or);
-			or.removeInput(in);
-			in.addOutput(output);
-			output.addInput(in);
+			unlink(in, or);
+			link(in, output);
 			return;
 		}
 		or.addOutput(output);
@@ -770,8 +972,7 @@ public class OptimizingPropNetFactory {
 					|| relation.getName().equals(GOAL)) {
 				Proposition prop = new Proposition(relation.toTerm());
 				//Attach to true
-				trueComponent.addOutput(prop);
-				prop.addInput(trueComponent);
+				link(trueComponent, prop);
 				//Still want the same components;
 				//we just don't want this to be anonymized
 			}
@@ -931,18 +1132,21 @@ public class OptimizingPropNetFactory {
 
 							//Check if we're sharing a component with another sentence with a negation
 							//(i.e. look for "nots" in our outputs and use those instead)
-							Not existingNotOutput = getNotOutput(positive);
-							if(existingNotOutput != null) {
-								componentsToConnect.add(existingNotOutput);
-								negations.put(transformed, existingNotOutput);
-								continue; //to the next conjunct
+							//In a parallel build, another form may be doing the same.
+							synchronized(positive) {
+								Not existingNotOutput = getNotOutput(positive);
+								if(existingNotOutput != null) {
+									componentsToConnect.add(existingNotOutput);
+									negations.put(transformed, existingNotOutput);
+									continue; //to the next conjunct
+								}
+
+								Not not = new Not();
+								not.addInput(positive);
+								positive.addOutput(not);
+								negations.put(transformed, not);
+								conj = not;
 							}
-
-							Not not = new Not();
-							not.addInput(positive);
-							positive.addOutput(not);
-							negations.put(transformed, not);
-							conj = not;
 						}
 						if(conj == null)
 							System.out.println("null case with negated sentence " + transformed);
@@ -981,9 +1185,9 @@ public class OptimizingPropNetFactory {
 				if(input instanceof Constant || input.getInputs().size() == 0) {
 					realInputs.add(input);
 				} else {
-					realInputs.add(input.getSingleInput());
-					input.getSingleInput().removeOutput(input);
-					input.removeAllInputs();
+					Component realInput = input.getSingleInput();
+					realInputs.add(realInput);
+					unlink(realInput, input);
 				}
 			}
 
@@ -1050,8 +1254,7 @@ public class OptimizingPropNetFactory {
 		for(Component c : inputs) {
 			if(c instanceof Constant && !c.getValue()) {
 				//Connect false (c) to the output
-				output.addInput(c);
-				c.addOutput(output);
+				link(c, output);
 				return;
 			}
 		}
@@ -1060,28 +1263,44 @@ public class OptimizingPropNetFactory {
 		And and = new And();
 		for(Component in : inputs) {
 			if(!(in instanceof Constant)) {
-				in.addOutput(and);
-				and.addInput(in);
+				link(in, and);
 			}
 		}
 		//What if they're all true? (Or inputs is empty?) Then no inputs at this point...
 		if(and.getInputs().isEmpty()) {
 			//Hook up to "true"
-			trueProp.addOutput(output);
-			output.addInput(trueProp);
+			link(trueProp, output);
 			return;
 		}
 		//If there's just one, on the other hand, don't use the and gate
 		if(and.getInputs().size() == 1) {
 			Component in = and.getSingleInput();
-			in.removeOutput(and);
-			and.removeInput(in);
-			in.addOutput(output);
-			output.addInput(in);
+			unlink(in, and);
+			link(in, output);
 			return;
 		}
 		and.addOutput(output);
 		output.addInput(and);
 	}
 
+	/**
+	 * Connects input to output. In a parallel build, several sentence forms
+	 * may connect to the same earlier component at once, so the update to
+	 * the input's output set is synchronized on the input. The output must
+	 * be a component created by the calling thread.
+	 */
+	private static void link(Component input, Component output) {
+		synchronized(input) {
+			input.addOutput(output);
+		}
+		output.addInput(input);
+	}
+
+	private static void unlink(Component input, Component output) {
+		synchronized(input) {
+			input.removeOutput(output);
+		}
+		output.removeInput(input);
+	}
+
 }
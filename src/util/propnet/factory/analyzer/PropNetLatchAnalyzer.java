@@ -0,0 +1,682 @@
+package util.propnet.factory.analyzer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import util.gdl.grammar.GdlSentence;
+import util.gdl.grammar.GdlTerm;
+import util.logging.GamerLogger;
+import util.propnet.architecture.CompiledPropNet;
+
+/**
+ * The PropNetLatchAnalyzer looks for invariants of the base propositions of a
+ * CompiledPropNet, by evaluating parts of the network in three-valued
+ * (true/false/unknown) logic:
+ * <ul>
+ * <li>A positive latch is a base that, once true, stays true whatever the
+ * other bases and the moves are; a negative latch is a base that, once false,
+ * stays false.</li>
+ * <li>A mutex group is a set of bases of which at most one is true in every
+ * reachable state. Candidates are the bases that only differ in one argument,
+ * such as <tt>(cell 1 1 x)</tt>, <tt>(cell 1 1 o)</tt> and
+ * <tt>(cell 1 1 b)</tt>; a candidate is kept when at most one of them is true
+ * in the initial state, and at most one of their transitions can be true
+ * after any state in which at most one of them is. Each role is assumed to
+ * make exactly one legal move, so the moves in question are enumerated, and a
+ * candidate that would need too many cases to check is dropped, as are all
+ * remaining candidates once a fixed amount of work has been spent.</li>
+ * </ul>
+ * Everything reported is proved for the network, rather than observed, so it
+ * holds in every reachable state. The analysis is conservative: it can miss
+ * latches and mutexes that need more than one step of reasoning.
+ *
+ * Once the latches are known, getSettled() tells which goal and terminal
+ * propositions are already decided by the latched bases of a state, and so
+ * keep their value for the rest of the game. The mutex groups add to what
+ * the latches decide: once a positive latch is true, every other base in a
+ * group with it is false for the rest of the game.
+ */
+public final class PropNetLatchAnalyzer
+{
+	/** The most cases that a single mutex candidate may take to check. */
+	private static final int MAX_MUTEX_CASES = 4096;
+	/** The most component evaluations to spend on mutex groups in total. */
+	private static final long MAX_MUTEX_WORK = 50000000L;
+
+	/** The network being analyzed. */
+	private final CompiledPropNet net;
+	private final int[] types;
+	private final int[] inputOffsets;
+	private final int[] inputIds;
+	private final int numBases;
+	private final int words;
+
+	/** The role of each input id, or -1 for inputs that are never legal. */
+	private final int[] inputRoles;
+	/** The legal proposition id of each input id, or -1. */
+	private final int[] inputLegalIds;
+
+	/** The bases that stay true once true, as a bitset over base ids. */
+	private final long[] positiveLatches;
+	/** The bases that stay false once false, as a bitset over base ids. */
+	private final long[] negativeLatches;
+	/** Sets of base ids of which at most one is ever true. */
+	private final List<int[]> mutexGroups;
+	/** For each base id, the other bases in a mutex group with it, or null. */
+	private final int[][] mutexPartners;
+	/** The goal and terminal propositions and their inputs, in id order. */
+	private final int[] outcomeCone;
+
+	/** Scratch space for getCone(). */
+	private final boolean[] inCone;
+	private final int[] stack;
+	/** The components evaluated so far while looking for mutex groups. */
+	private long mutexWork = 0;
+
+	public PropNetLatchAnalyzer(CompiledPropNet net)
+	{
+		this.net = net;
+		this.types = net.getTypes();
+		this.inputOffsets = net.getInputOffsets();
+		this.inputIds = net.getInputIds();
+		this.numBases = net.getNumBases();
+		this.words = (net.getSize() + 63) / 64;
+		this.inCone = new boolean[net.getSize()];
+		this.stack = new int[net.getSize()];
+
+		inputRoles = new int[net.getSize()];
+		inputLegalIds = new int[net.getSize()];
+		Arrays.fill(inputRoles, -1);
+		Arrays.fill(inputLegalIds, -1);
+		int[][] legalIds = net.getLegalIds();
+		int[][] legalInputIds = net.getLegalInputIds();
+		for ( int r = 0; r < legalIds.length; r++ )
+		{
+			for ( int i = 0; i < legalIds[r].length; i++ )
+			{
+				if ( legalInputIds[r][i] >= 0 )
+				{
+					inputRoles[legalInputIds[r][i]] = r;
+					inputLegalIds[legalInputIds[r][i]] = legalIds[r][i];
+				}
+			}
+		}
+
+		positiveLatches = new long[(numBases + 63) / 64];
+		negativeLatches = new long[(numBases + 63) / 64];
+		mutexGroups = new ArrayList<int[]>();
+		mutexPartners = new int[numBases][];
+
+		List<Integer> outcomes = new ArrayList<Integer>();
+		for ( int[] goalIds : net.getGoalIds() )
+		{
+			for ( int id : goalIds )
+			{
+				outcomes.add(id);
+			}
+		}
+		if ( net.getTerminalId() >= 0 )
+		{
+			outcomes.add(net.getTerminalId());
+		}
+		outcomeCone = getCone(toArray(outcomes));
+	}
+
+	/**
+	 * Runs the analysis on a network and logs what it found.
+	 *
+	 * @param net
+	 *            The network to analyze.
+	 * @return The analyzer, holding the results.
+	 */
+	public static PropNetLatchAnalyzer analyze(CompiledPropNet net)
+	{
+		long startTime = System.currentTimeMillis();
+		PropNetLatchAnalyzer analyzer = new PropNetLatchAnalyzer(net);
+		analyzer.findLatches();
+		analyzer.findMutexGroups();
+		GamerLogger.log("StateMachine", "Found " + analyzer.getLatchCount() + " latches and " + analyzer.mutexGroups.size() + " mutex groups among " + net.getNumBases() + " bases in " + (System.currentTimeMillis() - startTime) + " ms.");
+		return analyzer;
+	}
+
+	/**
+	 * Finds the positive and negative latches: a base is a positive latch when
+	 * its transition is true whenever the base is true and everything else is
+	 * unknown, and a negative latch when its transition is false whenever the
+	 * base is false.
+	 */
+	public void findLatches()
+	{
+		int[] baseTransitionIds = net.getBaseTransitionIds();
+		long[] knownTrue = new long[words];
+		long[] knownFalse = new long[words];
+		for ( int base = 0; base < numBases; base++ )
+		{
+			int[] cone = getCone(new int[] { baseTransitionIds[base] });
+
+			clear(knownTrue, knownFalse);
+			setBit(knownTrue, base);
+			evaluate(cone, knownTrue, knownFalse);
+			if ( getBit(knownTrue, baseTransitionIds[base]) )
+			{
+				setBit(positiveLatches, base);
+			}
+
+			clear(knownTrue, knownFalse);
+			setBit(knownFalse, base);
+			evaluate(cone, knownTrue, knownFalse);
+			if ( getBit(knownFalse, baseTransitionIds[base]) )
+			{
+				setBit(negativeLatches, base);
+			}
+		}
+	}
+
+	/**
+	 * Finds the mutex groups, as described above.
+	 */
+	public void findMutexGroups()
+	{
+		long[] initialBases = getInitialBases();
+		Set<Set<Integer>> seen = new HashSet<Set<Integer>>();
+		for ( int[] candidate : getMutexCandidates() )
+		{
+			Set<Integer> members = new HashSet<Integer>();
+			int nInitial = 0;
+			for ( int base : candidate )
+			{
+				members.add(base);
+				if ( getBit(initialBases, base) )
+				{
+					nInitial++;
+				}
+			}
+			if ( mutexWork > MAX_MUTEX_WORK )
+			{
+				GamerLogger.log("StateMachine", "Gave up looking for mutex groups after " + mutexWork + " component evaluations.");
+				break;
+			}
+			if ( nInitial <= 1 && seen.add(members) && isInductiveMutex(candidate) )
+			{
+				mutexGroups.add(candidate);
+				addMutexPartners(candidate);
+			}
+		}
+	}
+
+	/**
+	 * Getter method.
+	 *
+	 * @return The bases that stay true once they are true, as a bitset over
+	 *         base ids.
+	 */
+	public long[] getPositiveLatches()
+	{
+		return positiveLatches;
+	}
+
+	/**
+	 * Getter method.
+	 *
+	 * @return The bases that stay false once they are false, as a bitset over
+	 *         base ids.
+	 */
+	public long[] getNegativeLatches()
+	{
+		return negativeLatches;
+	}
+
+	/**
+	 * Getter method.
+	 *
+	 * @return Sets of base ids of which at most one is true in any reachable
+	 *         state.
+	 */
+	public List<int[]> getMutexGroups()
+	{
+		return mutexGroups;
+	}
+
+	/**
+	 * Returns the number of bases in the given state that are held by a latch:
+	 * positive latches that are true and negative latches that are false. This
+	 * count never goes down as the game goes on, so the settled outcomes only
+	 * need to be recomputed when it goes up.
+	 *
+	 * @param bases
+	 *            A bitset over base ids (which may be longer than needed).
+	 * @return The number of latched bases.
+	 */
+	public int getLatchedCount(long[] bases)
+	{
+		int count = 0;
+		for ( int w = 0; w < positiveLatches.length; w++ )
+		{
+			count += Long.bitCount(bases[w] & positiveLatches[w]);
+			count += Long.bitCount(~bases[w] & negativeLatches[w]);
+		}
+		return count;
+	}
+
+	/**
+	 * Works out which goal and terminal propositions are already settled by
+	 * the latched bases of a state, treating every other base and every move
+	 * as unknown. Afterwards, a goal or terminal id whose bit is set in
+	 * <tt>knownTrue</tt> (or <tt>knownFalse</tt>) has that value in this state
+	 * and in every state that follows it.
+	 *
+	 * @param bases
+	 *            A bitset over base ids (which may be longer than needed).
+	 * @param knownTrue
+	 *            A bitset over all component ids, which is overwritten.
+	 * @param knownFalse
+	 *            A bitset over all component ids, which is overwritten.
+	 */
+	public void getSettled(long[] bases, long[] knownTrue, long[] knownFalse)
+	{
+		clear(knownTrue, knownFalse);
+		for ( int w = 0; w < positiveLatches.length; w++ )
+		{
+			knownTrue[w] |= bases[w] & positiveLatches[w];
+			knownFalse[w] |= ~bases[w] & negativeLatches[w];
+
+			long latched = bases[w] & positiveLatches[w];
+			while ( latched != 0 )
+			{
+				int[] partners = mutexPartners[(w << 6) + Long.numberOfTrailingZeros(latched)];
+				if ( partners != null )
+				{
+					for ( int partner : partners )
+					{
+						setBit(knownFalse, partner);
+					}
+				}
+				latched &= latched - 1;
+			}
+		}
+		evaluate(outcomeCone, knownTrue, knownFalse);
+	}
+
+	/* Helper methods */
+
+	private int getLatchCount()
+	{
+		int count = 0;
+		for ( int w = 0; w < positiveLatches.length; w++ )
+		{
+			count += Long.bitCount(positiveLatches[w]) + Long.bitCount(negativeLatches[w]);
+		}
+		return count;
+	}
+
+	/**
+	 * Records the other members of a mutex group as partners of each member.
+	 */
+	private void addMutexPartners(int[] group)
+	{
+		for ( int base : group )
+		{
+			int[] partners = (mutexPartners[base] == null) ? new int[0] : mutexPartners[base];
+			int n = partners.length;
+			partners = Arrays.copyOf(partners, n + group.length - 1);
+			for ( int other : group )
+			{
+				if ( other != base )
+				{
+					partners[n++] = other;
+				}
+			}
+			mutexPartners[base] = partners;
+		}
+	}
+
+	/**
+	 * Groups the bases that have the same name and the same arguments in all
+	 * but one position, for each position.
+	 */
+	private List<int[]> getMutexCandidates()
+	{
+		GdlSentence[] sentences = net.getBaseSentences();
+		Map<String, List<Integer>> groups = new LinkedHashMap<String, List<Integer>>();
+		for ( int base = 0; base < numBases; base++ )
+		{
+			GdlSentence sentence = sentences[base];
+			if ( sentence.arity() == 0 )
+			{
+				continue;
+			}
+			List<GdlTerm> body = sentence.getBody();
+			for ( int position = 0; position < body.size(); position++ )
+			{
+				StringBuilder key = new StringBuilder().append(sentence.getName()).append('/').append(position);
+				for ( int i = 0; i < body.size(); i++ )
+				{
+					key.append(' ').append(i == position ? "_" : body.get(i).toString());
+				}
+				List<Integer> group = groups.get(key.toString());
+				if ( group == null )
+				{
+					group = new ArrayList<Integer>();
+					groups.put(key.toString(), group);
+				}
+				group.add(base);
+			}
+		}
+
+		List<int[]> candidates = new ArrayList<int[]>();
+		for ( List<Integer> group : groups.values() )
+		{
+			if ( group.size() > 1 )
+			{
+				candidates.add(toArray(group));
+			}
+		}
+		return candidates;
+	}
+
+	/**
+	 * Returns whether, from any state with at most one of the given bases
+	 * true, at most one of their transitions can be true, for every
+	 * combination of moves that can be legal there.
+	 */
+	private boolean isInductiveMutex(int[] group)
+	{
+		int[] baseTransitionIds = net.getBaseTransitionIds();
+		int[] transitions = new int[group.length];
+		for ( int i = 0; i < group.length; i++ )
+		{
+			transitions[i] = baseTransitionIds[group[i]];
+		}
+		int[] cone = getCone(transitions);
+
+		// The moves that matter are the inputs that the transitions read,
+		// grouped by role; every other input of a role is false.
+		int nRoles = net.getRoles().size();
+		List<List<Integer>> roleInputs = new ArrayList<List<Integer>>();
+		for ( int r = 0; r < nRoles; r++ )
+		{
+			roleInputs.add(new ArrayList<Integer>());
+		}
+		List<Integer> legalRoots = new ArrayList<Integer>();
+		Set<Integer> seenInputs = new HashSet<Integer>();
+		for ( int id : cone )
+		{
+			for ( int i = inputOffsets[id]; i < inputOffsets[id + 1]; i++ )
+			{
+				int input = inputIds[i];
+				if ( types[input] == CompiledPropNet.TYPE_INPUT && inputRoles[input] >= 0 && seenInputs.add(input) )
+				{
+					roleInputs.get(inputRoles[input]).add(input);
+					legalRoots.add(inputLegalIds[input]);
+				}
+			}
+		}
+		int[] legalCone = getCone(toArray(legalRoots));
+
+		long nCases = group.length + 1;
+		for ( List<Integer> inputs : roleInputs )
+		{
+			nCases *= inputs.size() + 1;
+			if ( nCases > MAX_MUTEX_CASES )
+			{
+				return false;
+			}
+		}
+
+		long[] knownTrue = new long[words];
+		long[] knownFalse = new long[words];
+		int[] choices = new int[nRoles];
+		for ( int trueMember = -1; trueMember < group.length; trueMember++ )
+		{
+			Arrays.fill(choices, 0);
+			while ( true )
+			{
+				clear(knownTrue, knownFalse);
+				for ( int i = 0; i < group.length; i++ )
+				{
+					setBit(i == trueMember ? knownTrue : knownFalse, group[i]);
+				}
+				// Choice 0 means that the role makes some move the group
+				// does not read; choice i > 0 means the i-th input it reads.
+				for ( int r = 0; r < nRoles; r++ )
+				{
+					List<Integer> inputs = roleInputs.get(r);
+					for ( int i = 0; i < inputs.size(); i++ )
+					{
+						setBit(choices[r] == i + 1 ? knownTrue : knownFalse, inputs.get(i));
+					}
+				}
+
+				evaluate(legalCone, knownTrue, knownFalse);
+				mutexWork += legalCone.length;
+				boolean possible = true;
+				for ( int r = 0; r < nRoles && possible; r++ )
+				{
+					if ( choices[r] > 0 && getBit(knownFalse, inputLegalIds[roleInputs.get(r).get(choices[r] - 1)]) )
+					{
+						possible = false;
+					}
+				}
+				if ( possible )
+				{
+					evaluate(cone, knownTrue, knownFalse);
+					mutexWork += cone.length;
+					int nPossible = 0;
+					for ( int transition : transitions )
+					{
+						if ( !getBit(knownFalse, transition) )
+						{
+							nPossible++;
+						}
+					}
+					if ( nPossible > 1 )
+					{
+						return false;
+					}
+				}
+
+				int r = 0;
+				while ( r < nRoles && ++choices[r] > roleInputs.get(r).size() )
+				{
+					choices[r] = 0;
+					r++;
+				}
+				if ( r == nRoles )
+				{
+					break;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the bases of the initial state, by evaluating the network with
+	 * only the init proposition true.
+	 */
+	private long[] getInitialBases()
+	{
+		long[] knownTrue = new long[words];
+		long[] knownFalse = new long[words];
+		for ( int id = 0; id < net.getFirstEvaluatedId(); id++ )
+		{
+			setBit(id == net.getInitId() ? knownTrue : knownFalse, id);
+		}
+		int[] baseTransitionIds = net.getBaseTransitionIds();
+		evaluate(getCone(baseTransitionIds), knownTrue, knownFalse);
+
+		long[] bases = new long[(numBases + 63) / 64];
+		for ( int base = 0; base < numBases; base++ )
+		{
+			if ( getBit(knownTrue, baseTransitionIds[base]) )
+			{
+				setBit(bases, base);
+			}
+		}
+		return bases;
+	}
+
+	/**
+	 * Returns the given ids and every evaluated component they depend on, in
+	 * increasing id order, which is a topological order.
+	 */
+	private int[] getCone(int[] roots)
+	{
+		int n = 0;
+		for ( int root : roots )
+		{
+			if ( !inCone[root] )
+			{
+				inCone[root] = true;
+				stack[n++] = root;
+			}
+		}
+		// The stack doubles as the list of everything visited.
+		for ( int next = 0; next < n; next++ )
+		{
+			int id = stack[next];
+			for ( int i = inputOffsets[id]; i < inputOffsets[id + 1]; i++ )
+			{
+				if ( !inCone[inputIds[i]] && inputIds[i] >= net.getFirstEvaluatedId() )
+				{
+					inCone[inputIds[i]] = true;
+					stack[n++] = inputIds[i];
+				}
+			}
+		}
+
+		int[] cone = new int[n];
+		int size = 0;
+		for ( int i = 0; i < n; i++ )
+		{
+			inCone[stack[i]] = false;
+			if ( stack[i] >= net.getFirstEvaluatedId() )
+			{
+				cone[size++] = stack[i];
+			}
+		}
+		cone = Arrays.copyOf(cone, size);
+		Arrays.sort(cone);
+		return cone;
+	}
+
+	/**
+	 * Evaluates the given components, in order, in three-valued logic. The
+	 * values of the sources are taken from the bitsets; constants are filled
+	 * in, and any other source that is in neither bitset is unknown.
+	 */
+	private void evaluate(int[] cone, long[] knownTrue, long[] knownFalse)
+	{
+		for ( int id : cone )
+		{
+			boolean isTrue, isFalse;
+			switch ( types[id] )
+			{
+			case CompiledPropNet.TYPE_AND:
+				isTrue = true;
+				isFalse = false;
+				for ( int i = inputOffsets[id]; i < inputOffsets[id + 1]; i++ )
+				{
+					isTrue &= isKnownTrue(knownTrue, inputIds[i]);
+					isFalse |= isKnownFalse(knownTrue, knownFalse, inputIds[i]);
+				}
+				break;
+			case CompiledPropNet.TYPE_OR:
+				isTrue = false;
+				isFalse = true;
+				for ( int i = inputOffsets[id]; i < inputOffsets[id + 1]; i++ )
+				{
+					isTrue |= isKnownTrue(knownTrue, inputIds[i]);
+					isFalse &= isKnownFalse(knownTrue, knownFalse, inputIds[i]);
+				}
+				break;
+			case CompiledPropNet.TYPE_NOT:
+				isTrue = isKnownFalse(knownTrue, knownFalse, inputIds[inputOffsets[id]]);
+				isFalse = isKnownTrue(knownTrue, inputIds[inputOffsets[id]]);
+				break;
+			default:
+				isTrue = isKnownTrue(knownTrue, inputIds[inputOffsets[id]]);
+				isFalse = isKnownFalse(knownTrue, knownFalse, inputIds[inputOffsets[id]]);
+				break;
+			}
+			assign(knownTrue, id, isTrue);
+			assign(knownFalse, id, isFalse);
+		}
+	}
+
+	/**
+	 * Returns whether a component is known to be true, counting the true
+	 * constant as known.
+	 */
+	private boolean isKnownTrue(long[] knownTrue, int id)
+	{
+		return types[id] == CompiledPropNet.TYPE_TRUE || getBit(knownTrue, id);
+	}
+
+	/**
+	 * Returns whether a component is known to be false, counting the false
+	 * constant and propositions without inputs as known, and the init
+	 * proposition too unless it has been set to true.
+	 */
+	private boolean isKnownFalse(long[] knownTrue, long[] knownFalse, int id)
+	{
+		if ( getBit(knownFalse, id) )
+		{
+			return true;
+		}
+		switch ( types[id] )
+		{
+		case CompiledPropNet.TYPE_FALSE:
+			return true;
+		case CompiledPropNet.TYPE_PROPOSITION:
+			return id < net.getFirstEvaluatedId();
+		case CompiledPropNet.TYPE_INIT:
+			return !getBit(knownTrue, id);
+		default:
+			return false;
+		}
+	}
+
+	private void clear(long[] knownTrue, long[] knownFalse)
+	{
+		Arrays.fill(knownTrue, 0L);
+		Arrays.fill(knownFalse, 0L);
+	}
+
+	private static boolean getBit(long[] bits, int id)
+	{
+		return (bits[id >>> 6] & (1L << id)) != 0;
+	}
+
+	private static void setBit(long[] bits, int id)
+	{
+		bits[id >>> 6] |= 1L << id;
+	}
+
+	private static void assign(long[] bits, int id, boolean value)
+	{
+		if ( value )
+		{
+			bits[id >>> 6] |= 1L << id;
+		}
+		else
+		{
+			bits[id >>> 6] &= ~(1L << id);
+		}
+	}
+
+	private static int[] toArray(List<Integer> list)
+	{
+		int[] array = new int[list.size()];
+		for ( int i = 0; i < array.length; i++ )
+		{
+			array[i] = list.get(i);
+		}
+		return array;
+	}
+}
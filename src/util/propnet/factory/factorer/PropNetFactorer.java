@@ -0,0 +1,502 @@
+package util.propnet.factory.factorer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import util.gdl.grammar.GdlConstant;
+import util.gdl.grammar.GdlFunction;
+import util.gdl.grammar.GdlPool;
+import util.gdl.grammar.GdlSentence;
+import util.gdl.grammar.GdlTerm;
+import util.logging.GamerLogger;
+import util.propnet.architecture.Component;
+import util.propnet.architecture.PropNet;
+import util.propnet.architecture.components.And;
+import util.propnet.architecture.components.Constant;
+import util.propnet.architecture.components.Not;
+import util.propnet.architecture.components.Or;
+import util.propnet.architecture.components.Proposition;
+import util.propnet.architecture.components.Transition;
+import util.statemachine.Role;
+
+/**
+ * The PropNetFactorer splits a PropNet into independent sub-networks, or
+ * factors, along the lines of "Factoring General Games using Propositional
+ * Automata" by Evan Cox et al.
+ *
+ * Two base propositions belong to the same factor when one of them feeds the
+ * transition of the other, or when both feed the same legal proposition or
+ * transition. A move belongs to the factor of its legal proposition and of
+ * every transition that it feeds, so moves that affect several parts of the
+ * game glue those parts together. The init proposition and constants are
+ * shared, and do not connect anything.
+ *
+ * Each factor is returned as a new PropNet over copies of its components, for
+ * the same roles as the original. It contains:
+ * <ul>
+ * <li>the bases, transitions, inputs and legal propositions of the factor;</li>
+ * <li>the goal propositions and terminal proposition whose values depend only
+ * on bases and inputs of the factor;</li>
+ * <li>legal, goal and terminal propositions that depend on no base or input
+ * at all, which are copied into every factor;</li>
+ * <li>goal and terminal propositions that depend on several factors (e.g. the
+ * terminal test of a game made of two boards, which ends when both boards are
+ * finished), which are also copied into every factor, together with the bases
+ * of other factors that they read. Those outside bases are frozen: their
+ * transition keeps whatever value they have, starting from their value in
+ * the initial state of the game. getCoupledPropositions() returns these
+ * propositions;</li>
+ * <li>for each role, a <tt>noop</tt> move that is legal whenever none of the
+ * role's moves in the factor are, since the role is then moving in another
+ * part of the game. A role that already has a <tt>noop</tt> move in the
+ * factor keeps it instead.</li>
+ * </ul>
+ * A factor therefore always has the terminal test of the game, and every role
+ * always has a legal move in it. A factor whose outcome depends on outside
+ * bases may never become terminal by itself, though, since the other parts of
+ * the game do not move on.
+ *
+ * When the game does not split, factor() returns the original network alone.
+ */
+public final class PropNetFactorer
+{
+	/** The original network; it is not modified. */
+	private final PropNet propNet;
+	/** Components whose value is set from outside rather than computed. */
+	private final Set<Component> sources;
+	/** The union-find parent of each relevant component. */
+	private final Map<Component, Component> parents;
+	/** Goal and terminal propositions that depend on more than one factor. */
+	private final Set<Proposition> coupled;
+	/** The base sentences that are true in the initial state of the game. */
+	private final Set<GdlSentence> initialState;
+
+	public PropNetFactorer(PropNet propNet, Set<GdlSentence> initialState)
+	{
+		this.propNet = propNet;
+		this.initialState = initialState;
+		this.parents = new HashMap<Component, Component>();
+		this.coupled = new HashSet<Proposition>();
+
+		sources = new HashSet<Component>();
+		sources.addAll(propNet.getBasePropositions().values());
+		sources.addAll(propNet.getInputPropositions().values());
+		if ( propNet.getInitProposition() != null )
+		{
+			sources.add(propNet.getInitProposition());
+		}
+	}
+
+	/**
+	 * Splits the network into factors and logs how it went.
+	 *
+	 * @param propNet
+	 *            The network to split; it is not modified.
+	 * @param initialState
+	 *            The base sentences that are true in the initial state of the
+	 *            game, which give the outside bases of a factor their values.
+	 * @return The factors of the network, or a list holding only the original
+	 *         network if it does not split.
+	 */
+	public static List<PropNet> factor(PropNet propNet, Set<GdlSentence> initialState)
+	{
+		long startTime = System.currentTimeMillis();
+		List<PropNet> factors = new PropNetFactorer(propNet, initialState).run();
+		StringBuilder sizes = new StringBuilder();
+		for ( PropNet factor : factors )
+		{
+			sizes.append(sizes.length() == 0 ? "" : ", ").append(factor.getSize());
+		}
+		GamerLogger.log("StateMachine", "Factored propnet of " + propNet.getSize() + " components into " + factors.size() + " factor(s) of [" + sizes + "] components in " + (System.currentTimeMillis() - startTime) + " ms.");
+		return factors;
+	}
+
+	/**
+	 * Finds the factors of the network.
+	 *
+	 * @return The factors of the network, or a list holding only the original
+	 *         network if it does not split.
+	 */
+	public List<PropNet> run()
+	{
+		// Everything that feeds the next state or the legal moves decides
+		// which parts of the game interact.
+		List<Component> roots = new ArrayList<Component>();
+		for ( Component component : propNet.getComponents() )
+		{
+			if ( component instanceof Transition )
+			{
+				roots.add(component);
+			}
+		}
+		for ( Set<Proposition> legals : propNet.getLegalPropositions().values() )
+		{
+			roots.addAll(legals);
+		}
+		Set<Component> relevant = getCone(roots);
+
+		for ( Component component : relevant )
+		{
+			parents.put(component, component);
+		}
+		for ( Component component : relevant )
+		{
+			if ( sources.contains(component) )
+			{
+				continue;
+			}
+			for ( Component input : component.getInputs() )
+			{
+				if ( !isShared(input) )
+				{
+					union(component, input);
+				}
+			}
+		}
+		for ( Proposition base : propNet.getBasePropositions().values() )
+		{
+			union(base, base.getSingleInput());
+		}
+		for ( Set<Proposition> legals : propNet.getLegalPropositions().values() )
+		{
+			for ( Proposition legal : legals )
+			{
+				Proposition input = propNet.getLegalInputMap().get(legal);
+				if ( input != null && parents.containsKey(input) )
+				{
+					union(legal, input);
+				}
+			}
+		}
+
+		// Only groups with bases in them make up a factor; anything else
+		// (e.g. a move that is always legal) is copied into every factor.
+		Map<Component, Set<Component>> groups = new HashMap<Component, Set<Component>>();
+		for ( Proposition base : propNet.getBasePropositions().values() )
+		{
+			groups.put(find(base), new HashSet<Component>());
+		}
+		Set<Component> everywhere = new HashSet<Component>();
+		for ( Component component : relevant )
+		{
+			Set<Component> group = groups.get(find(component));
+			if ( group != null )
+			{
+				group.add(component);
+			}
+			else if ( !isShared(component) )
+			{
+				everywhere.add(component);
+			}
+		}
+		if ( groups.size() <= 1 )
+		{
+			return Collections.singletonList(propNet);
+		}
+
+		// Goals and terminality belong to a factor when they only look at it,
+		// and to every factor when they look at several.
+		List<Proposition> outcomes = new ArrayList<Proposition>();
+		for ( Set<Proposition> goals : propNet.getGoalPropositions().values() )
+		{
+			outcomes.addAll(goals);
+		}
+		if ( propNet.getTerminalProposition() != null )
+		{
+			outcomes.add(propNet.getTerminalProposition());
+		}
+		for ( Proposition outcome : outcomes )
+		{
+			Set<Component> cone = getCone(Collections.singletonList(outcome));
+			Set<Component> owners = new HashSet<Component>();
+			for ( Component component : cone )
+			{
+				if ( sources.contains(component) && parents.containsKey(component) && groups.containsKey(find(component)) )
+				{
+					owners.add(find(component));
+				}
+			}
+			if ( owners.isEmpty() )
+			{
+				everywhere.addAll(cone);
+			}
+			else if ( owners.size() == 1 )
+			{
+				groups.get(owners.iterator().next()).addAll(cone);
+			}
+			else
+			{
+				everywhere.addAll(cone);
+				coupled.add(outcome);
+			}
+		}
+
+		List<PropNet> factors = new ArrayList<PropNet>();
+		for ( Set<Component> group : groups.values() )
+		{
+			group.addAll(everywhere);
+			factors.add(copy(group));
+		}
+		return factors;
+	}
+
+	/**
+	 * Getter method.
+	 *
+	 * @return The goal and terminal propositions of the original network that
+	 *         depend on more than one factor, and so read frozen outside bases
+	 *         in every factor. Empty until run() has been called.
+	 */
+	public Set<Proposition> getCoupledPropositions()
+	{
+		return coupled;
+	}
+
+	/* Helper methods */
+
+	/**
+	 * Returns the given components and everything they depend on, stopping at
+	 * base, input and init propositions.
+	 */
+	private Set<Component> getCone(List<? extends Component> roots)
+	{
+		Set<Component> cone = new HashSet<Component>(roots);
+		LinkedList<Component> queue = new LinkedList<Component>(roots);
+		while ( !queue.isEmpty() )
+		{
+			Component component = queue.removeFirst();
+			if ( sources.contains(component) )
+			{
+				continue;
+			}
+			for ( Component input : component.getInputs() )
+			{
+				if ( cone.add(input) )
+				{
+					queue.add(input);
+				}
+			}
+		}
+		return cone;
+	}
+
+	/**
+	 * Returns whether the component is shared between factors rather than
+	 * connecting them: the init proposition, constants, and propositions
+	 * without inputs that are not bases or inputs.
+	 */
+	private boolean isShared(Component component)
+	{
+		if ( component == propNet.getInitProposition() || component instanceof Constant )
+		{
+			return true;
+		}
+		return component instanceof Proposition && component.getInputs().isEmpty() && !sources.contains(component);
+	}
+
+	private Component find(Component component)
+	{
+		Component root = component;
+		while ( parents.get(root) != root )
+		{
+			root = parents.get(root);
+		}
+		while ( component != root )
+		{
+			Component next = parents.get(component);
+			parents.put(component, root);
+			component = next;
+		}
+		return root;
+	}
+
+	private void union(Component a, Component b)
+	{
+		Component rootA = find(a);
+		Component rootB = find(b);
+		if ( rootA != rootB )
+		{
+			parents.put(rootA, rootB);
+		}
+	}
+
+	/**
+	 * Builds a new PropNet over fresh copies of the given components, plus the
+	 * shared components that they read, keeping only the links between them.
+	 * Bases whose transition is not in the group are frozen, and every role
+	 * gets a noop move.
+	 */
+	private PropNet copy(Set<Component> group)
+	{
+		Set<Component> members = new HashSet<Component>(group);
+		for ( Component component : group )
+		{
+			for ( Component input : component.getInputs() )
+			{
+				if ( isShared(input) )
+				{
+					members.add(input);
+				}
+			}
+		}
+		if ( propNet.getInitProposition() != null )
+		{
+			members.add(propNet.getInitProposition());
+		}
+
+		Map<Component, Component> copies = new HashMap<Component, Component>();
+		for ( Component component : members )
+		{
+			copies.put(component, copyOf(component));
+		}
+		for ( Component component : members )
+		{
+			Component copy = copies.get(component);
+			for ( Component output : component.getOutputs() )
+			{
+				Component outputCopy = copies.get(output);
+				if ( outputCopy != null )
+				{
+					copy.addOutput(outputCopy);
+					outputCopy.addInput(copy);
+				}
+			}
+		}
+
+		Set<Component> components = new HashSet<Component>(copies.values());
+		for ( Proposition base : propNet.getBasePropositions().values() )
+		{
+			if ( members.contains(base) && !members.contains(base.getSingleInput()) )
+			{
+				freeze((Proposition) copies.get(base), (Proposition) copies.get(propNet.getInitProposition()), components);
+			}
+		}
+		for ( Role role : propNet.getRoles() )
+		{
+			addNoop(role, components);
+		}
+		return new PropNet(propNet.getRoles(), components);
+	}
+
+	/**
+	 * Gives a base from another factor a transition that keeps its value, so
+	 * that it holds its value in the initial state for the rest of the game.
+	 */
+	private void freeze(Proposition base, Proposition init, Set<Component> components)
+	{
+		Component keep = base;
+		if ( init != null && initialState.contains(base.getName().toSentence()) )
+		{
+			keep = new Or();
+			link(base, keep);
+			link(init, keep);
+			components.add(keep);
+		}
+		Transition transition = new Transition();
+		link(keep, transition);
+		link(transition, base);
+		components.add(transition);
+	}
+
+	/**
+	 * Adds a <tt>noop</tt> move for the role, legal whenever none of the
+	 * role's other legal propositions among the components are true, unless
+	 * the role already has one.
+	 */
+	private void addNoop(Role role, Set<Component> components)
+	{
+		GdlConstant roleName = role.getName().getName();
+		GdlConstant noop = GdlPool.getConstant("noop");
+		GdlTerm legalName = GdlPool.getFunction(GdlPool.getConstant("legal"), new GdlTerm[] { roleName, noop });
+		GdlTerm doesName = GdlPool.getFunction(GdlPool.getConstant("does"), new GdlTerm[] { roleName, noop });
+
+		List<Proposition> legals = new ArrayList<Proposition>();
+		Proposition does = null;
+		for ( Component component : components )
+		{
+			if ( !(component instanceof Proposition) )
+			{
+				continue;
+			}
+			GdlTerm name = ((Proposition) component).getName();
+			if ( name.equals(legalName) )
+			{
+				return;
+			}
+			else if ( name.equals(doesName) )
+			{
+				does = (Proposition) component;
+			}
+			else if ( name instanceof GdlFunction && ((GdlFunction) name).getName().getValue().equals("legal") && ((GdlFunction) name).get(0).equals(roleName) )
+			{
+				legals.add((Proposition) component);
+			}
+		}
+
+		Component source;
+		if ( legals.isEmpty() )
+		{
+			source = new Constant(true);
+		}
+		else
+		{
+			Or anyLegal = new Or();
+			for ( Proposition legal : legals )
+			{
+				link(legal, anyLegal);
+			}
+			source = new Not();
+			link(anyLegal, source);
+			components.add(anyLegal);
+		}
+		Proposition legal = new Proposition(legalName);
+		link(source, legal);
+		components.add(source);
+		components.add(legal);
+		if ( does == null )
+		{
+			components.add(new Proposition(doesName));
+		}
+	}
+
+	private static void link(Component input, Component output)
+	{
+		input.addOutput(output);
+		output.addInput(input);
+	}
+
+	private static Component copyOf(Component component)
+	{
+		if ( component instanceof Proposition )
+		{
+			return new Proposition(((Proposition) component).getName());
+		}
+		else if ( component instanceof And )
+		{
+			return new And();
+		}
+		else if ( component instanceof Or )
+		{
+			return new Or();
+		}
+		else if ( component instanceof Not )
+		{
+			return new Not();
+		}
+		else if ( component instanceof Transition )
+		{
+			return new Transition();
+		}
+		else if ( component instanceof Constant )
+		{
+			return new Constant(component.getValue());
+		}
+		throw new RuntimeException("Unexpected component type " + component.getClass().getName());
+	}
+}
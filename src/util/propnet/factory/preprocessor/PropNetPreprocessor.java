@@ -0,0 +1,409 @@
+package util.propnet.factory.preprocessor;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import util.logging.GamerLogger;
+import util.propnet.architecture.Component;
+import util.propnet.architecture.PropNet;
+import util.propnet.architecture.components.And;
+import util.propnet.architecture.components.Constant;
+import util.propnet.architecture.components.Not;
+import util.propnet.architecture.components.Or;
+import util.propnet.architecture.components.Proposition;
+import util.propnet.architecture.components.Transition;
+
+/**
+ * The PropNetPreprocessor simplifies a PropNet before a state machine is
+ * built on it. It runs the following passes, each in time roughly linear in
+ * the size of the network, and records how long each one took:
+ * <ol>
+ * <li>Constant folding: gates and propositions with Constant inputs are
+ * replaced by constants or lose those inputs.</li>
+ * <li>Gate collapsing: single-input And and Or gates, and pairs of Not gates,
+ * are removed and their outputs connected straight to their input.</li>
+ * <li>Pruning: components that cannot reach a legal, goal, terminal or
+ * transition node are removed.</li>
+ * <li>Ordering: a topological ordering of the remaining components.</li>
+ * </ol>
+ * Base, input, init, legal, goal and terminal propositions are never removed,
+ * and transitions are never folded, so the result plays the same game.
+ *
+ * Note that the passes rewire the components of the original PropNet in
+ * place; the PropNet given to the preprocessor should not be used afterwards.
+ */
+public final class PropNetPreprocessor
+{
+	/** The original network. */
+	private final PropNet propNet;
+	/** The surviving components. */
+	private final Set<Component> components;
+	/** Propositions that must survive every pass. */
+	private final Set<Component> keep;
+	/** Components whose value is set from outside rather than computed. */
+	private final Set<Component> sources;
+	/** The time each pass took, in milliseconds, in the order they ran. */
+	private final Map<String, Long> passTimes;
+
+	private Constant trueConstant = null;
+	private Constant falseConstant = null;
+	private List<Component> ordering = null;
+
+	public PropNetPreprocessor(PropNet propNet)
+	{
+		this.propNet = propNet;
+		this.components = new HashSet<Component>(propNet.getComponents());
+		this.passTimes = new LinkedHashMap<String, Long>();
+
+		sources = new HashSet<Component>();
+		sources.addAll(propNet.getBasePropositions().values());
+		sources.addAll(propNet.getInputPropositions().values());
+		if ( propNet.getInitProposition() != null )
+		{
+			sources.add(propNet.getInitProposition());
+		}
+
+		keep = new HashSet<Component>(sources);
+		for ( Set<Proposition> legals : propNet.getLegalPropositions().values() )
+		{
+			keep.addAll(legals);
+		}
+		for ( Set<Proposition> goals : propNet.getGoalPropositions().values() )
+		{
+			keep.addAll(goals);
+		}
+		if ( propNet.getTerminalProposition() != null )
+		{
+			keep.add(propNet.getTerminalProposition());
+		}
+	}
+
+	/**
+	 * Runs every pass on the network, logs the timings, and returns a new
+	 * PropNet over the surviving components.
+	 *
+	 * @param propNet
+	 *            The network to simplify; it is modified in place.
+	 * @return The simplified network.
+	 */
+	public static PropNet process(PropNet propNet)
+	{
+		PropNetPreprocessor preprocessor = new PropNetPreprocessor(propNet);
+		PropNet result = preprocessor.run();
+		GamerLogger.log("StateMachine", "Preprocessed propnet from " + propNet.getSize() + " to " + result.getSize() + " components: " + preprocessor.getPassTimes());
+		return result;
+	}
+
+	/**
+	 * Returns a topological ordering of every component in the network, in
+	 * which base, input and init propositions and components without inputs
+	 * come first, and every other component comes after all of its inputs.
+	 * Runs in O(V+E).
+	 *
+	 * @param propNet
+	 *            The network to order.
+	 * @return The components of the network, in topological order.
+	 */
+	public static List<Component> getTopologicalOrdering(PropNet propNet)
+	{
+		Set<Component> sources = new HashSet<Component>();
+		sources.addAll(propNet.getBasePropositions().values());
+		sources.addAll(propNet.getInputPropositions().values());
+		if ( propNet.getInitProposition() != null )
+		{
+			sources.add(propNet.getInitProposition());
+		}
+		return getTopologicalOrdering(propNet.getComponents(), sources);
+	}
+
+	/**
+	 * Runs all of the passes, in order.
+	 *
+	 * @return A new PropNet over the surviving components.
+	 */
+	public PropNet run()
+	{
+		long startTime = System.currentTimeMillis();
+		foldConstants();
+		passTimes.put("fold", System.currentTimeMillis() - startTime);
+
+		startTime = System.currentTimeMillis();
+		collapseGates();
+		passTimes.put("collapse", System.currentTimeMillis() - startTime);
+
+		startTime = System.currentTimeMillis();
+		prune();
+		passTimes.put("prune", System.currentTimeMillis() - startTime);
+
+		startTime = System.currentTimeMillis();
+		ordering = getTopologicalOrdering(components, sources);
+		passTimes.put("order", System.currentTimeMillis() - startTime);
+
+		return new PropNet(propNet.getRoles(), components);
+	}
+
+	/**
+	 * Getter method.
+	 *
+	 * @return The time taken by each pass that has run, in milliseconds.
+	 */
+	public Map<String, Long> getPassTimes()
+	{
+		return passTimes;
+	}
+
+	/**
+	 * Getter method.
+	 *
+	 * @return The topological ordering computed by the last pass, or null if
+	 *         run() has not been called.
+	 */
+	public List<Component> getOrdering()
+	{
+		return ordering;
+	}
+
+	/**
+	 * Replaces gates and propositions whose values are fixed by Constant
+	 * inputs. An And with a false input (or an Or with a true input) becomes
+	 * a constant; otherwise the constant input is dropped, and a gate left
+	 * with no inputs becomes a constant too. A Not of a constant becomes the
+	 * opposite constant. A proposition with a constant input hands its
+	 * outputs over to that constant, and is removed unless it must be kept.
+	 */
+	public void foldConstants()
+	{
+		LinkedList<Component> queue = new LinkedList<Component>(components);
+		while ( !queue.isEmpty() )
+		{
+			Component component = queue.removeFirst();
+			if ( !components.contains(component) || sources.contains(component) )
+			{
+				continue;
+			}
+
+			if ( (component instanceof And) || (component instanceof Or) )
+			{
+				boolean absorbing = (component instanceof Or);
+				boolean absorbed = false;
+				for ( Component input : new ArrayList<Component>(component.getInputs()) )
+				{
+					if ( input instanceof Constant )
+					{
+						if ( input.getValue() == absorbing )
+						{
+							absorbed = true;
+							break;
+						}
+						disconnect(input, component);
+					}
+				}
+				if ( absorbed )
+				{
+					replaceWithConstant(component, absorbing, queue);
+				}
+				else if ( component.getInputs().isEmpty() )
+				{
+					replaceWithConstant(component, !absorbing, queue);
+				}
+			}
+			else if ( component instanceof Not )
+			{
+				Component input = component.getSingleInput();
+				if ( input instanceof Constant )
+				{
+					replaceWithConstant(component, !input.getValue(), queue);
+				}
+			}
+			else if ( component instanceof Proposition )
+			{
+				if ( component.getInputs().size() == 1 && component.getSingleInput() instanceof Constant )
+				{
+					Component input = component.getSingleInput();
+					moveOutputs(component, input, queue);
+					if ( !keep.contains(component) )
+					{
+						removeComponent(component);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Removes And and Or gates with a single input, and pairs of Not gates,
+	 * connecting their outputs straight to the underlying input.
+	 */
+	public void collapseGates()
+	{
+		LinkedList<Component> queue = new LinkedList<Component>(components);
+		while ( !queue.isEmpty() )
+		{
+			Component component = queue.removeFirst();
+			if ( !components.contains(component) )
+			{
+				continue;
+			}
+
+			if ( ((component instanceof And) || (component instanceof Or)) && component.getInputs().size() == 1 )
+			{
+				moveOutputs(component, component.getSingleInput(), queue);
+				removeComponent(component);
+			}
+			else if ( component instanceof Not && component.getSingleInput() instanceof Not )
+			{
+				moveOutputs(component, component.getSingleInput().getSingleInput(), queue);
+				removeComponent(component);
+			}
+		}
+	}
+
+	/**
+	 * Removes every component that cannot reach a legal, goal, terminal or
+	 * transition node, keeping base, input and init propositions regardless.
+	 */
+	public void prune()
+	{
+		Set<Component> reachable = new HashSet<Component>();
+		LinkedList<Component> queue = new LinkedList<Component>();
+		for ( Component component : components )
+		{
+			if ( keep.contains(component) || component instanceof Transition )
+			{
+				reachable.add(component);
+				queue.add(component);
+			}
+		}
+		while ( !queue.isEmpty() )
+		{
+			Component component = queue.removeFirst();
+			for ( Component input : component.getInputs() )
+			{
+				if ( reachable.add(input) )
+				{
+					queue.add(input);
+				}
+			}
+		}
+
+		for ( Component component : new ArrayList<Component>(components) )
+		{
+			if ( !reachable.contains(component) )
+			{
+				removeComponent(component);
+			}
+		}
+	}
+
+	/* Helper methods */
+
+	private static List<Component> getTopologicalOrdering(Set<Component> components, Set<Component> sources)
+	{
+		List<Component> order = new ArrayList<Component>(components.size());
+		Map<Component, Integer> pendingInputs = new HashMap<Component, Integer>();
+		LinkedList<Component> ready = new LinkedList<Component>();
+		for ( Component component : components )
+		{
+			if ( sources.contains(component) || component.getInputs().isEmpty() )
+			{
+				ready.add(component);
+			}
+			else
+			{
+				pendingInputs.put(component, component.getInputs().size());
+			}
+		}
+
+		while ( !ready.isEmpty() )
+		{
+			Component component = ready.removeFirst();
+			order.add(component);
+			for ( Component output : component.getOutputs() )
+			{
+				Integer pending = pendingInputs.get(output);
+				if ( pending == null )
+				{
+					continue;
+				}
+				if ( pending == 1 )
+				{
+					pendingInputs.remove(output);
+					ready.add(output);
+				}
+				else
+				{
+					pendingInputs.put(output, pending - 1);
+				}
+			}
+		}
+
+		if ( !pendingInputs.isEmpty() )
+		{
+			throw new RuntimeException("Propnet contains a cycle that does not pass through a transition (" + pendingInputs.size() + " components unordered)");
+		}
+		return order;
+	}
+
+	private void replaceWithConstant(Component component, boolean value, LinkedList<Component> queue)
+	{
+		moveOutputs(component, getConstant(value), queue);
+		removeComponent(component);
+	}
+
+	private Constant getConstant(boolean value)
+	{
+		if ( value && trueConstant == null )
+		{
+			trueConstant = new Constant(true);
+			components.add(trueConstant);
+		}
+		else if ( !value && falseConstant == null )
+		{
+			falseConstant = new Constant(false);
+			components.add(falseConstant);
+		}
+		return value ? trueConstant : falseConstant;
+	}
+
+	/**
+	 * Connects every output of <tt>from</tt> to <tt>to</tt> instead, and
+	 * queues those outputs to be looked at again.
+	 */
+	private void moveOutputs(Component from, Component to, LinkedList<Component> queue)
+	{
+		for ( Component output : new ArrayList<Component>(from.getOutputs()) )
+		{
+			disconnect(from, output);
+			output.addInput(to);
+			to.addOutput(output);
+			queue.add(output);
+		}
+	}
+
+	private void disconnect(Component input, Component output)
+	{
+		input.removeOutput(output);
+		output.removeInput(input);
+	}
+
+	private void removeComponent(Component component)
+	{
+		for ( Component input : component.getInputs() )
+		{
+			input.removeOutput(component);
+		}
+		for ( Component output : component.getOutputs() )
+		{
+			output.removeInput(component);
+		}
+		component.removeAllInputs();
+		component.removeAllOutputs();
+		components.remove(component);
+	}
+}
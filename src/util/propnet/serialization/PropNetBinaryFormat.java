@@ -0,0 +1,366 @@
+package util.propnet.serialization;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import util.gdl.grammar.Gdl;
+import util.gdl.grammar.GdlConstant;
+import util.gdl.grammar.GdlFunction;
+import util.gdl.grammar.GdlPool;
+import util.gdl.grammar.GdlTerm;
+import util.propnet.architecture.Component;
+import util.propnet.architecture.PropNet;
+import util.propnet.architecture.components.And;
+import util.propnet.architecture.components.Constant;
+import util.propnet.architecture.components.Not;
+import util.propnet.architecture.components.Or;
+import util.propnet.architecture.components.Proposition;
+import util.propnet.architecture.components.Transition;
+import util.statemachine.Role;
+
+/**
+ * PropNetBinaryFormat reads and writes propnets in a flat, versioned binary
+ * format, as an alternative to Java serialization of the component graph.
+ * Everything is written and read with loops over tables, so there is no
+ * recursion and no need for a large stack, and files are read through a
+ * memory-mapped FileChannel.
+ *
+ * The file is a sequence of big-endian ints (and one byte array):
+ * <pre>
+ *   magic "GGPN", version
+ *   string table:      count, then (byte length, UTF-8 bytes) per string
+ *   term table:        count, then (string id, arity, arity term ids) per
+ *                      term; a constant has arity -1, and every term comes
+ *                      after the terms in its body
+ *   description:       count, then one string id per Gdl, for checking that
+ *                      the file is for the right game
+ *   roles:             count, then one string id per role name
+ *   component table:   count n, then n type bytes, then n name term ids
+ *                      (-1 for anything but a proposition)
+ *   edge arrays:       n + 1 input offsets, then the input ids of every
+ *                      component, as in CompiledPropNet
+ * </pre>
+ * Outputs are rebuilt from the inputs. Names are rebuilt bottom-up through
+ * the GdlPool, so the loaded propnet shares its GDL with the rest of the
+ * player.
+ */
+public final class PropNetBinaryFormat {
+    /** The first four bytes of every file: "GGPN". */
+    public static final int MAGIC = 0x4747504E;
+    /** The version of the format that this class writes. */
+    public static final int VERSION = 1;
+
+    /* Component type codes. */
+    private static final byte TYPE_PROPOSITION = 0;
+    private static final byte TYPE_AND = 1;
+    private static final byte TYPE_OR = 2;
+    private static final byte TYPE_NOT = 3;
+    private static final byte TYPE_TRANSITION = 4;
+    private static final byte TYPE_TRUE = 5;
+    private static final byte TYPE_FALSE = 6;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private PropNetBinaryFormat() {
+    }
+
+    /**
+     * Writes a propnet, along with the description it was built from, to a
+     * file.
+     */
+    public static void write(List<Gdl> description, PropNet theNetwork, File theFile) throws IOException {
+        List<Component> components = new ArrayList<Component>(theNetwork.getComponents());
+        Map<Component, Integer> componentIds = new HashMap<Component, Integer>();
+        for (int i = 0; i < components.size(); i++) {
+            componentIds.put(components.get(i), i);
+        }
+
+        // Build the string and term tables, with every term after its body.
+        List<String> strings = new ArrayList<String>();
+        Map<String, Integer> stringIds = new HashMap<String, Integer>();
+        List<GdlTerm> terms = new ArrayList<GdlTerm>();
+        Map<GdlTerm, Integer> termIds = new HashMap<GdlTerm, Integer>();
+        int[] names = new int[components.size()];
+        for (int i = 0; i < components.size(); i++) {
+            Component c = components.get(i);
+            names[i] = (c instanceof Proposition) ? addTerm(((Proposition) c).getName(), terms, termIds, strings, stringIds) : -1;
+        }
+        int[] descriptionIds = new int[description.size()];
+        for (int i = 0; i < description.size(); i++) {
+            descriptionIds[i] = addString(description.get(i).toString(), strings, stringIds);
+        }
+        List<Role> roles = theNetwork.getRoles();
+        int[] roleIds = new int[roles.size()];
+        for (int i = 0; i < roles.size(); i++) {
+            roleIds[i] = addString(roles.get(i).getName().getName().getValue(), strings, stringIds);
+        }
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(theFile), 1 << 16));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+
+            out.writeInt(strings.size());
+            for (String s : strings) {
+                byte[] bytes = s.getBytes(UTF8);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+
+            out.writeInt(terms.size());
+            for (GdlTerm term : terms) {
+                if (term instanceof GdlFunction) {
+                    GdlFunction function = (GdlFunction) term;
+                    out.writeInt(stringIds.get(function.getName().getValue()));
+                    out.writeInt(function.arity());
+                    for (GdlTerm arg : function.getBody()) {
+                        out.writeInt(termIds.get(arg));
+                    }
+                } else {
+                    out.writeInt(stringIds.get(((GdlConstant) term).getValue()));
+                    out.writeInt(-1);
+                }
+            }
+
+            writeInts(out, descriptionIds);
+            writeInts(out, roleIds);
+
+            out.writeInt(components.size());
+            for (Component c : components) {
+                out.writeByte(getType(c));
+            }
+            for (int name : names) {
+                out.writeInt(name);
+            }
+
+            int offset = 0;
+            for (Component c : components) {
+                out.writeInt(offset);
+                offset += c.getInputs().size();
+            }
+            out.writeInt(offset);
+            for (Component c : components) {
+                for (Component input : c.getInputs()) {
+                    out.writeInt(componentIds.get(input));
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Reads a propnet from a file through a memory-mapped buffer. Returns
+     * null if the file was written for a different description; throws an
+     * IOException if the file cannot be read or is not in a version of the
+     * format that this class understands.
+     */
+    public static PropNet read(File theFile, List<Gdl> description) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(theFile, "r");
+        MappedByteBuffer buffer;
+        try {
+            buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+        } finally {
+            file.close();
+        }
+        return read(buffer, description);
+    }
+
+    /**
+     * Reads a propnet from a buffer, as for read(File, List).
+     */
+    public static PropNet read(ByteBuffer buffer, List<Gdl> description) throws IOException {
+        if (buffer.remaining() < 8 || buffer.getInt() != MAGIC)
+            throw new IOException("Not a binary propnet file.");
+        int version = buffer.getInt();
+        if (version != VERSION)
+            throw new IOException("Unsupported binary propnet version " + version + "; expected " + VERSION + ".");
+
+        try {
+            String[] strings = new String[buffer.getInt()];
+            for (int i = 0; i < strings.length; i++) {
+                byte[] bytes = new byte[buffer.getInt()];
+                buffer.get(bytes);
+                strings[i] = new String(bytes, UTF8);
+            }
+
+            GdlTerm[] terms = new GdlTerm[buffer.getInt()];
+            for (int i = 0; i < terms.length; i++) {
+                GdlConstant name = GdlPool.getConstant(strings[buffer.getInt()]);
+                int arity = buffer.getInt();
+                if (arity < 0) {
+                    terms[i] = name;
+                } else {
+                    GdlTerm[] body = new GdlTerm[arity];
+                    for (int j = 0; j < arity; j++) {
+                        body[j] = terms[buffer.getInt()];
+                    }
+                    terms[i] = GdlPool.getFunction(name, body);
+                }
+            }
+
+            int[] descriptionIds = readInts(buffer);
+            if (descriptionIds.length != description.size())
+                return null;
+            for (int i = 0; i < descriptionIds.length; i++) {
+                if (!strings[descriptionIds[i]].equals(description.get(i).toString()))
+                    return null;
+            }
+
+            int[] roleIds = readInts(buffer);
+            List<Role> roles = new ArrayList<Role>(roleIds.length);
+            for (int roleId : roleIds) {
+                roles.add(new Role(GdlPool.getProposition(GdlPool.getConstant(strings[roleId]))));
+            }
+
+            int n = buffer.getInt();
+            byte[] types = new byte[n];
+            buffer.get(types);
+            int[] names = readInts(buffer, n);
+            int[] inputOffsets = readInts(buffer, n + 1);
+            int[] inputIds = readInts(buffer, inputOffsets[n]);
+
+            Component[] components = new Component[n];
+            for (int i = 0; i < n; i++) {
+                components[i] = createComponent(types[i], names[i] < 0 ? null : terms[names[i]]);
+            }
+            for (int i = 0; i < n; i++) {
+                for (int j = inputOffsets[i]; j < inputOffsets[i + 1]; j++) {
+                    Component input = components[inputIds[j]];
+                    components[i].addInput(input);
+                    input.addOutput(components[i]);
+                }
+            }
+
+            Set<Component> componentSet = new HashSet<Component>(n * 2);
+            for (Component c : components) {
+                componentSet.add(c);
+            }
+            return new PropNet(roles, componentSet);
+        } catch (RuntimeException e) {
+            // Out-of-range ids and truncated files end up here.
+            throw new IOException("Corrupt binary propnet file: " + e);
+        }
+    }
+
+    /* Helper methods */
+
+    /**
+     * Adds a term and everything in its body to the term table, children
+     * first, without recursing, and returns the id of the term.
+     */
+    private static int addTerm(GdlTerm root, List<GdlTerm> terms, Map<GdlTerm, Integer> termIds, List<String> strings, Map<String, Integer> stringIds) {
+        List<GdlTerm> stack = new ArrayList<GdlTerm>();
+        stack.add(root);
+        while (!stack.isEmpty()) {
+            GdlTerm term = stack.get(stack.size() - 1);
+            if (termIds.containsKey(term)) {
+                stack.remove(stack.size() - 1);
+                continue;
+            }
+            boolean ready = true;
+            if (term instanceof GdlFunction) {
+                for (GdlTerm arg : ((GdlFunction) term).getBody()) {
+                    if (!termIds.containsKey(arg)) {
+                        stack.add(arg);
+                        ready = false;
+                    }
+                }
+            } else if (!(term instanceof GdlConstant)) {
+                throw new IllegalArgumentException("Cannot write non-ground proposition name " + term);
+            }
+            if (ready) {
+                stack.remove(stack.size() - 1);
+                if (term instanceof GdlFunction)
+                    addString(((GdlFunction) term).getName().getValue(), strings, stringIds);
+                else
+                    addString(((GdlConstant) term).getValue(), strings, stringIds);
+                termIds.put(term, terms.size());
+                terms.add(term);
+            }
+        }
+        return termIds.get(root);
+    }
+
+    private static int addString(String s, List<String> strings, Map<String, Integer> stringIds) {
+        Integer id = stringIds.get(s);
+        if (id == null) {
+            id = strings.size();
+            stringIds.put(s, id);
+            strings.add(s);
+        }
+        return id;
+    }
+
+    private static byte getType(Component c) {
+        if (c instanceof Proposition)
+            return TYPE_PROPOSITION;
+        if (c instanceof And)
+            return TYPE_AND;
+        if (c instanceof Or)
+            return TYPE_OR;
+        if (c instanceof Not)
+            return TYPE_NOT;
+        if (c instanceof Transition)
+            return TYPE_TRANSITION;
+        if (c instanceof Constant)
+            return c.getValue() ? TYPE_TRUE : TYPE_FALSE;
+        throw new IllegalArgumentException("Cannot write component of type " + c.getClass().getName());
+    }
+
+    private static Component createComponent(byte type, GdlTerm name) throws IOException {
+        switch (type) {
+        case TYPE_PROPOSITION:
+            return new Proposition(name);
+        case TYPE_AND:
+            return new And();
+        case TYPE_OR:
+            return new Or();
+        case TYPE_NOT:
+            return new Not();
+        case TYPE_TRANSITION:
+            return new Transition();
+        case TYPE_TRUE:
+            return new Constant(true);
+        case TYPE_FALSE:
+            return new Constant(false);
+        default:
+            throw new IOException("Unknown component type " + type + " in binary propnet file.");
+        }
+    }
+
+    private static void writeInts(DataOutputStream out, int[] values) throws IOException {
+        out.writeInt(values.length);
+        for (int value : values) {
+            out.writeInt(value);
+        }
+    }
+
+    private static int[] readInts(ByteBuffer buffer) {
+        return readInts(buffer, buffer.getInt());
+    }
+
+    /**
+     * Reads <tt>n</tt> ints in bulk through an IntBuffer view of the buffer.
+     */
+    private static int[] readInts(ByteBuffer buffer, int n) {
+        int[] values = new int[n];
+        buffer.asIntBuffer().get(values);
+        buffer.position(buffer.position() + 4 * n);
+        return values;
+    }
+}
@@ -2,16 +2,14 @@ package util.propnet.serialization;
 
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
 
 import util.configuration.ProjectConfiguration;
 import util.gdl.grammar.Gdl;
@@ -29,7 +27,10 @@ import util.statemachine.Role;
  * known GDL description. Each propnet is saved in a file determined by the MD5
  * hash of the GDL description, along with a copy of the description, so that
  * when loading the PropNetCache can verify that it is getting the network for
- * the right game. Serialized networks are stored on disk, compressed.
+ * the right game. Networks are saved in the flat binary format of the
+ * PropNetBinaryFormat, which loads quickly through a memory-mapped file;
+ * networks saved by older versions as compressed Java serialization of the
+ * component graph can still be loaded.
  * 
  * This is designed to be used to supplement the existing @PropNetFactory,
  * which can generate a propnet given the game description. For a few games,
@@ -54,11 +55,12 @@ import util.statemachine.Role;
  *     2. Allowing players to load in propnets for games quickly, for running
  *        faster unit tests and benchmarks.
  * 
- * USAGE NOTE: When using this class, you may run into stack overflow errors
- * when loading very large networks, unless you increase your program's stack
- * space using the "-Xss20m" command line flag. If you still have problems,
- * increase the number "20" in that flag to something larger. The flag controls
- * how many megabytes of space are allocated to the stack.
+ * USAGE NOTE: When loading very large networks from the older serialized
+ * files, you may run into stack overflow errors, unless you increase your
+ * program's stack space using the "-Xss20m" command line flag. If you still
+ * have problems, increase the number "20" in that flag to something larger.
+ * The flag controls how many megabytes of space are allocated to the stack.
+ * Networks in the binary format do not need this.
  * 
  * @author Sam Schreiber
  */
@@ -68,9 +70,10 @@ public class PropNetCache {
      * the MD5 digest of the GDL description of the game, with a few minor
      * tweaks to make the result into a more reasonable filename. All of the
      * cached propnet files are stored in the "propNetCacheDirectory" that is
-     * defined in the ProjectConfiguration.
+     * defined in the ProjectConfiguration. The extension tells apart the
+     * binary format (".pnb") and the older serialized format (".net").
      */
-    private static File getCacheFile(List<Gdl> description) {
+    private static File getCacheFile(List<Gdl> description, String extension) {
         String gdlHash;
         try {
             MessageDigest md = MessageDigest.getInstance("MD5");
@@ -83,15 +86,35 @@ public class PropNetCache {
             return null;
         }
         
-        String cacheFilename = "propnet_" + gdlHash + ".net";        
+        String cacheFilename = "propnet_" + gdlHash + extension;        
         File theCacheFile = new File(ProjectConfiguration.propNetCacheDirectory, cacheFilename);
         return theCacheFile;
     }
     
     @SuppressWarnings("unchecked")
     public static PropNet loadNetworkFromCache(List<Gdl> description) {
-        File theCacheFile = getCacheFile(description);
-        if(!theCacheFile.exists()) {
+        File theBinaryFile = getCacheFile(description, ".pnb");
+        if(theBinaryFile != null && theBinaryFile.exists()) {
+            GamerLogger.log("StateMachine", "Loading propnet from binary cache file: " + theBinaryFile.getName());
+            long startTime = System.currentTimeMillis();
+            PropNet theNetwork;
+            try {
+                theNetwork = PropNetBinaryFormat.read(theBinaryFile, description);
+            } catch(IOException e) {
+                GamerLogger.logStackTrace("StateMachine", e);
+                return null;
+            }
+            if(theNetwork == null) {
+                GamerLogger.log("StateMachine", "When loading propnet from cache, found descriptions differed.");
+                return null;
+            }
+            addAnonymousPropositions(theNetwork);
+            GamerLogger.log("StateMachine", "Loaded propnet of " + theNetwork.getSize() + " components from cache in " + (System.currentTimeMillis() - startTime) + " ms.");
+            return theNetwork;
+        }
+
+        File theCacheFile = getCacheFile(description, ".net");
+        if(theCacheFile == null || !theCacheFile.exists()) {
             GamerLogger.log("StateMachine", "Could not find propnet in cache.");
             return null;
         }
@@ -128,26 +151,8 @@ public class PropNetCache {
             }
         }
         
-        Set<Proposition> toAdd = new HashSet<Proposition>();
-        for (Component c : theRawNetwork.getComponents())
-        {
-        	if (c instanceof Proposition) continue;
-        	Proposition dummy = new Proposition(GdlPool.getConstant("anon"));
-        	Set<Component> outputs = new HashSet<Component>(c.getOutputs());
-        	for (Component out : outputs)
-        	{
-        		if (out instanceof Proposition) continue;
-        		out.removeInput(c);
-        		c.removeOutput(out);
-        		c.addOutput(dummy);
-        		dummy.addInput(c);
-        		dummy.addOutput(out);
-        		out.addInput(dummy);
-        		toAdd.add(dummy);
-        	}
-        }
-        for (Proposition p : toAdd) theRawNetwork.addComponent(p);
-                
+        addAnonymousPropositions(theRawNetwork);
+
         // Immerse all of the GDL that we just deserialized.
         GamerLogger.log("StateMachine", "Loaded propnet from cache. Immersing in GDL pool...");        
         for(Component c : theRawNetwork.getComponents()) {
@@ -167,19 +172,38 @@ public class PropNetCache {
     }
     
     public static void saveNetworkToCache(List<Gdl> description, PropNet theNetwork) {
-        File theCacheFile = getCacheFile(description);
-        FileOutputStream outStream;
-        GZIPOutputStream zipStream;
-        ObjectOutputStream objStream;
+        File theCacheFile = getCacheFile(description, ".pnb");
         try {
-           outStream = new FileOutputStream(theCacheFile);
-           zipStream = new GZIPOutputStream(outStream);
-           objStream = new ObjectOutputStream(zipStream);
-           objStream.writeObject(description);
-           objStream.writeObject(theNetwork);
-           objStream.close();           
+           PropNetBinaryFormat.write(description, theNetwork, theCacheFile);
         } catch(Exception e) {
            GamerLogger.logStackTrace("StateMachine", e);
         };
     }
+
+    /**
+     * Puts an anonymous proposition between every pair of directly connected
+     * gates, so that gates always feed propositions, as the propnet state
+     * machines that load networks from the cache expect.
+     */
+    private static void addAnonymousPropositions(PropNet theNetwork) {
+        Set<Proposition> toAdd = new HashSet<Proposition>();
+        for (Component c : theNetwork.getComponents())
+        {
+        	if (c instanceof Proposition) continue;
+        	Proposition dummy = new Proposition(GdlPool.getConstant("anon"));
+        	Set<Component> outputs = new HashSet<Component>(c.getOutputs());
+        	for (Component out : outputs)
+        	{
+        		if (out instanceof Proposition) continue;
+        		out.removeInput(c);
+        		c.removeOutput(out);
+        		c.addOutput(dummy);
+        		dummy.addInput(c);
+        		dummy.addOutput(out);
+        		out.addInput(dummy);
+        		toAdd.add(dummy);
+        	}
+        }
+        for (Proposition p : toAdd) theNetwork.addComponent(p);
+    }
 }
\ No newline at end of file
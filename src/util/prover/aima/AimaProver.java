@@ -1,87 +1,117 @@
 package util.prover.aima;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
 
 import util.gdl.grammar.Gdl;
-import util.gdl.grammar.GdlDistinct;
 import util.gdl.grammar.GdlLiteral;
-import util.gdl.grammar.GdlNot;
-import util.gdl.grammar.GdlOr;
-import util.gdl.grammar.GdlRule;
 import util.gdl.grammar.GdlSentence;
 import util.prover.Prover;
+import util.prover.aima.bindings.Bindings;
+import util.prover.aima.bindings.GoalStack;
+import util.prover.aima.cache.DerivationCache;
 import util.prover.aima.cache.ProverCache;
+import util.prover.aima.knowledge.FactTable;
 import util.prover.aima.knowledge.KnowledgeBase;
-import util.prover.aima.renamer.VariableRenamer;
-import util.prover.aima.substituter.Substituter;
-import util.prover.aima.substitution.Substitution;
-import util.prover.aima.unifier.Unifier;
+import util.prover.aima.rule.CompiledLiteral;
+import util.prover.aima.rule.CompiledRule;
 
+/**
+ * The AimaProver answers queries by backward chaining over the rules of the
+ * game, caching every answer proven for each subgoal.
+ *
+ * Rules are compiled once, with their variables numbered, and a proof keeps
+ * all of its variable bindings in a single Bindings environment with a
+ * trail: using a rule pushes a frame of slots for its variables, and
+ * backtracking undoes the bindings on the trail. Unification therefore
+ * allocates nothing; new GDL objects are only built for the answers of a
+ * subgoal and the key it is cached under.
+ *
+ * Static relations, which depend on neither <tt>true</tt> nor <tt>does</tt>,
+ * are computed once when the prover is created and kept in a FactTable.
+ * Goals on them are matched directly against the table instead of being
+ * proven (and cached) again for every context.
+ *
+ * The compiled rules and the FactTable never change once the prover is
+ * created, and each query makes its own Bindings and GoalStack, so one
+ * AimaProver can answer queries from any number of threads at once. A
+ * DerivationCache, however, must only be used by one thread at a time.
+ */
 public final class AimaProver extends Prover
 {
 
 	private final KnowledgeBase knowledgeBase;
+	private final FactTable factTable;
 
 	public AimaProver(Set<Gdl> description)
 	{
 		knowledgeBase = new KnowledgeBase(description);
+		factTable = FactTable.compute(new ArrayList<Gdl>(description));
 	}
 
 	private Set<GdlSentence> ask(GdlSentence query, Set<GdlSentence> context, boolean askOne)
 	{
-		LinkedList<GdlLiteral> goals = new LinkedList<GdlLiteral>();
-		goals.add(query);
+		return ask(query, new DerivationCache(context), askOne);
+	}
+
+	private Set<GdlSentence> ask(GdlSentence query, DerivationCache derivations, boolean askOne)
+	{
+		CompiledRule compiledQuery = new CompiledRule(query, Collections.<GdlLiteral> emptyList());
+		Bindings bindings = new Bindings(derivations.getScratchPool());
+		GoalStack goals = new GoalStack();
 
-		Set<Substitution> answers = new HashSet<Substitution>();
-		ask(goals, new KnowledgeBase(context), new Substitution(), new ProverCache(), new VariableRenamer(), askOne, answers);
+		int frame = bindings.push(compiledQuery.getVariableCount());
+		goals.push(compiledQuery.getHead(), frame);
 
 		Set<GdlSentence> results = new HashSet<GdlSentence>();
-		for (Substitution theta : answers)
-		{
-			results.add(Substituter.substitute(query, theta));
-		}
+		ask(0, compiledQuery.getHead(), frame, goals, derivations.getContext(), bindings, derivations.getCache(), askOne, results);
 
 		return results;
 	}
 
-	private void ask(LinkedList<GdlLiteral> goals, KnowledgeBase context, Substitution theta, ProverCache cache, VariableRenamer renamer, boolean askOne, Set<Substitution> results)
+	/**
+	 * Proves the goals above base on the goal stack. Each time they are all
+	 * proven, the answer sentence (as bound at that point) is added to the
+	 * results, if there are any. Returns whether the goals were proven at
+	 * least once, leaving the goal stack and bindings as they were.
+	 */
+	private boolean ask(int base, CompiledLiteral answer, int answerFrame, GoalStack goals, KnowledgeBase context, Bindings bindings, ProverCache cache, boolean askOne, Set<GdlSentence> results)
 	{
-		if (goals.size() == 0)
-		{
-			results.add(theta);
-		}
-		else
+		if (goals.size() == base)
 		{
-			GdlLiteral literal = goals.removeFirst();
-			GdlLiteral qPrime = Substituter.substitute(literal, theta);
-
-			if (qPrime instanceof GdlDistinct)
-			{
-				GdlDistinct distinct = (GdlDistinct) qPrime;
-				askDistinct(distinct, goals, context, theta, cache, renamer, askOne, results);
-			}
-			else if (qPrime instanceof GdlNot)
-			{
-				GdlNot not = (GdlNot) qPrime;
-				askNot(not, goals, context, theta, cache, renamer, askOne, results);
-			}
-			else if (qPrime instanceof GdlOr)
-			{
-				GdlOr or = (GdlOr) qPrime;
-				askOr(or, goals, context, theta, cache, renamer, askOne, results);
-			}
-			else
+			if (results != null)
 			{
-				GdlSentence sentence = (GdlSentence) qPrime;
-				askSentence(sentence, goals, context, theta, cache, renamer, askOne, results);
+				results.add(bindings.substitute(answer, answerFrame));
 			}
+			return true;
+		}
 
-			goals.addFirst(literal);
+		CompiledLiteral literal = goals.peekLiteral();
+		int frame = goals.peekFrame();
+		goals.pop();
+
+		boolean found;
+		switch (literal.getKind())
+		{
+		case CompiledLiteral.DISTINCT:
+			found = askDistinct(literal, frame, base, answer, answerFrame, goals, context, bindings, cache, askOne, results);
+			break;
+		case CompiledLiteral.NOT:
+			found = askNot(literal, frame, base, answer, answerFrame, goals, context, bindings, cache, askOne, results);
+			break;
+		case CompiledLiteral.OR:
+			found = askOr(literal, frame, base, answer, answerFrame, goals, context, bindings, cache, askOne, results);
+			break;
+		default:
+			found = askSentence(literal, frame, base, answer, answerFrame, goals, context, bindings, cache, askOne, results);
+			break;
 		}
+
+		goals.push(literal, frame);
+		return found;
 	}
 
 	@Override
@@ -90,26 +120,36 @@ public final class AimaProver extends Prover
 		return ask(query, context, false);
 	}
 
-	private void askDistinct(GdlDistinct distinct, LinkedList<GdlLiteral> goals, KnowledgeBase context, Substitution theta, ProverCache cache, VariableRenamer renamer, boolean askOne, Set<Substitution> results)
+	/**
+	 * Like askAll(query, context), but reuses and extends the sentences already
+	 * proven for the same context by earlier queries.
+	 */
+	public Set<GdlSentence> askAll(GdlSentence query, DerivationCache derivations)
 	{
-		if (!distinct.getArg1().equals(distinct.getArg2()))
+		return ask(query, derivations, false);
+	}
+
+	private boolean askDistinct(CompiledLiteral distinct, int frame, int base, CompiledLiteral answer, int answerFrame, GoalStack goals, KnowledgeBase context, Bindings bindings, ProverCache cache, boolean askOne, Set<GdlSentence> results)
+	{
+		if (!bindings.equal(distinct.get(0), frame, distinct.get(1), frame))
 		{
-			ask(goals, context, theta, cache, renamer, askOne, results);
+			return ask(base, answer, answerFrame, goals, context, bindings, cache, askOne, results);
 		}
+		return false;
 	}
 
-	private void askNot(GdlNot not, LinkedList<GdlLiteral> goals, KnowledgeBase context, Substitution theta, ProverCache cache, VariableRenamer renamer, boolean askOne, Set<Substitution> results)
+	private boolean askNot(CompiledLiteral not, int frame, int base, CompiledLiteral answer, int answerFrame, GoalStack goals, KnowledgeBase context, Bindings bindings, ProverCache cache, boolean askOne, Set<GdlSentence> results)
 	{
-		LinkedList<GdlLiteral> notGoals = new LinkedList<GdlLiteral>();
-		notGoals.add(not.getBody());
-
-		Set<Substitution> notResults = new HashSet<Substitution>();
-		ask(notGoals, context, theta, cache, renamer, true, notResults);
+		int notBase = goals.size();
+		goals.push(not.getChild(0), frame);
+		boolean provable = ask(notBase, null, 0, goals, context, bindings, cache, true, null);
+		goals.truncate(notBase);
 
-		if (notResults.size() == 0)
+		if (!provable)
 		{
-			ask(goals, context, theta, cache, renamer, askOne, results);
+			return ask(base, answer, answerFrame, goals, context, bindings, cache, askOne, results);
 		}
+		return false;
 	}
 
 	@Override
@@ -119,58 +159,110 @@ public final class AimaProver extends Prover
 		return (results.size() > 0) ? results.iterator().next() : null;
 	}
 
-	private void askOr(GdlOr or, LinkedList<GdlLiteral> goals, KnowledgeBase context, Substitution theta, ProverCache cache, VariableRenamer renamer, boolean askOne, Set<Substitution> results)
+	/**
+	 * Like askOne(query, context), but reuses and extends the sentences already
+	 * proven for the same context by earlier queries.
+	 */
+	public GdlSentence askOne(GdlSentence query, DerivationCache derivations)
+	{
+		Set<GdlSentence> results = ask(query, derivations, true);
+		return (results.size() > 0) ? results.iterator().next() : null;
+	}
+
+	private boolean askOr(CompiledLiteral or, int frame, int base, CompiledLiteral answer, int answerFrame, GoalStack goals, KnowledgeBase context, Bindings bindings, ProverCache cache, boolean askOne, Set<GdlSentence> results)
 	{
-		for (int i = 0; i < or.arity(); i++)
+		boolean found = false;
+		for (int i = 0; i < or.getChildCount(); i++)
 		{
-			goals.addFirst(or.get(i));
-			ask(goals, context, theta, cache, renamer, askOne, results);
-			goals.removeFirst();
+			goals.push(or.getChild(i), frame);
+			found = ask(base, answer, answerFrame, goals, context, bindings, cache, askOne, results) || found;
+			goals.pop();
 
-			if (askOne && (results.size() > 0))
+			if (askOne && found)
 			{
 				break;
 			}
 		}
+		return found;
 	}
 
-	private void askSentence(GdlSentence sentence, LinkedList<GdlLiteral> goals, KnowledgeBase context, Substitution theta, ProverCache cache, VariableRenamer renamer, boolean askOne, Set<Substitution> results)
+	private boolean askFacts(CompiledLiteral sentence, int frame, int base, CompiledLiteral answer, int answerFrame, GoalStack goals, KnowledgeBase context, Bindings bindings, ProverCache cache, boolean askOne, Set<GdlSentence> results)
 	{
-		if (!cache.contains(sentence))
+		boolean found = false;
+		for (GdlSentence fact : factTable.fetch(sentence, frame, bindings))
 		{
-			List<GdlRule> candidates = new ArrayList<GdlRule>();
-			candidates.addAll(knowledgeBase.fetch(sentence));
-			candidates.addAll(context.fetch(sentence));
+			int mark = bindings.mark();
+			if (bindings.match(sentence, frame, fact))
+			{
+				found = ask(base, answer, answerFrame, goals, context, bindings, cache, askOne, results) || found;
+			}
+			bindings.undo(mark);
 
-			Set<Substitution> sentenceResults = new HashSet<Substitution>();
-			for (GdlRule rule : candidates)
+			if (askOne && found)
 			{
-				GdlRule r = renamer.rename(rule);
-				Substitution thetaPrime = Unifier.unify(r.getHead(), sentence);
-
-				if (thetaPrime != null)
-				{
-					LinkedList<GdlLiteral> sentenceGoals = new LinkedList<GdlLiteral>();
-					for (int i = 0; i < r.arity(); i++)
-					{
-						sentenceGoals.add(r.get(i));
-					}
-
-					ask(sentenceGoals, context, theta.compose(thetaPrime), cache, renamer, false, sentenceResults);
-				}
+				break;
 			}
+		}
+		return found;
+	}
 
-			cache.put(sentence, sentenceResults);
+	private boolean askSentence(CompiledLiteral sentence, int frame, int base, CompiledLiteral answer, int answerFrame, GoalStack goals, KnowledgeBase context, Bindings bindings, ProverCache cache, boolean askOne, Set<GdlSentence> results)
+	{
+		if (factTable.contains(sentence.getName()))
+		{
+			return askFacts(sentence, frame, base, answer, answerFrame, goals, context, bindings, cache, askOne, results);
 		}
 
-		for (Substitution thetaPrime : cache.get(sentence))
+		GdlSentence key = bindings.substitute(sentence, frame);
+		if (!cache.contains(key))
 		{
-			ask(goals, context, theta.compose(thetaPrime), cache, renamer, askOne, results);
-			if (askOne && (results.size() > 0))
+			Set<GdlSentence> sentenceResults = new HashSet<GdlSentence>();
+			askRules(sentence, frame, knowledgeBase.fetch(key), goals, context, bindings, cache, sentenceResults);
+			askRules(sentence, frame, context.fetch(key), goals, context, bindings, cache, sentenceResults);
+
+			cache.put(key, sentenceResults);
+		}
+
+		boolean found = false;
+		for (GdlSentence sentenceResult : cache.get(key))
+		{
+			int mark = bindings.mark();
+			if (bindings.match(sentence, frame, sentenceResult))
+			{
+				found = ask(base, answer, answerFrame, goals, context, bindings, cache, askOne, results) || found;
+			}
+			bindings.undo(mark);
+
+			if (askOne && found)
 			{
 				break;
 			}
 		}
+		return found;
+	}
+
+	/**
+	 * Adds every instance of the sentence that follows from one of the
+	 * candidate rules to the results.
+	 */
+	private void askRules(CompiledLiteral sentence, int frame, List<CompiledRule> candidates, GoalStack goals, KnowledgeBase context, Bindings bindings, ProverCache cache, Set<GdlSentence> results)
+	{
+		for (CompiledRule rule : candidates)
+		{
+			int ruleFrame = bindings.push(rule.getVariableCount());
+			int mark = bindings.mark();
+
+			if (bindings.unify(rule.getHead(), ruleFrame, sentence, frame))
+			{
+				int ruleBase = goals.size();
+				goals.pushBody(rule, ruleFrame);
+				ask(ruleBase, sentence, frame, goals, context, bindings, cache, false, results);
+				goals.truncate(ruleBase);
+			}
+
+			bindings.undo(mark);
+			bindings.pop(ruleFrame);
+		}
 	}
 
 	@Override
@@ -179,4 +271,13 @@ public final class AimaProver extends Prover
 		return askOne(query, context) != null;
 	}
 
+	/**
+	 * Like prove(query, context), but reuses and extends the sentences already
+	 * proven for the same context by earlier queries.
+	 */
+	public boolean prove(GdlSentence query, DerivationCache derivations)
+	{
+		return askOne(query, derivations) != null;
+	}
+
 }
@@ -0,0 +1,470 @@
+package util.prover.aima.bindings;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import util.gdl.grammar.GdlFunction;
+import util.gdl.grammar.GdlScratchPool;
+import util.gdl.grammar.GdlSentence;
+import util.gdl.grammar.GdlTerm;
+import util.gdl.grammar.GdlVariable;
+import util.prover.aima.rule.CompiledLiteral;
+import util.prover.aima.rule.CompiledTerm;
+
+/**
+ * Bindings is the variable environment of a single proof. Every use of a
+ * CompiledRule pushes a frame of slots, one per variable of the rule, and a
+ * variable is found at the frame's base plus its number. A slot holds either
+ * a ground term or another CompiledTerm together with the frame it belongs
+ * to, so bindings are shared rather than copied into new terms.
+ *
+ * Every binding is recorded on a trail, and undo() unbinds everything back
+ * to an earlier mark, so backtracking costs nothing more than popping the
+ * trail. Unifying, matching and comparing terms allocate nothing; only
+ * substitute() creates new GDL objects. Ground ones come from the GdlPool,
+ * but anything containing a variable comes from the GdlScratchPool given to
+ * the constructor, so the prover's temporary variables are never interned.
+ *
+ * Bindings are not safe to share between threads; each proof needs its own.
+ */
+public final class Bindings
+{
+
+	private static final int INITIAL_CAPACITY = 64;
+
+	private GdlTerm[] values;
+	private CompiledTerm[] terms;
+	private int[] frames;
+	private int size;
+
+	private int[] trail;
+	private int trailSize;
+
+	/** The result of the last call to dereference(). */
+	private GdlTerm derefGround;
+	private CompiledTerm derefTerm;
+	private int derefFrame;
+	private int derefSlot;
+
+	/** The name given to each unbound slot by the substitution in progress, or -1. */
+	private int[] names;
+	private int[] named;
+	private int namedCount;
+	private final List<GdlVariable> variables;
+	private final GdlScratchPool scratchPool;
+
+	public Bindings(GdlScratchPool scratchPool)
+	{
+		this.scratchPool = scratchPool;
+
+		values = new GdlTerm[INITIAL_CAPACITY];
+		terms = new CompiledTerm[INITIAL_CAPACITY];
+		frames = new int[INITIAL_CAPACITY];
+		size = 0;
+
+		trail = new int[INITIAL_CAPACITY];
+		trailSize = 0;
+
+		names = new int[INITIAL_CAPACITY];
+		Arrays.fill(names, -1);
+		named = new int[INITIAL_CAPACITY];
+		namedCount = 0;
+		variables = new ArrayList<GdlVariable>();
+	}
+
+	/**
+	 * Reserves a frame of unbound slots for the variables of a rule, and
+	 * returns its base.
+	 */
+	public int push(int count)
+	{
+		int base = size;
+		size += count;
+		if (size > values.length)
+		{
+			int capacity = Math.max(size, values.length * 2);
+			values = Arrays.copyOf(values, capacity);
+			terms = Arrays.copyOf(terms, capacity);
+			frames = Arrays.copyOf(frames, capacity);
+
+			int oldCapacity = names.length;
+			names = Arrays.copyOf(names, capacity);
+			Arrays.fill(names, oldCapacity, capacity, -1);
+			named = Arrays.copyOf(named, capacity);
+		}
+		return base;
+	}
+
+	/**
+	 * Releases the frame with the given base, and every frame above it. Their
+	 * slots must already have been unbound with undo().
+	 */
+	public void pop(int base)
+	{
+		size = base;
+	}
+
+	/**
+	 * Returns a mark that undo() can later return the bindings to.
+	 */
+	public int mark()
+	{
+		return trailSize;
+	}
+
+	/**
+	 * Unbinds every slot bound since the mark was taken.
+	 */
+	public void undo(int mark)
+	{
+		while (trailSize > mark)
+		{
+			int slot = trail[--trailSize];
+			values[slot] = null;
+			terms[slot] = null;
+		}
+	}
+
+	/**
+	 * Unifies two sentences, binding variables in either of them. On failure
+	 * some bindings may already have been made, so callers should undo() to
+	 * a mark taken beforehand.
+	 */
+	public boolean unify(CompiledLiteral x, int xFrame, CompiledLiteral y, int yFrame)
+	{
+		if (x.isGround())
+		{
+			return match(y, yFrame, x.getSentence());
+		}
+		else if (y.isGround())
+		{
+			return match(x, xFrame, y.getSentence());
+		}
+		else if (!x.getName().equals(y.getName()) || x.arity() != y.arity())
+		{
+			return false;
+		}
+
+		for (int i = 0; i < x.arity(); i++)
+		{
+			if (!unify(x.get(i), xFrame, y.get(i), yFrame))
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Matches a sentence against a ground sentence, binding variables in the
+	 * former only.
+	 */
+	public boolean match(CompiledLiteral x, int frame, GdlSentence sentence)
+	{
+		if (x.isGround())
+		{
+			return x.getSentence().equals(sentence);
+		}
+		else if (!x.getName().equals(sentence.getName()) || x.arity() != sentence.arity())
+		{
+			return false;
+		}
+
+		for (int i = 0; i < x.arity(); i++)
+		{
+			if (!match(x.get(i), frame, sentence.get(i)))
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns whether two terms are identical under the current bindings,
+	 * where unbound variables are only identical to themselves.
+	 */
+	public boolean equal(CompiledTerm x, int xFrame, CompiledTerm y, int yFrame)
+	{
+		dereference(x, xFrame);
+		GdlTerm xGround = derefGround;
+		CompiledTerm xTerm = derefTerm;
+		int xSlot = derefSlot;
+		int xDerefFrame = derefFrame;
+
+		dereference(y, yFrame);
+		if ((xSlot >= 0) || (derefSlot >= 0))
+		{
+			return xSlot == derefSlot;
+		}
+		else if (xGround != null)
+		{
+			return (derefGround != null) ? xGround.equals(derefGround) : equal(derefTerm, derefFrame, xGround);
+		}
+		else if (derefGround != null)
+		{
+			return equal(xTerm, xDerefFrame, derefGround);
+		}
+
+		CompiledTerm yTerm = derefTerm;
+		int yDerefFrame = derefFrame;
+		if (!xTerm.getName().equals(yTerm.getName()) || xTerm.arity() != yTerm.arity())
+		{
+			return false;
+		}
+		for (int i = 0; i < xTerm.arity(); i++)
+		{
+			if (!equal(xTerm.get(i), xDerefFrame, yTerm.get(i), yDerefFrame))
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the value of a term if it is ground under the current bindings,
+	 * or null if it still contains an unbound variable.
+	 */
+	public GdlTerm getGround(CompiledTerm term, int frame)
+	{
+		dereference(term, frame);
+		return derefGround;
+	}
+
+	/**
+	 * Returns the sentence with every bound variable replaced by its value.
+	 * Unbound variables are renamed ?R0, ?R1, ... in order of appearance, so
+	 * sentences that differ only in the names of their variables come out
+	 * the same.
+	 */
+	public GdlSentence substitute(CompiledLiteral sentence, int frame)
+	{
+		if (sentence.isGround())
+		{
+			return sentence.getSentence();
+		}
+
+		List<GdlTerm> body = new ArrayList<GdlTerm>(sentence.arity());
+		for (int i = 0; i < sentence.arity(); i++)
+		{
+			body.add(substitute(sentence.get(i), frame));
+		}
+
+		while (namedCount > 0)
+		{
+			names[named[--namedCount]] = -1;
+		}
+		return scratchPool.getRelation(sentence.getName(), body);
+	}
+
+	private GdlTerm substitute(CompiledTerm term, int frame)
+	{
+		dereference(term, frame);
+		if (derefGround != null)
+		{
+			return derefGround;
+		}
+		else if (derefSlot >= 0)
+		{
+			return getVariable(derefSlot);
+		}
+
+		CompiledTerm function = derefTerm;
+		int functionFrame = derefFrame;
+		List<GdlTerm> body = new ArrayList<GdlTerm>(function.arity());
+		for (int i = 0; i < function.arity(); i++)
+		{
+			body.add(substitute(function.get(i), functionFrame));
+		}
+		return scratchPool.getFunction(function.getName(), body);
+	}
+
+	private GdlVariable getVariable(int slot)
+	{
+		if (names[slot] < 0)
+		{
+			names[slot] = namedCount;
+			named[namedCount++] = slot;
+		}
+
+		int name = names[slot];
+		while (variables.size() <= name)
+		{
+			variables.add(scratchPool.getVariable("?R" + variables.size()));
+		}
+		return variables.get(name);
+	}
+
+	private boolean unify(CompiledTerm x, int xFrame, CompiledTerm y, int yFrame)
+	{
+		dereference(x, xFrame);
+		GdlTerm xGround = derefGround;
+		CompiledTerm xTerm = derefTerm;
+		int xSlot = derefSlot;
+		int xDerefFrame = derefFrame;
+
+		dereference(y, yFrame);
+		if (xSlot >= 0)
+		{
+			if (xSlot != derefSlot)
+			{
+				bind(xSlot, derefGround, derefTerm, derefFrame);
+			}
+			return true;
+		}
+		else if (derefSlot >= 0)
+		{
+			bind(derefSlot, xGround, xTerm, xDerefFrame);
+			return true;
+		}
+		else if (xGround != null)
+		{
+			return (derefGround != null) ? xGround.equals(derefGround) : match(derefTerm, derefFrame, xGround);
+		}
+		else if (derefGround != null)
+		{
+			return match(xTerm, xDerefFrame, derefGround);
+		}
+
+		CompiledTerm yTerm = derefTerm;
+		int yDerefFrame = derefFrame;
+		if (!xTerm.getName().equals(yTerm.getName()) || xTerm.arity() != yTerm.arity())
+		{
+			return false;
+		}
+		for (int i = 0; i < xTerm.arity(); i++)
+		{
+			if (!unify(xTerm.get(i), xDerefFrame, yTerm.get(i), yDerefFrame))
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private boolean match(CompiledTerm x, int frame, GdlTerm value)
+	{
+		dereference(x, frame);
+		if (derefSlot >= 0)
+		{
+			bind(derefSlot, value, null, 0);
+			return true;
+		}
+		else if (derefGround != null)
+		{
+			return derefGround.equals(value);
+		}
+		else if (!(value instanceof GdlFunction))
+		{
+			return false;
+		}
+
+		CompiledTerm function = derefTerm;
+		int functionFrame = derefFrame;
+		GdlFunction other = (GdlFunction) value;
+		if (!function.getName().equals(other.getName()) || function.arity() != other.arity())
+		{
+			return false;
+		}
+		for (int i = 0; i < function.arity(); i++)
+		{
+			if (!match(function.get(i), functionFrame, other.get(i)))
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private boolean equal(CompiledTerm x, int frame, GdlTerm value)
+	{
+		dereference(x, frame);
+		if (derefSlot >= 0)
+		{
+			return false;
+		}
+		else if (derefGround != null)
+		{
+			return derefGround.equals(value);
+		}
+		else if (!(value instanceof GdlFunction))
+		{
+			return false;
+		}
+
+		CompiledTerm function = derefTerm;
+		int functionFrame = derefFrame;
+		GdlFunction other = (GdlFunction) value;
+		if (!function.getName().equals(other.getName()) || function.arity() != other.arity())
+		{
+			return false;
+		}
+		for (int i = 0; i < function.arity(); i++)
+		{
+			if (!equal(function.get(i), functionFrame, other.get(i)))
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void bind(int slot, GdlTerm ground, CompiledTerm term, int frame)
+	{
+		if (ground != null)
+		{
+			values[slot] = ground;
+		}
+		else
+		{
+			terms[slot] = term;
+			frames[slot] = frame;
+		}
+
+		if (trailSize == trail.length)
+		{
+			trail = Arrays.copyOf(trail, trailSize * 2);
+		}
+		trail[trailSize++] = slot;
+	}
+
+	/**
+	 * Follows the bindings from a term until reaching a ground term, a
+	 * function that is not ground, or an unbound variable, and leaves the
+	 * result in the deref fields: derefGround for a ground term, derefTerm
+	 * and derefFrame otherwise, and derefSlot for an unbound variable (or -1).
+	 */
+	private void dereference(CompiledTerm term, int frame)
+	{
+		while (term.isVariable())
+		{
+			int slot = frame + term.getVariable();
+			if (values[slot] != null)
+			{
+				derefGround = values[slot];
+				derefTerm = null;
+				derefSlot = -1;
+				return;
+			}
+			else if (terms[slot] == null)
+			{
+				derefGround = null;
+				derefTerm = term;
+				derefFrame = frame;
+				derefSlot = slot;
+				return;
+			}
+
+			frame = frames[slot];
+			term = terms[slot];
+		}
+
+		derefGround = term.getGround();
+		derefTerm = term;
+		derefFrame = frame;
+		derefSlot = -1;
+	}
+
+}
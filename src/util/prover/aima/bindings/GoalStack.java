@@ -0,0 +1,84 @@
+package util.prover.aima.bindings;
+
+import java.util.Arrays;
+
+import util.prover.aima.rule.CompiledLiteral;
+import util.prover.aima.rule.CompiledRule;
+
+/**
+ * The GoalStack holds the literals a proof still has to prove, each with the
+ * frame of Bindings its variables live in. The next goal is on top. Proving
+ * the body of a rule pushes its literals above the goals already there, so
+ * one stack serves every level of the proof.
+ *
+ * A GoalStack is not safe to share between threads; each proof needs its own.
+ */
+public final class GoalStack
+{
+
+	private CompiledLiteral[] literals;
+	private int[] frames;
+	private int size;
+
+	public GoalStack()
+	{
+		literals = new CompiledLiteral[32];
+		frames = new int[32];
+		size = 0;
+	}
+
+	public void push(CompiledLiteral literal, int frame)
+	{
+		if (size == literals.length)
+		{
+			literals = Arrays.copyOf(literals, size * 2);
+			frames = Arrays.copyOf(frames, size * 2);
+		}
+		literals[size] = literal;
+		frames[size] = frame;
+		size++;
+	}
+
+	/**
+	 * Pushes the body of a rule, so that its first literal is on top.
+	 */
+	public void pushBody(CompiledRule rule, int frame)
+	{
+		for (int i = rule.arity() - 1; i >= 0; i--)
+		{
+			push(rule.get(i), frame);
+		}
+	}
+
+	public void pop()
+	{
+		literals[--size] = null;
+	}
+
+	public CompiledLiteral peekLiteral()
+	{
+		return literals[size - 1];
+	}
+
+	public int peekFrame()
+	{
+		return frames[size - 1];
+	}
+
+	public int size()
+	{
+		return size;
+	}
+
+	/**
+	 * Pops goals until only the given number are left.
+	 */
+	public void truncate(int newSize)
+	{
+		while (size > newSize)
+		{
+			pop();
+		}
+	}
+
+}
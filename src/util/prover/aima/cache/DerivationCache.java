@@ -0,0 +1,56 @@
+package util.prover.aima.cache;
+
+import java.util.Set;
+
+import util.gdl.grammar.GdlScratchPool;
+import util.gdl.grammar.GdlSentence;
+import util.prover.aima.knowledge.KnowledgeBase;
+
+/**
+ * A DerivationCache holds everything the AimaProver derives for one fixed
+ * context, such as the facts of a single game state: the indexed context
+ * itself, the ProverCache of proven sentences, and the GdlScratchPool that
+ * the variables in the cached queries come from. Passing the same
+ * DerivationCache to several queries on that context lets later queries
+ * reuse the relations proven for earlier ones, instead of deriving them again
+ * from scratch.
+ *
+ * It is only valid for the context it was created with, and is not safe to
+ * use from several threads at once. Several DerivationCaches may share one
+ * indexed context, though, since a KnowledgeBase never changes once built.
+ */
+public final class DerivationCache
+{
+
+	private final KnowledgeBase context;
+	private final ProverCache cache;
+	private final GdlScratchPool scratchPool;
+
+	public DerivationCache(Set<GdlSentence> context)
+	{
+		this(new KnowledgeBase(context));
+	}
+
+	public DerivationCache(KnowledgeBase context)
+	{
+		this.context = context;
+		this.cache = new ProverCache();
+		this.scratchPool = new GdlScratchPool();
+	}
+
+	public KnowledgeBase getContext()
+	{
+		return context;
+	}
+
+	public ProverCache getCache()
+	{
+		return cache;
+	}
+
+	public GdlScratchPool getScratchPool()
+	{
+		return scratchPool;
+	}
+
+}
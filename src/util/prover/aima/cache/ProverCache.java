@@ -1,18 +1,17 @@
 package util.prover.aima.cache;
 
-import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
 import util.gdl.grammar.GdlSentence;
-import util.prover.aima.renamer.VariableRenamer;
-import util.prover.aima.substituter.Substituter;
-import util.prover.aima.substitution.Substitution;
-import util.prover.aima.unifier.Unifier;
 
+/**
+ * The ProverCache holds every answer proven for a query sentence. Sentences
+ * are expected to have their variables named in a canonical way (as
+ * Bindings.substitute() does), so that queries differing only in the names
+ * of their variables share an entry.
+ */
 public final class ProverCache
 {
 
@@ -25,29 +24,21 @@ public final class ProverCache
 
 	public boolean contains(GdlSentence sentence)
 	{
-		return contents.containsKey(new VariableRenamer().rename(sentence));
+		return contents.containsKey(sentence);
 	}
 
-	public List<Substitution> get(GdlSentence sentence)
+	/**
+	 * Returns the instances of the sentence that were proven, or null if none
+	 * have been put in the cache. The set must not be modified.
+	 */
+	public Set<GdlSentence> get(GdlSentence sentence)
 	{
-		Set<Substitution> results = new HashSet<Substitution>();
-		for (GdlSentence answer : contents.get(new VariableRenamer().rename(sentence)))
-		{
-			results.add(Unifier.unify(sentence, answer));
-		}
-
-		return new ArrayList<Substitution>(results);
+		return contents.get(sentence);
 	}
 
-	public void put(GdlSentence sentence, Set<Substitution> answers)
+	public void put(GdlSentence sentence, Set<GdlSentence> answers)
 	{
-		Set<GdlSentence> results = new HashSet<GdlSentence>();
-		for (Substitution answer : answers)
-		{
-			results.add(Substituter.substitute(sentence, answer));
-		}
-
-		contents.put(new VariableRenamer().rename(sentence), results);
+		contents.put(sentence, answers);
 	}
 
 }
@@ -0,0 +1,257 @@
+package util.prover.aima.knowledge;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import util.gdl.grammar.Gdl;
+import util.gdl.grammar.GdlConstant;
+import util.gdl.grammar.GdlLiteral;
+import util.gdl.grammar.GdlNot;
+import util.gdl.grammar.GdlOr;
+import util.gdl.grammar.GdlPool;
+import util.gdl.grammar.GdlRule;
+import util.gdl.grammar.GdlSentence;
+import util.gdl.grammar.GdlTerm;
+import util.gdl.model.SentenceModel.SentenceForm;
+import util.gdl.transforms.ConstantFinder;
+import util.gdl.transforms.ConstantFinder.ConstantChecker;
+import util.logging.GamerLogger;
+import util.prover.aima.bindings.Bindings;
+import util.prover.aima.rule.CompiledLiteral;
+
+/**
+ * The FactTable holds every true sentence of the game's static relations:
+ * those that depend on neither <tt>true</tt> nor <tt>does</tt>, such as
+ * successor, adjacency and index tables. They are computed once, by the
+ * ConstantChecker, and indexed by the value at each argument position, so a
+ * goal on a static relation is answered by looking up the sentences that
+ * agree with its bound arguments rather than by resolving it against the
+ * rules again for every state.
+ *
+ * The FactTable never changes after it is built, so it can be read from any
+ * number of threads.
+ */
+public final class FactTable
+{
+
+	private static final GdlConstant TRUE = GdlPool.getConstant("true");
+	private static final GdlConstant DOES = GdlPool.getConstant("does");
+
+	private final Map<GdlConstant, FactIndex> contents;
+
+	private FactTable(Map<GdlConstant, List<GdlSentence>> facts)
+	{
+		contents = new HashMap<GdlConstant, FactIndex>();
+		for (Map.Entry<GdlConstant, List<GdlSentence>> entry : facts.entrySet())
+		{
+			contents.put(entry.getKey(), new FactIndex(entry.getValue()));
+		}
+	}
+
+	/**
+	 * Computes the static relations of a game description. If the
+	 * ConstantChecker cannot handle the description, the error is logged and
+	 * the table is left empty, so every relation is proven from its rules.
+	 */
+	public static FactTable compute(List<Gdl> description)
+	{
+		Map<GdlConstant, List<GdlSentence>> facts = new HashMap<GdlConstant, List<GdlSentence>>();
+		try
+		{
+			Set<GdlConstant> staticNames = getStaticNames(description);
+			ConstantChecker checker = ConstantFinder.getConstants(description);
+			for (SentenceForm form : checker.getSentenceForms())
+			{
+				GdlConstant name = form.getName();
+				if (!staticNames.contains(name))
+				{
+					continue;
+				}
+
+				if (!facts.containsKey(name))
+				{
+					facts.put(name, new ArrayList<GdlSentence>());
+				}
+				Iterator<GdlSentence> sentences = checker.getTrueSentences(form);
+				while (sentences != null && sentences.hasNext())
+				{
+					facts.get(name).add(sentences.next());
+				}
+			}
+		}
+		catch (Exception e)
+		{
+			GamerLogger.logError("StateMachine", "Could not compute the static relations; proving them from the rules instead.");
+			GamerLogger.logStackTrace("StateMachine", e);
+			facts.clear();
+		}
+
+		return new FactTable(facts);
+	}
+
+	/**
+	 * Returns whether the relation is static, and so answered from the table.
+	 */
+	public boolean contains(GdlConstant name)
+	{
+		return contents.containsKey(name);
+	}
+
+	/**
+	 * Returns the sentences of a static relation that might match the
+	 * sentence under the current bindings: those with the same value at the
+	 * bound argument position with the fewest matches, or all of them. The
+	 * list must not be modified.
+	 */
+	public List<GdlSentence> fetch(CompiledLiteral sentence, int frame, Bindings bindings)
+	{
+		FactIndex index = contents.get(sentence.getName());
+		if (index == null)
+		{
+			return Collections.emptyList();
+		}
+		return index.fetch(sentence, frame, bindings);
+	}
+
+	/**
+	 * Returns the names of the relations defined by the description that do
+	 * not depend, directly or through other rules, on <tt>true</tt> or
+	 * <tt>does</tt>.
+	 */
+	private static Set<GdlConstant> getStaticNames(List<Gdl> description)
+	{
+		Map<GdlConstant, Set<GdlConstant>> dependencies = new HashMap<GdlConstant, Set<GdlConstant>>();
+		for (Gdl gdl : description)
+		{
+			GdlSentence head = (gdl instanceof GdlRule) ? ((GdlRule) gdl).getHead() : (gdl instanceof GdlSentence) ? (GdlSentence) gdl : null;
+			if (head == null)
+			{
+				continue;
+			}
+
+			if (!dependencies.containsKey(head.getName()))
+			{
+				dependencies.put(head.getName(), new HashSet<GdlConstant>());
+			}
+			if (gdl instanceof GdlRule)
+			{
+				for (GdlLiteral literal : ((GdlRule) gdl).getBody())
+				{
+					addNames(literal, dependencies.get(head.getName()));
+				}
+			}
+		}
+
+		Set<GdlConstant> dynamicNames = new HashSet<GdlConstant>();
+		dynamicNames.add(TRUE);
+		dynamicNames.add(DOES);
+		boolean changed = true;
+		while (changed)
+		{
+			changed = false;
+			for (Map.Entry<GdlConstant, Set<GdlConstant>> entry : dependencies.entrySet())
+			{
+				if (!dynamicNames.contains(entry.getKey()) && !Collections.disjoint(entry.getValue(), dynamicNames))
+				{
+					dynamicNames.add(entry.getKey());
+					changed = true;
+				}
+			}
+		}
+
+		Set<GdlConstant> staticNames = new HashSet<GdlConstant>(dependencies.keySet());
+		staticNames.removeAll(dynamicNames);
+		return staticNames;
+	}
+
+	private static void addNames(GdlLiteral literal, Set<GdlConstant> names)
+	{
+		if (literal instanceof GdlSentence)
+		{
+			names.add(((GdlSentence) literal).getName());
+		}
+		else if (literal instanceof GdlNot)
+		{
+			addNames(((GdlNot) literal).getBody(), names);
+		}
+		else if (literal instanceof GdlOr)
+		{
+			GdlOr or = (GdlOr) literal;
+			for (int i = 0; i < or.arity(); i++)
+			{
+				addNames(or.get(i), names);
+			}
+		}
+	}
+
+	/**
+	 * The sentences of a single static relation, indexed by the value at
+	 * each argument position.
+	 */
+	private static final class FactIndex
+	{
+		private final List<GdlSentence> all;
+		/** For each position, the sentences with each value there. */
+		private final List<Map<GdlTerm, List<GdlSentence>>> byValue;
+
+		public FactIndex(List<GdlSentence> facts)
+		{
+			all = Collections.unmodifiableList(facts);
+
+			int maxArity = 0;
+			for (GdlSentence fact : facts)
+			{
+				maxArity = Math.max(maxArity, fact.arity());
+			}
+
+			byValue = new ArrayList<Map<GdlTerm, List<GdlSentence>>>(maxArity);
+			for (int i = 0; i < maxArity; i++)
+			{
+				Map<GdlTerm, List<GdlSentence>> values = new HashMap<GdlTerm, List<GdlSentence>>();
+				for (GdlSentence fact : facts)
+				{
+					if (i < fact.arity())
+					{
+						if (!values.containsKey(fact.get(i)))
+						{
+							values.put(fact.get(i), new ArrayList<GdlSentence>());
+						}
+						values.get(fact.get(i)).add(fact);
+					}
+				}
+				byValue.add(values);
+			}
+		}
+
+		public List<GdlSentence> fetch(CompiledLiteral sentence, int frame, Bindings bindings)
+		{
+			List<GdlSentence> best = all;
+			for (int i = 0; i < byValue.size() && i < sentence.arity(); i++)
+			{
+				GdlTerm value = sentence.isGround() ? sentence.getSentence().get(i) : bindings.getGround(sentence.get(i), frame);
+				if (value == null)
+				{
+					continue;
+				}
+
+				List<GdlSentence> candidates = byValue.get(i).get(value);
+				if (candidates == null)
+				{
+					return Collections.emptyList();
+				}
+				else if (candidates.size() < best.size())
+				{
+					best = candidates;
+				}
+			}
+			return best;
+		}
+	}
+
+}
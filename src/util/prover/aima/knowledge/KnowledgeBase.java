@@ -1,6 +1,7 @@
 package util.prover.aima.knowledge;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -8,41 +9,314 @@ import java.util.Set;
 
 import util.gdl.grammar.Gdl;
 import util.gdl.grammar.GdlConstant;
-import util.gdl.grammar.GdlPool;
+import util.gdl.grammar.GdlFunction;
+import util.gdl.grammar.GdlLiteral;
 import util.gdl.grammar.GdlRule;
 import util.gdl.grammar.GdlSentence;
+import util.gdl.grammar.GdlTerm;
+import util.gdl.grammar.GdlVariable;
+import util.prover.aima.rule.CompiledRule;
 
+/**
+ * The KnowledgeBase holds the rules of a game (or the facts of a state),
+ * indexed by the relation name of their heads and then by each argument: by
+ * a constant, or by the name of a function and its constant arguments. For a
+ * query such as <tt>(cell 1 1 ?x)</tt>, or <tt>(true (cell 1 1 ?x))</tt>,
+ * fetch() picks the argument with the fewest candidates and returns only the
+ * rules whose head has the same symbol there, or a variable, rather than
+ * every <tt>cell</tt> (or <tt>true</tt>) rule. Rules are stored as CompiledRules, with their
+ * variables already numbered for the prover.
+ *
+ * All of the candidate lists are built in the constructor and never change,
+ * so fetch() needs no locking and can be called from any number of threads.
+ */
 public final class KnowledgeBase
 {
-	private final Map<GdlConstant, List<GdlRule>> contents;
+	private final Map<GdlConstant, RuleIndex> contents;
 
 	public KnowledgeBase(Set<? extends Gdl> description)
 	{
-		contents = new HashMap<GdlConstant, List<GdlRule>>();
+		Map<GdlConstant, List<CompiledRule>> rulesByName = new HashMap<GdlConstant, List<CompiledRule>>();
 		for (Gdl gdl : description)
 		{
-			GdlRule rule = (gdl instanceof GdlRule) ? (GdlRule) gdl : GdlPool.getRule((GdlSentence) gdl);
+			CompiledRule rule = (gdl instanceof GdlRule) ? new CompiledRule((GdlRule) gdl) : new CompiledRule((GdlSentence) gdl, Collections.<GdlLiteral> emptyList());
 			GdlConstant key = rule.getHead().getName();
 
-			if (!contents.containsKey(key))
+			if (!rulesByName.containsKey(key))
 			{
-				contents.put(key, new ArrayList<GdlRule>());
+				rulesByName.put(key, new ArrayList<CompiledRule>());
 			}
-			contents.get(key).add(rule);
+			rulesByName.get(key).add(rule);
+		}
+
+		contents = new HashMap<GdlConstant, RuleIndex>();
+		for (Map.Entry<GdlConstant, List<CompiledRule>> entry : rulesByName.entrySet())
+		{
+			contents.put(entry.getKey(), new RuleIndex(entry.getValue()));
+		}
+	}
+
+	/**
+	 * Returns the rules whose heads might unify with the sentence, in the
+	 * order they were given. The list must not be modified.
+	 */
+	public List<CompiledRule> fetch(GdlSentence sentence)
+	{
+		RuleIndex index = contents.get(sentence.getName());
+		if (index == null)
+		{
+			return Collections.emptyList();
+		}
+		return index.fetch(sentence);
+	}
+
+	/**
+	 * The rules for a single relation name, with a candidate list for every
+	 * argument position and symbol.
+	 */
+	private static final class RuleIndex
+	{
+		/** Relations with fewer rules than this are not worth indexing. */
+		private static final int MIN_INDEXED_RULES = 8;
+
+		private final List<CompiledRule> all;
+		/** The index of each argument position. */
+		private final ArgumentIndex[] arguments;
+
+		public RuleIndex(List<CompiledRule> rules)
+		{
+			all = Collections.unmodifiableList(rules);
+
+			int maxArity = 0;
+			if (rules.size() >= MIN_INDEXED_RULES)
+			{
+				for (CompiledRule rule : rules)
+				{
+					maxArity = Math.max(maxArity, rule.getHead().getSentence().arity());
+				}
+			}
+
+			arguments = new ArgumentIndex[maxArity];
+			for (int i = 0; i < maxArity; i++)
+			{
+				arguments[i] = new ArgumentIndex(rules, i);
+			}
+		}
+
+		public List<CompiledRule> fetch(GdlSentence sentence)
+		{
+			List<CompiledRule> best = all;
+			for (int i = 0; i < sentence.arity() && i < arguments.length; i++)
+			{
+				List<CompiledRule> candidates = arguments[i].fetch(sentence.get(i), best);
+				if (candidates.size() < best.size())
+				{
+					best = candidates;
+				}
+			}
+			return best;
+		}
+	}
+
+	/**
+	 * The candidate lists for one argument position of a relation: by the
+	 * constant found there, or by the name of the function found there and
+	 * then by each of its constant arguments. A query such as
+	 * <tt>(true (cell 1 1 ?x))</tt> thus only gets the facts for cell
+	 * <tt>(1, 1)</tt>. Every list keeps the rules in their original order,
+	 * and includes the rules with a variable at that position. Looking up a
+	 * query allocates nothing.
+	 */
+	private static final class ArgumentIndex
+	{
+		private final Map<GdlTerm, List<CompiledRule>> byConstant;
+		private final List<CompiledRule> variables;
+		/** For each function name, the index of its arguments. */
+		private final Map<GdlConstant, FunctionIndex> functions;
+
+		public ArgumentIndex(List<CompiledRule> rules, int i)
+		{
+			byConstant = new HashMap<GdlTerm, List<CompiledRule>>();
+			variables = new ArrayList<CompiledRule>();
+			functions = new HashMap<GdlConstant, FunctionIndex>();
+			for (CompiledRule rule : rules)
+			{
+				GdlTerm term = getArgument(rule.getHead().getSentence(), i);
+				if (term == null || term instanceof GdlVariable)
+				{
+					variables.add(rule);
+					for (List<CompiledRule> candidates : byConstant.values())
+					{
+						candidates.add(rule);
+					}
+					for (FunctionIndex index : functions.values())
+					{
+						index.rules.add(rule);
+					}
+				}
+				else if (term instanceof GdlFunction)
+				{
+					GdlConstant name = ((GdlFunction) term).getName();
+					FunctionIndex index = functions.get(name);
+					if (index == null)
+					{
+						index = new FunctionIndex(new ArrayList<CompiledRule>(variables));
+						functions.put(name, index);
+					}
+					index.rules.add(rule);
+				}
+				else
+				{
+					List<CompiledRule> candidates = byConstant.get(term);
+					if (candidates == null)
+					{
+						candidates = new ArrayList<CompiledRule>(variables);
+						byConstant.put(term, candidates);
+					}
+					candidates.add(rule);
+				}
+			}
+
+			for (FunctionIndex index : functions.values())
+			{
+				index.build(i);
+			}
+		}
+
+		/**
+		 * Returns the rules whose argument at this position might unify with
+		 * the term, or the best list found so far if this one is no smaller.
+		 */
+		public List<CompiledRule> fetch(GdlTerm term, List<CompiledRule> best)
+		{
+			if (term instanceof GdlVariable)
+			{
+				return best;
+			}
+			else if (term instanceof GdlFunction)
+			{
+				GdlFunction function = (GdlFunction) term;
+				FunctionIndex index = functions.get(function.getName());
+				if (index == null)
+				{
+					return variables;
+				}
+				return index.fetch(function, best);
+			}
+			List<CompiledRule> candidates = byConstant.get(term);
+			return (candidates == null) ? variables : candidates;
 		}
 	}
 
-	public synchronized List<GdlRule> fetch(GdlSentence sentence)
+	/**
+	 * The candidate lists for the rules with a function of one name at an
+	 * argument position (or a variable there), by each constant argument of
+	 * the function. Only functions shared by at least MIN_INDEXED_RULES rules
+	 * have their arguments indexed.
+	 */
+	private static final class FunctionIndex
 	{
-		GdlConstant key = sentence.getName();
+		private final List<CompiledRule> rules;
+		/** For each argument of the function, the rules for each constant there. */
+		private Map<GdlTerm, List<CompiledRule>>[] byConstant;
+		/** For each argument of the function, the rules with a variable there. */
+		private List<CompiledRule>[] byVariable;
+
+		public FunctionIndex(List<CompiledRule> rules)
+		{
+			this.rules = rules;
+		}
 
-		if (contents.containsKey(key))
+		/**
+		 * Fills in the candidate lists, once every rule has been added, for
+		 * the function at argument position i of the rule heads.
+		 */
+		@SuppressWarnings({"unchecked", "rawtypes"})
+		public void build(int i)
 		{
-			return contents.get(key);
+			int maxArity = 0;
+			if (rules.size() >= RuleIndex.MIN_INDEXED_RULES)
+			{
+				for (CompiledRule rule : rules)
+				{
+					GdlTerm term = getArgument(rule.getHead().getSentence(), i);
+					if (term instanceof GdlFunction)
+					{
+						maxArity = Math.max(maxArity, ((GdlFunction) term).arity());
+					}
+				}
+			}
+
+			byConstant = new Map[maxArity];
+			byVariable = new List[maxArity];
+			for (int j = 0; j < maxArity; j++)
+			{
+				Map<GdlTerm, List<CompiledRule>> constants = new HashMap<GdlTerm, List<CompiledRule>>();
+				List<CompiledRule> variables = new ArrayList<CompiledRule>();
+				for (CompiledRule rule : rules)
+				{
+					GdlTerm term = getArgument(rule.getHead().getSentence(), i);
+					if (term instanceof GdlFunction)
+					{
+						GdlFunction function = (GdlFunction) term;
+						term = (j < function.arity()) ? function.get(j) : null;
+					}
+					if (term instanceof GdlVariable)
+					{
+						variables.add(rule);
+						for (List<CompiledRule> candidates : constants.values())
+						{
+							candidates.add(rule);
+						}
+					}
+					else if (term instanceof GdlConstant)
+					{
+						List<CompiledRule> candidates = constants.get(term);
+						if (candidates == null)
+						{
+							candidates = new ArrayList<CompiledRule>(variables);
+							constants.put(term, candidates);
+						}
+						candidates.add(rule);
+					}
+				}
+				byConstant[j] = constants;
+				byVariable[j] = variables;
+			}
 		}
-		else
+
+		public List<CompiledRule> fetch(GdlFunction function, List<CompiledRule> best)
 		{
-			return new ArrayList<GdlRule>();
+			if (rules.size() < best.size())
+			{
+				best = rules;
+			}
+			for (int j = 0; j < function.arity() && j < byConstant.length; j++)
+			{
+				GdlTerm argument = function.get(j);
+				if (!(argument instanceof GdlConstant))
+				{
+					continue;
+				}
+				List<CompiledRule> candidates = byConstant[j].get(argument);
+				if (candidates == null)
+				{
+					candidates = byVariable[j];
+				}
+				if (candidates.size() < best.size())
+				{
+					best = candidates;
+				}
+			}
+			return best;
 		}
 	}
-}
\ No newline at end of file
+
+	/**
+	 * Returns an argument of a sentence, or null if it has no such argument.
+	 */
+	private static GdlTerm getArgument(GdlSentence sentence, int i)
+	{
+		return (i < sentence.arity()) ? sentence.get(i) : null;
+	}
+}
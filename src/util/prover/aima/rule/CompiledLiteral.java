@@ -0,0 +1,143 @@
+package util.prover.aima.rule;
+
+import java.util.Map;
+
+import util.gdl.grammar.GdlConstant;
+import util.gdl.grammar.GdlDistinct;
+import util.gdl.grammar.GdlLiteral;
+import util.gdl.grammar.GdlNot;
+import util.gdl.grammar.GdlOr;
+import util.gdl.grammar.GdlSentence;
+import util.gdl.grammar.GdlVariable;
+
+/**
+ * A CompiledLiteral is the head or a body literal of a CompiledRule. A
+ * sentence keeps its arguments as CompiledTerms, unless it is ground, in
+ * which case it is only ever compared against other sentences as a whole. A
+ * distinct keeps its two arguments, and a negation or disjunction keeps the
+ * literals inside it.
+ */
+public final class CompiledLiteral
+{
+
+	public static final int SENTENCE = 0;
+	public static final int DISTINCT = 1;
+	public static final int NOT = 2;
+	public static final int OR = 3;
+
+	private final int kind;
+	private final GdlLiteral literal;
+	private final CompiledTerm[] body;
+	private final CompiledLiteral[] children;
+
+	private CompiledLiteral(int kind, GdlLiteral literal, CompiledTerm[] body, CompiledLiteral[] children)
+	{
+		this.kind = kind;
+		this.literal = literal;
+		this.body = body;
+		this.children = children;
+	}
+
+	/**
+	 * Compiles a literal, numbering its variables with the numbering of the
+	 * rule it belongs to.
+	 */
+	public static CompiledLiteral compile(GdlLiteral literal, Map<GdlVariable, Integer> numbering)
+	{
+		if (literal instanceof GdlDistinct)
+		{
+			GdlDistinct distinct = (GdlDistinct) literal;
+			CompiledTerm[] body = new CompiledTerm[] { CompiledTerm.compile(distinct.getArg1(), numbering), CompiledTerm.compile(distinct.getArg2(), numbering) };
+			return new CompiledLiteral(DISTINCT, literal, body, null);
+		}
+		else if (literal instanceof GdlNot)
+		{
+			CompiledLiteral[] children = new CompiledLiteral[] { compile(((GdlNot) literal).getBody(), numbering) };
+			return new CompiledLiteral(NOT, literal, null, children);
+		}
+		else if (literal instanceof GdlOr)
+		{
+			GdlOr or = (GdlOr) literal;
+			CompiledLiteral[] children = new CompiledLiteral[or.arity()];
+			for (int i = 0; i < children.length; i++)
+			{
+				children[i] = compile(or.get(i), numbering);
+			}
+			return new CompiledLiteral(OR, literal, null, children);
+		}
+		else
+		{
+			GdlSentence sentence = (GdlSentence) literal;
+			if (sentence.isGround())
+			{
+				return new CompiledLiteral(SENTENCE, literal, null, null);
+			}
+
+			CompiledTerm[] body = new CompiledTerm[sentence.arity()];
+			for (int i = 0; i < body.length; i++)
+			{
+				body[i] = CompiledTerm.compile(sentence.get(i), numbering);
+			}
+			return new CompiledLiteral(SENTENCE, literal, body, null);
+		}
+	}
+
+	/**
+	 * Returns the number of arguments of a sentence, or 2 for a distinct.
+	 */
+	public int arity()
+	{
+		return (body == null) ? getSentence().arity() : body.length;
+	}
+
+	/**
+	 * Returns an argument of a non-ground sentence or of a distinct.
+	 */
+	public CompiledTerm get(int index)
+	{
+		return body[index];
+	}
+
+	/**
+	 * Returns a literal inside a negation or disjunction.
+	 */
+	public CompiledLiteral getChild(int index)
+	{
+		return children[index];
+	}
+
+	public int getChildCount()
+	{
+		return children.length;
+	}
+
+	public int getKind()
+	{
+		return kind;
+	}
+
+	public GdlConstant getName()
+	{
+		return getSentence().getName();
+	}
+
+	/**
+	 * Returns the literal this was compiled from, as a sentence.
+	 */
+	public GdlSentence getSentence()
+	{
+		return (GdlSentence) literal;
+	}
+
+	public boolean isGround()
+	{
+		return literal.isGround();
+	}
+
+	@Override
+	public String toString()
+	{
+		return literal.toString();
+	}
+
+}
@@ -0,0 +1,83 @@
+package util.prover.aima.rule;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import util.gdl.grammar.GdlLiteral;
+import util.gdl.grammar.GdlRule;
+import util.gdl.grammar.GdlSentence;
+import util.gdl.grammar.GdlVariable;
+
+/**
+ * A CompiledRule is a GdlRule whose variables have been numbered from zero,
+ * in order of first appearance. A prover can then give each use of the rule
+ * its own block of slots in a Bindings environment, rather than renaming the
+ * rule's variables apart every time it is used.
+ *
+ * A CompiledRule can also be made directly from a head and body, so that
+ * facts and queries need not be interned in the GdlPool as rules first.
+ */
+public final class CompiledRule
+{
+
+	private final CompiledLiteral head;
+	private final CompiledLiteral[] body;
+	private final int variableCount;
+
+	public CompiledRule(GdlRule rule)
+	{
+		this(rule.getHead(), rule.getBody());
+	}
+
+	public CompiledRule(GdlSentence head, List<GdlLiteral> body)
+	{
+		Map<GdlVariable, Integer> numbering = new HashMap<GdlVariable, Integer>();
+
+		this.head = CompiledLiteral.compile(head, numbering);
+		this.body = new CompiledLiteral[body.size()];
+		for (int i = 0; i < this.body.length; i++)
+		{
+			this.body[i] = CompiledLiteral.compile(body.get(i), numbering);
+		}
+		this.variableCount = numbering.size();
+	}
+
+	public int arity()
+	{
+		return body.length;
+	}
+
+	public CompiledLiteral get(int index)
+	{
+		return body[index];
+	}
+
+	public CompiledLiteral getHead()
+	{
+		return head;
+	}
+
+	/**
+	 * Returns the number of distinct variables in the rule, which are
+	 * numbered from zero up to (but not including) this.
+	 */
+	public int getVariableCount()
+	{
+		return variableCount;
+	}
+
+	@Override
+	public String toString()
+	{
+		StringBuilder sb = new StringBuilder();
+		sb.append("( <= " + head + " ");
+		for (CompiledLiteral literal : body)
+		{
+			sb.append(literal + " ");
+		}
+		sb.append(")");
+		return sb.toString();
+	}
+
+}
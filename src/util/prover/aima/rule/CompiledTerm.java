@@ -0,0 +1,122 @@
+package util.prover.aima.rule;
+
+import java.util.Map;
+
+import util.gdl.grammar.GdlConstant;
+import util.gdl.grammar.GdlFunction;
+import util.gdl.grammar.GdlTerm;
+import util.gdl.grammar.GdlVariable;
+
+/**
+ * A CompiledTerm is a term of a CompiledRule. It is either a variable,
+ * identified by its number within the rule, a ground term, kept as the
+ * pooled GdlTerm itself, or a function with at least one variable in it.
+ */
+public final class CompiledTerm
+{
+
+	private final int variable;
+	private final GdlTerm ground;
+	private final GdlConstant name;
+	private final CompiledTerm[] body;
+
+	private CompiledTerm(int variable, GdlTerm ground, GdlConstant name, CompiledTerm[] body)
+	{
+		this.variable = variable;
+		this.ground = ground;
+		this.name = name;
+		this.body = body;
+	}
+
+	/**
+	 * Compiles a term, numbering its variables with the numbering of the
+	 * rule it belongs to. Variables not yet in the numbering are added to it.
+	 */
+	public static CompiledTerm compile(GdlTerm term, Map<GdlVariable, Integer> numbering)
+	{
+		if (term.isGround())
+		{
+			return new CompiledTerm(-1, term, null, null);
+		}
+		else if (term instanceof GdlVariable)
+		{
+			Integer number = numbering.get(term);
+			if (number == null)
+			{
+				number = numbering.size();
+				numbering.put((GdlVariable) term, number);
+			}
+			return new CompiledTerm(number, null, null, null);
+		}
+		else
+		{
+			GdlFunction function = (GdlFunction) term;
+			CompiledTerm[] body = new CompiledTerm[function.arity()];
+			for (int i = 0; i < body.length; i++)
+			{
+				body[i] = compile(function.get(i), numbering);
+			}
+			return new CompiledTerm(-1, null, function.getName(), body);
+		}
+	}
+
+	public int arity()
+	{
+		return body.length;
+	}
+
+	public CompiledTerm get(int index)
+	{
+		return body[index];
+	}
+
+	/**
+	 * Returns the term itself if it is ground, and null otherwise.
+	 */
+	public GdlTerm getGround()
+	{
+		return ground;
+	}
+
+	public GdlConstant getName()
+	{
+		return name;
+	}
+
+	/**
+	 * Returns the number of the variable within its rule, or -1 if the term
+	 * is not a variable.
+	 */
+	public int getVariable()
+	{
+		return variable;
+	}
+
+	public boolean isVariable()
+	{
+		return variable >= 0;
+	}
+
+	@Override
+	public String toString()
+	{
+		if (ground != null)
+		{
+			return ground.toString();
+		}
+		else if (variable >= 0)
+		{
+			return "?" + variable;
+		}
+
+		StringBuilder sb = new StringBuilder();
+		sb.append("( " + name + " ");
+		for (CompiledTerm term : body)
+		{
+			sb.append(term + " ");
+		}
+		sb.append(")");
+		return sb.toString();
+	}
+
+}
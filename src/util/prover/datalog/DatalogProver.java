@@ -0,0 +1,1214 @@
+package util.prover.datalog;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import util.gdl.grammar.Gdl;
+import util.gdl.grammar.GdlConstant;
+import util.gdl.grammar.GdlDistinct;
+import util.gdl.grammar.GdlFunction;
+import util.gdl.grammar.GdlLiteral;
+import util.gdl.grammar.GdlNot;
+import util.gdl.grammar.GdlPool;
+import util.gdl.grammar.GdlProposition;
+import util.gdl.grammar.GdlRule;
+import util.gdl.grammar.GdlSentence;
+import util.gdl.grammar.GdlTerm;
+import util.gdl.grammar.GdlVariable;
+import util.gdl.transforms.DeORer;
+import util.prover.Prover;
+
+/**
+ * The DatalogProver answers queries by computing every fact that follows
+ * from the description and the context, bottom-up, rather than by searching
+ * backwards from the query the way the AimaProver does.
+ *
+ * The rules are split into strata so that a relation is always complete
+ * before anything that negates it is evaluated, and each stratum is run to a
+ * fixpoint with semi-naive iteration: after the first pass, a rule is only
+ * re-evaluated against the facts that were new in the previous pass. Facts
+ * are kept in hash-indexed RelationTables, so joins look up matching facts by
+ * an argument that is already bound instead of scanning the whole relation.
+ *
+ * Relations that depend on neither <tt>true</tt> nor <tt>does</tt> (such as
+ * <tt>init</tt>, <tt>role</tt> and the board geometry) are computed once, in
+ * the constructor. The rest are computed per context, and the result for the
+ * most recent context is kept, so the legal, goal and terminal queries on
+ * one state are answered from a single evaluation.
+ *
+ * In incremental mode, the result for the most recent context is updated
+ * to the next context instead of being computed again. Consecutive contexts
+ * in a game usually differ by only a few <tt>true</tt> and <tt>does</tt>
+ * facts, so only the conclusions that depend on those are revisited. For
+ * each fact of a non-recursive relation, the prover counts its derivations
+ * (the ways of satisfying the body of one of its rules), and a change to the
+ * context adds or subtracts only the derivations that involve a changed
+ * fact; the fact is true as long as its count is above zero. A recursive
+ * stratum is recomputed in full, but only when something it depends on has
+ * changed.
+ *
+ * The DatalogProver is not safe to use from several threads at once, but
+ * the copy constructor makes a prover for another thread that shares the
+ * rules and the static relations.
+ */
+public final class DatalogProver extends Prover
+{
+
+	private static final GdlConstant TRUE = GdlPool.getConstant("true");
+	private static final GdlConstant DOES = GdlPool.getConstant("does");
+	private static final RelationTable EMPTY = new RelationTable();
+	private static final Map<GdlConstant, Change> NO_CHANGES = Collections.emptyMap();
+	static
+	{
+		EMPTY.freeze();
+	}
+
+	/** The relations that depend on the context, and so are computed per context. */
+	private final Set<GdlConstant> dynamicNames;
+	/** The strata of rules for the dynamic relations, in evaluation order. */
+	private final List<List<Rule>> dynamicStrata;
+	/** The relations that do not depend on the context. */
+	private final Map<GdlConstant, RelationTable> staticModel;
+	/** Whether the model is updated from one context to the next rather than recomputed. */
+	private final boolean incremental;
+
+	private Set<GdlSentence> lastContext;
+	private Map<GdlConstant, RelationTable> lastModel;
+	/** In incremental mode, the number of derivations of each fact of a non-recursive dynamic relation. */
+	private Map<GdlSentence, Integer> counts;
+
+	/** The variable bindings of the rule being evaluated, and the order they were made in. */
+	private final Map<GdlVariable, GdlTerm> bindings;
+	private final List<GdlVariable> trail;
+
+	public DatalogProver(Set<Gdl> description)
+	{
+		this(description, false);
+	}
+
+	/**
+	 * Creates a prover for the description that, if incremental is set,
+	 * updates the facts it computed for one context to the next context
+	 * instead of computing them all again.
+	 */
+	public DatalogProver(Set<Gdl> description, boolean incremental)
+	{
+		this.incremental = incremental;
+		bindings = new HashMap<GdlVariable, GdlTerm>();
+		trail = new ArrayList<GdlVariable>();
+
+		List<Rule> rules = new ArrayList<Rule>();
+		for (Gdl gdl : DeORer.run(new ArrayList<Gdl>(description)))
+		{
+			if (gdl instanceof GdlRule)
+			{
+				GdlRule rule = (GdlRule) gdl;
+				rules.add(new Rule(rule.getHead(), rule.getBody()));
+			}
+			else if (gdl instanceof GdlSentence)
+			{
+				rules.add(new Rule((GdlSentence) gdl, Collections.<GdlLiteral> emptyList()));
+			}
+		}
+
+		dynamicNames = findDynamicNames(rules);
+		dynamicStrata = new ArrayList<List<Rule>>();
+		staticModel = new HashMap<GdlConstant, RelationTable>();
+
+		List<List<Rule>> staticStrata = new ArrayList<List<Rule>>();
+		for (List<Rule> stratum : stratify(rules))
+		{
+			if (dynamicNames.contains(stratum.get(0).head.getName()))
+			{
+				dynamicStrata.add(stratum);
+			}
+			else
+			{
+				for (Rule rule : stratum)
+				{
+					staticModel.put(rule.head.getName(), new RelationTable());
+				}
+				staticStrata.add(stratum);
+			}
+		}
+
+		for (List<Rule> stratum : staticStrata)
+		{
+			evaluateStratum(stratum, staticModel);
+		}
+		for (RelationTable table : staticModel.values())
+		{
+			table.freeze();
+		}
+	}
+
+	/**
+	 * Creates a prover for the same description as another, sharing its
+	 * rules and static relations, which never change. The two can then be
+	 * used from different threads at the same time.
+	 */
+	public DatalogProver(DatalogProver other)
+	{
+		bindings = new HashMap<GdlVariable, GdlTerm>();
+		trail = new ArrayList<GdlVariable>();
+
+		dynamicNames = other.dynamicNames;
+		dynamicStrata = other.dynamicStrata;
+		staticModel = other.staticModel;
+		incremental = other.incremental;
+	}
+
+	@Override
+	public Set<GdlSentence> askAll(GdlSentence query, Set<GdlSentence> context)
+	{
+		Set<GdlSentence> results = new HashSet<GdlSentence>();
+		ask(query, context, false, results);
+		return results;
+	}
+
+	@Override
+	public GdlSentence askOne(GdlSentence query, Set<GdlSentence> context)
+	{
+		Set<GdlSentence> results = new HashSet<GdlSentence>();
+		ask(query, context, true, results);
+		return results.isEmpty() ? null : results.iterator().next();
+	}
+
+	@Override
+	public boolean prove(GdlSentence query, Set<GdlSentence> context)
+	{
+		return askOne(query, context) != null;
+	}
+
+	private void ask(GdlSentence query, Set<GdlSentence> context, boolean askOne, Set<GdlSentence> results)
+	{
+		Map<GdlConstant, RelationTable> model = getModel(context);
+		for (GdlSentence fact : getCandidates(query, getRelation(model, query.getName())))
+		{
+			int mark = trail.size();
+			if (match(query, fact))
+			{
+				results.add(fact);
+			}
+			undo(mark);
+
+			if (askOne && !results.isEmpty())
+			{
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Returns every relation computed for the context, reusing the result for
+	 * the previous context if it was the same, or in incremental mode
+	 * updating it if it was similar.
+	 */
+	private Map<GdlConstant, RelationTable> getModel(Set<GdlSentence> context)
+	{
+		if (context.equals(lastContext))
+		{
+			return lastModel;
+		}
+		else if (incremental && lastModel != null && update(context))
+		{
+			lastContext = new HashSet<GdlSentence>(context);
+			return lastModel;
+		}
+
+		Map<GdlConstant, RelationTable> model = new HashMap<GdlConstant, RelationTable>();
+		model.put(TRUE, new RelationTable());
+		model.put(DOES, new RelationTable());
+		for (GdlConstant name : dynamicNames)
+		{
+			model.put(name, new RelationTable());
+		}
+
+		for (GdlSentence sentence : context)
+		{
+			RelationTable table = model.get(sentence.getName());
+			if (table != null)
+			{
+				table.add(sentence);
+			}
+		}
+
+		counts = incremental ? new HashMap<GdlSentence, Integer>() : null;
+		for (List<Rule> stratum : dynamicStrata)
+		{
+			if (incremental && !isRecursive(stratum))
+			{
+				countStratum(stratum, model, null);
+			}
+			else
+			{
+				evaluateStratum(stratum, model);
+			}
+		}
+
+		lastContext = new HashSet<GdlSentence>(context);
+		lastModel = model;
+		return model;
+	}
+
+	/**
+	 * Updates the model for the last context to the new context, stratum by
+	 * stratum, skipping the strata that depend on nothing that changed.
+	 * Returns false, leaving the model untouched, if the contexts are too
+	 * different for an update to be worth it.
+	 */
+	private boolean update(Set<GdlSentence> context)
+	{
+		Map<GdlConstant, Change> changes = new HashMap<GdlConstant, Change>();
+		int changed = 0;
+		for (GdlSentence sentence : context)
+		{
+			if (!lastContext.contains(sentence))
+			{
+				if (!sentence.getName().equals(TRUE) && !sentence.getName().equals(DOES))
+				{
+					return false;
+				}
+				getChange(changes, sentence.getName()).added.add(sentence);
+				changed++;
+			}
+		}
+		for (GdlSentence sentence : lastContext)
+		{
+			if (!context.contains(sentence))
+			{
+				if (!sentence.getName().equals(TRUE) && !sentence.getName().equals(DOES))
+				{
+					return false;
+				}
+				getChange(changes, sentence.getName()).removed.add(sentence);
+				changed++;
+			}
+		}
+		if (changed > context.size())
+		{
+			// Starting over is cheaper.
+			return false;
+		}
+
+		for (Map.Entry<GdlConstant, Change> entry : changes.entrySet())
+		{
+			RelationTable table = lastModel.get(entry.getKey());
+			for (GdlSentence sentence : entry.getValue().removed)
+			{
+				table.remove(sentence);
+			}
+			for (GdlSentence sentence : entry.getValue().added)
+			{
+				table.add(sentence);
+			}
+		}
+
+		for (List<Rule> stratum : dynamicStrata)
+		{
+			if (!dependsOn(stratum, changes))
+			{
+				continue;
+			}
+
+			if (isRecursive(stratum))
+			{
+				reevaluateStratum(stratum, lastModel, changes);
+			}
+			else
+			{
+				countStratum(stratum, lastModel, changes);
+			}
+		}
+		return true;
+	}
+
+	private static Change getChange(Map<GdlConstant, Change> changes, GdlConstant name)
+	{
+		Change change = changes.get(name);
+		if (change == null)
+		{
+			change = new Change();
+			changes.put(name, change);
+		}
+		return change;
+	}
+
+	private static boolean dependsOn(List<Rule> stratum, Map<GdlConstant, Change> changes)
+	{
+		for (Rule rule : stratum)
+		{
+			for (GdlLiteral literal : rule.body)
+			{
+				GdlConstant name = getName(literal);
+				if (name != null && changes.containsKey(name))
+				{
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	private static boolean isRecursive(List<Rule> stratum)
+	{
+		for (Rule rule : stratum)
+		{
+			if (rule.recursive.length > 0)
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private RelationTable getRelation(Map<GdlConstant, RelationTable> model, GdlConstant name)
+	{
+		RelationTable table = model.get(name);
+		if (table == null)
+		{
+			table = staticModel.get(name);
+		}
+		return (table == null) ? EMPTY : table;
+	}
+
+	/* Incremental maintenance */
+
+	/**
+	 * Evaluates a recursive stratum again from scratch, and records how its
+	 * relations changed.
+	 */
+	private void reevaluateStratum(List<Rule> stratum, Map<GdlConstant, RelationTable> model, Map<GdlConstant, Change> changes)
+	{
+		Map<GdlConstant, RelationTable> before = new HashMap<GdlConstant, RelationTable>();
+		for (Rule rule : stratum)
+		{
+			GdlConstant name = rule.head.getName();
+			if (!before.containsKey(name))
+			{
+				before.put(name, model.get(name));
+				model.put(name, new RelationTable());
+			}
+		}
+
+		evaluateStratum(stratum, model);
+
+		for (Map.Entry<GdlConstant, RelationTable> entry : before.entrySet())
+		{
+			RelationTable oldTable = entry.getValue();
+			RelationTable newTable = model.get(entry.getKey());
+			for (GdlSentence fact : newTable.getFacts())
+			{
+				if (!oldTable.contains(fact))
+				{
+					getChange(changes, entry.getKey()).added.add(fact);
+				}
+			}
+			for (GdlSentence fact : oldTable.getFacts())
+			{
+				if (!newTable.contains(fact))
+				{
+					getChange(changes, entry.getKey()).removed.add(fact);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Brings the derivation counts of a non-recursive stratum up to date, and
+	 * adds or removes the facts whose counts rose from or fell to zero. If
+	 * changes is null, every derivation is counted from scratch; otherwise
+	 * only those affected by the changes are counted, and the changes to the
+	 * stratum's own relations are recorded there.
+	 */
+	private void countStratum(List<Rule> stratum, Map<GdlConstant, RelationTable> model, Map<GdlConstant, Change> changes)
+	{
+		Map<GdlSentence, Integer> countChanges = new HashMap<GdlSentence, Integer>();
+		for (Rule rule : stratum)
+		{
+			if (changes == null)
+			{
+				count(rule, rule.orders[0], 0, -1, null, 1, NO_CHANGES, model, countChanges);
+				continue;
+			}
+
+			for (int i = 0; i < rule.body.size(); i++)
+			{
+				Change change = changes.get(getName(rule.body.get(i)));
+				if (change == null)
+				{
+					continue;
+				}
+
+				// A fact that appears satisfies a sentence, but falsifies a negation.
+				int sign = (rule.body.get(i) instanceof GdlNot) ? -1 : 1;
+				if (!change.added.isEmpty())
+				{
+					count(rule, rule.deltaOrders[i], 0, i, change.added, sign, changes, model, countChanges);
+				}
+				if (!change.removed.isEmpty())
+				{
+					count(rule, rule.deltaOrders[i], 0, i, change.removed, -sign, changes, model, countChanges);
+				}
+			}
+		}
+
+		for (Map.Entry<GdlSentence, Integer> entry : countChanges.entrySet())
+		{
+			GdlSentence fact = entry.getKey();
+			Integer oldCount = counts.get(fact);
+			int before = (oldCount == null) ? 0 : oldCount;
+			int after = before + entry.getValue();
+			if (after < 0)
+			{
+				throw new IllegalStateException("Lost track of the derivations of " + fact + ".");
+			}
+
+			if (after == 0)
+			{
+				counts.remove(fact);
+			}
+			else
+			{
+				counts.put(fact, after);
+			}
+
+			if (before == 0 && after > 0)
+			{
+				model.get(fact.getName()).add(fact);
+				if (changes != null)
+				{
+					getChange(changes, fact.getName()).added.add(fact);
+				}
+			}
+			else if (before > 0 && after == 0)
+			{
+				model.get(fact.getName()).remove(fact);
+				if (changes != null)
+				{
+					getChange(changes, fact.getName()).removed.add(fact);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Enumerates derivations of the rule's head, adding the sign to the count
+	 * change of the head for each. The body literals before deltaLiteral are
+	 * evaluated against the new facts, those after it against the old facts,
+	 * and deltaLiteral itself against just the changed facts given. Summed
+	 * over every body literal, this counts each derivation gained or lost
+	 * exactly once. With no deltaLiteral, every derivation is counted.
+	 */
+	private void count(Rule rule, int[] order, int step, int deltaLiteral, Set<GdlSentence> delta, int sign, Map<GdlConstant, Change> changes, Map<GdlConstant, RelationTable> model, Map<GdlSentence, Integer> countChanges)
+	{
+		if (step == order.length)
+		{
+			GdlSentence fact = substitute(rule.head);
+			Integer countChange = countChanges.get(fact);
+			countChanges.put(fact, ((countChange == null) ? 0 : countChange) + sign);
+			return;
+		}
+
+		int position = order[step];
+		GdlLiteral literal = rule.body.get(position);
+		if (literal instanceof GdlDistinct)
+		{
+			GdlDistinct distinct = (GdlDistinct) literal;
+			if (!substitute(distinct.getArg1()).equals(substitute(distinct.getArg2())))
+			{
+				count(rule, order, step + 1, deltaLiteral, delta, sign, changes, model, countChanges);
+			}
+		}
+		else if (position == deltaLiteral)
+		{
+			GdlSentence pattern = (literal instanceof GdlNot) ? (GdlSentence) ((GdlNot) literal).getBody() : (GdlSentence) literal;
+			for (GdlSentence fact : delta)
+			{
+				int mark = trail.size();
+				if (match(pattern, fact))
+				{
+					count(rule, order, step + 1, deltaLiteral, delta, sign, changes, model, countChanges);
+				}
+				undo(mark);
+			}
+		}
+		else if (literal instanceof GdlNot)
+		{
+			GdlSentence negated = substitute((GdlSentence) ((GdlNot) literal).getBody());
+			boolean holds = (position < deltaLiteral) ? getRelation(model, negated.getName()).contains(negated) : containedBefore(negated, changes, model);
+			if (!holds)
+			{
+				count(rule, order, step + 1, deltaLiteral, delta, sign, changes, model, countChanges);
+			}
+		}
+		else
+		{
+			GdlSentence sentence = (GdlSentence) literal;
+			Change change = (position > deltaLiteral) ? changes.get(sentence.getName()) : null;
+			for (GdlSentence fact : getCandidates(sentence, getRelation(model, sentence.getName())))
+			{
+				if (change != null && change.added.contains(fact))
+				{
+					continue;
+				}
+
+				int mark = trail.size();
+				if (match(sentence, fact))
+				{
+					count(rule, order, step + 1, deltaLiteral, delta, sign, changes, model, countChanges);
+				}
+				undo(mark);
+			}
+
+			if (change != null)
+			{
+				for (GdlSentence fact : change.removed)
+				{
+					int mark = trail.size();
+					if (match(sentence, fact))
+					{
+						count(rule, order, step + 1, deltaLiteral, delta, sign, changes, model, countChanges);
+					}
+					undo(mark);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns whether the fact was true before the changes were made.
+	 */
+	private boolean containedBefore(GdlSentence fact, Map<GdlConstant, Change> changes, Map<GdlConstant, RelationTable> model)
+	{
+		boolean contained = getRelation(model, fact.getName()).contains(fact);
+		Change change = changes.get(fact.getName());
+		if (change == null)
+		{
+			return contained;
+		}
+		return (contained && !change.added.contains(fact)) || change.removed.contains(fact);
+	}
+
+	/* Semi-naive evaluation */
+
+	/**
+	 * Runs the rules of one stratum to a fixpoint. The first pass evaluates
+	 * every rule against everything known so far; each later pass only
+	 * evaluates the rules with a recursive literal, with that literal
+	 * restricted to the facts that were new in the pass before.
+	 */
+	private void evaluateStratum(List<Rule> stratum, Map<GdlConstant, RelationTable> model)
+	{
+		List<GdlSentence> derived = new ArrayList<GdlSentence>();
+		for (Rule rule : stratum)
+		{
+			evaluate(rule, rule.orders[0], -1, null, model, derived);
+		}
+		Map<GdlConstant, List<GdlSentence>> delta = addAll(derived, model);
+
+		while (!delta.isEmpty())
+		{
+			derived = new ArrayList<GdlSentence>();
+			for (Rule rule : stratum)
+			{
+				for (int i = 0; i < rule.recursive.length; i++)
+				{
+					GdlSentence literal = (GdlSentence) rule.body.get(rule.recursive[i]);
+					List<GdlSentence> newFacts = delta.get(literal.getName());
+					if (newFacts != null)
+					{
+						evaluate(rule, rule.orders[i + 1], rule.recursive[i], newFacts, model, derived);
+					}
+				}
+			}
+			delta = addAll(derived, model);
+		}
+	}
+
+	/**
+	 * Adds the derived facts to the model, returning those that were new,
+	 * grouped by relation name.
+	 */
+	private Map<GdlConstant, List<GdlSentence>> addAll(List<GdlSentence> derived, Map<GdlConstant, RelationTable> model)
+	{
+		Map<GdlConstant, List<GdlSentence>> delta = new HashMap<GdlConstant, List<GdlSentence>>();
+		for (GdlSentence fact : derived)
+		{
+			if (model.get(fact.getName()).add(fact))
+			{
+				List<GdlSentence> newFacts = delta.get(fact.getName());
+				if (newFacts == null)
+				{
+					newFacts = new ArrayList<GdlSentence>();
+					delta.put(fact.getName(), newFacts);
+				}
+				newFacts.add(fact);
+			}
+		}
+		return delta;
+	}
+
+	private void evaluate(Rule rule, int[] order, int deltaLiteral, List<GdlSentence> delta, Map<GdlConstant, RelationTable> model, List<GdlSentence> derived)
+	{
+		join(rule, order, 0, deltaLiteral, delta, model, derived);
+	}
+
+	private void join(Rule rule, int[] order, int step, int deltaLiteral, List<GdlSentence> delta, Map<GdlConstant, RelationTable> model, List<GdlSentence> derived)
+	{
+		if (step == order.length)
+		{
+			GdlSentence fact = substitute(rule.head);
+			if (!model.get(fact.getName()).contains(fact))
+			{
+				derived.add(fact);
+			}
+			return;
+		}
+
+		GdlLiteral literal = rule.body.get(order[step]);
+		if (literal instanceof GdlDistinct)
+		{
+			GdlDistinct distinct = (GdlDistinct) literal;
+			if (!substitute(distinct.getArg1()).equals(substitute(distinct.getArg2())))
+			{
+				join(rule, order, step + 1, deltaLiteral, delta, model, derived);
+			}
+		}
+		else if (literal instanceof GdlNot)
+		{
+			GdlSentence negated = substitute((GdlSentence) ((GdlNot) literal).getBody());
+			if (!getRelation(model, negated.getName()).contains(negated))
+			{
+				join(rule, order, step + 1, deltaLiteral, delta, model, derived);
+			}
+		}
+		else
+		{
+			GdlSentence sentence = (GdlSentence) literal;
+			List<GdlSentence> candidates = (order[step] == deltaLiteral) ? delta : getCandidates(sentence, getRelation(model, sentence.getName()));
+			for (GdlSentence fact : candidates)
+			{
+				int mark = trail.size();
+				if (match(sentence, fact))
+				{
+					join(rule, order, step + 1, deltaLiteral, delta, model, derived);
+				}
+				undo(mark);
+			}
+		}
+	}
+
+	/**
+	 * Returns the facts that might match the pattern: those with the right
+	 * value for the first argument that is already known, or all of them.
+	 */
+	private List<GdlSentence> getCandidates(GdlSentence pattern, RelationTable table)
+	{
+		for (int i = 0; i < pattern.arity(); i++)
+		{
+			GdlTerm term = pattern.get(i);
+			if (term instanceof GdlVariable)
+			{
+				GdlTerm value = bindings.get(term);
+				if (value != null)
+				{
+					return table.lookup(i, value);
+				}
+			}
+			else if (term.isGround())
+			{
+				return table.lookup(i, term);
+			}
+		}
+		return table.getFacts();
+	}
+
+	/* Matching and substitution */
+
+	private boolean match(GdlSentence pattern, GdlSentence fact)
+	{
+		if (pattern.arity() != fact.arity())
+		{
+			return false;
+		}
+		for (int i = 0; i < pattern.arity(); i++)
+		{
+			if (!match(pattern.get(i), fact.get(i)))
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private boolean match(GdlTerm pattern, GdlTerm value)
+	{
+		if (pattern instanceof GdlVariable)
+		{
+			GdlTerm bound = bindings.get(pattern);
+			if (bound == null)
+			{
+				bindings.put((GdlVariable) pattern, value);
+				trail.add((GdlVariable) pattern);
+				return true;
+			}
+			return bound.equals(value);
+		}
+		else if (pattern instanceof GdlFunction)
+		{
+			if (!(value instanceof GdlFunction))
+			{
+				return false;
+			}
+
+			GdlFunction function = (GdlFunction) pattern;
+			GdlFunction other = (GdlFunction) value;
+			if (!function.getName().equals(other.getName()) || function.arity() != other.arity())
+			{
+				return false;
+			}
+			for (int i = 0; i < function.arity(); i++)
+			{
+				if (!match(function.get(i), other.get(i)))
+				{
+					return false;
+				}
+			}
+			return true;
+		}
+		return pattern.equals(value);
+	}
+
+	/**
+	 * Removes the bindings made since the trail had the given size.
+	 */
+	private void undo(int mark)
+	{
+		for (int i = trail.size() - 1; i >= mark; i--)
+		{
+			bindings.remove(trail.remove(i));
+		}
+	}
+
+	private GdlSentence substitute(GdlSentence sentence)
+	{
+		if (sentence instanceof GdlProposition || sentence.isGround())
+		{
+			return sentence;
+		}
+
+		List<GdlTerm> body = new ArrayList<GdlTerm>(sentence.arity());
+		for (int i = 0; i < sentence.arity(); i++)
+		{
+			body.add(substitute(sentence.get(i)));
+		}
+		return GdlPool.getRelation(sentence.getName(), body);
+	}
+
+	private GdlTerm substitute(GdlTerm term)
+	{
+		if (term instanceof GdlVariable)
+		{
+			GdlTerm value = bindings.get(term);
+			return (value == null) ? term : value;
+		}
+		else if (term instanceof GdlFunction && !term.isGround())
+		{
+			GdlFunction function = (GdlFunction) term;
+			List<GdlTerm> body = new ArrayList<GdlTerm>(function.arity());
+			for (int i = 0; i < function.arity(); i++)
+			{
+				body.add(substitute(function.get(i)));
+			}
+			return GdlPool.getFunction(function.getName(), body);
+		}
+		return term;
+	}
+
+	/* Stratification */
+
+	/**
+	 * Returns the relations that depend, directly or through other rules, on
+	 * <tt>true</tt> or <tt>does</tt>.
+	 */
+	private static Set<GdlConstant> findDynamicNames(List<Rule> rules)
+	{
+		Set<GdlConstant> dynamic = new HashSet<GdlConstant>();
+		dynamic.add(TRUE);
+		dynamic.add(DOES);
+
+		boolean changed = true;
+		while (changed)
+		{
+			changed = false;
+			for (Rule rule : rules)
+			{
+				if (dynamic.contains(rule.head.getName()))
+				{
+					continue;
+				}
+				for (GdlLiteral literal : rule.body)
+				{
+					GdlConstant name = getName(literal);
+					if (name != null && dynamic.contains(name))
+					{
+						dynamic.add(rule.head.getName());
+						changed = true;
+						break;
+					}
+				}
+			}
+		}
+
+		dynamic.remove(TRUE);
+		dynamic.remove(DOES);
+		return dynamic;
+	}
+
+	/**
+	 * Groups the rules by strongly connected component of the dependency
+	 * graph between relation names, in an order where every relation comes
+	 * after the ones it depends on. A relation that depends negatively on
+	 * its own component cannot be stratified.
+	 */
+	private static List<List<Rule>> stratify(List<Rule> rules)
+	{
+		Map<GdlConstant, List<Rule>> rulesByName = new HashMap<GdlConstant, List<Rule>>();
+		for (Rule rule : rules)
+		{
+			List<Rule> list = rulesByName.get(rule.head.getName());
+			if (list == null)
+			{
+				list = new ArrayList<Rule>();
+				rulesByName.put(rule.head.getName(), list);
+			}
+			list.add(rule);
+		}
+
+		Map<GdlConstant, Set<GdlConstant>> dependencies = new HashMap<GdlConstant, Set<GdlConstant>>();
+		for (Map.Entry<GdlConstant, List<Rule>> entry : rulesByName.entrySet())
+		{
+			Set<GdlConstant> names = new LinkedHashSet<GdlConstant>();
+			for (Rule rule : entry.getValue())
+			{
+				for (GdlLiteral literal : rule.body)
+				{
+					GdlConstant name = getName(literal);
+					if (name != null && rulesByName.containsKey(name))
+					{
+						names.add(name);
+					}
+				}
+			}
+			dependencies.put(entry.getKey(), names);
+		}
+
+		List<Set<GdlConstant>> components = new ComponentFinder(dependencies).find();
+
+		List<List<Rule>> strata = new ArrayList<List<Rule>>();
+		for (Set<GdlConstant> component : components)
+		{
+			List<Rule> stratum = new ArrayList<Rule>();
+			for (GdlConstant name : component)
+			{
+				for (Rule rule : rulesByName.get(name))
+				{
+					rule.prepare(component);
+					stratum.add(rule);
+				}
+			}
+			strata.add(stratum);
+		}
+		return strata;
+	}
+
+	/**
+	 * Returns the relation name a literal depends on, or null for a distinct.
+	 */
+	private static GdlConstant getName(GdlLiteral literal)
+	{
+		if (literal instanceof GdlSentence)
+		{
+			return ((GdlSentence) literal).getName();
+		}
+		else if (literal instanceof GdlNot)
+		{
+			return getName(((GdlNot) literal).getBody());
+		}
+		return null;
+	}
+
+	private static void collectVariables(GdlLiteral literal, Set<GdlVariable> variables)
+	{
+		if (literal instanceof GdlSentence)
+		{
+			GdlSentence sentence = (GdlSentence) literal;
+			for (int i = 0; i < sentence.arity(); i++)
+			{
+				collectVariables(sentence.get(i), variables);
+			}
+		}
+		else if (literal instanceof GdlNot)
+		{
+			collectVariables(((GdlNot) literal).getBody(), variables);
+		}
+		else if (literal instanceof GdlDistinct)
+		{
+			collectVariables(((GdlDistinct) literal).getArg1(), variables);
+			collectVariables(((GdlDistinct) literal).getArg2(), variables);
+		}
+	}
+
+	private static void collectVariables(GdlTerm term, Set<GdlVariable> variables)
+	{
+		if (term instanceof GdlVariable)
+		{
+			variables.add((GdlVariable) term);
+		}
+		else if (term instanceof GdlFunction)
+		{
+			for (GdlTerm argument : ((GdlFunction) term).getBody())
+			{
+				collectVariables(argument, variables);
+			}
+		}
+	}
+
+	/**
+	 * A rule (or fact) with the orders its body literals are joined in.
+	 */
+	private static final class Rule
+	{
+		public final GdlSentence head;
+		public final List<GdlLiteral> body;
+		/** The positions of the body literals over relations in the rule's own stratum. */
+		public int[] recursive;
+		/** The join order for the first pass, then one starting from each recursive literal. */
+		public int[][] orders;
+		/** If the rule is not recursive, a join order starting from each body literal but distincts. */
+		public int[][] deltaOrders;
+
+		public Rule(GdlSentence head, List<GdlLiteral> body)
+		{
+			this.head = head;
+			this.body = body;
+		}
+
+		public void prepare(Set<GdlConstant> component)
+		{
+			List<Integer> positions = new ArrayList<Integer>();
+			for (int i = 0; i < body.size(); i++)
+			{
+				GdlLiteral literal = body.get(i);
+				if (literal instanceof GdlNot)
+				{
+					if (component.contains(getName(literal)))
+					{
+						throw new RuntimeException("The rules for " + head.getName() + " are not stratified: " + literal + " is negated within its own recursion.");
+					}
+					if (!(((GdlNot) literal).getBody() instanceof GdlSentence))
+					{
+						throw new RuntimeException("Cannot evaluate the negated literal " + literal + " in a rule for " + head.getName() + ".");
+					}
+				}
+				else if (literal instanceof GdlSentence && component.contains(getName(literal)))
+				{
+					positions.add(i);
+				}
+			}
+
+			recursive = new int[positions.size()];
+			orders = new int[positions.size() + 1][];
+			orders[0] = order(-1);
+			for (int i = 0; i < recursive.length; i++)
+			{
+				recursive[i] = positions.get(i);
+				orders[i + 1] = order(recursive[i]);
+			}
+
+			deltaOrders = new int[body.size()][];
+			if (recursive.length == 0)
+			{
+				for (int i = 0; i < body.size(); i++)
+				{
+					if (!(body.get(i) instanceof GdlDistinct))
+					{
+						deltaOrders[i] = order(i);
+					}
+				}
+			}
+		}
+
+		/**
+		 * Picks a join order for the body, greedily: the given literal first
+		 * (if any), then any distinct or negation whose variables are all
+		 * bound, and otherwise the sentence with the most bound arguments.
+		 */
+		private int[] order(int first)
+		{
+			int[] order = new int[body.size()];
+			boolean[] used = new boolean[body.size()];
+			Set<GdlVariable> bound = new HashSet<GdlVariable>();
+
+			int next = 0;
+			if (first >= 0)
+			{
+				order[next++] = first;
+				used[first] = true;
+				collectVariables(body.get(first), bound);
+			}
+
+			while (next < order.length)
+			{
+				int best = -1;
+				int bestScore = -1;
+				for (int i = 0; i < body.size() && bestScore < Integer.MAX_VALUE; i++)
+				{
+					if (used[i])
+					{
+						continue;
+					}
+
+					GdlLiteral literal = body.get(i);
+					if (literal instanceof GdlSentence)
+					{
+						GdlSentence sentence = (GdlSentence) literal;
+						int score = 0;
+						for (int j = 0; j < sentence.arity(); j++)
+						{
+							Set<GdlVariable> variables = new HashSet<GdlVariable>();
+							collectVariables(sentence.get(j), variables);
+							if (bound.containsAll(variables))
+							{
+								score++;
+							}
+						}
+						if (score > bestScore)
+						{
+							best = i;
+							bestScore = score;
+						}
+					}
+					else
+					{
+						Set<GdlVariable> variables = new HashSet<GdlVariable>();
+						collectVariables(literal, variables);
+						if (bound.containsAll(variables))
+						{
+							best = i;
+							bestScore = Integer.MAX_VALUE;
+						}
+					}
+				}
+
+				if (best < 0)
+				{
+					// Only unsafe negations or distincts are left.
+					for (int i = 0; i < body.size(); i++)
+					{
+						if (!used[i])
+						{
+							best = i;
+							break;
+						}
+					}
+				}
+
+				order[next++] = best;
+				used[best] = true;
+				collectVariables(body.get(best), bound);
+			}
+			return order;
+		}
+	}
+
+	/**
+	 * The facts of one relation that were added and removed by a change of
+	 * context. A fact is never in both.
+	 */
+	private static final class Change
+	{
+		public final Set<GdlSentence> added = new HashSet<GdlSentence>();
+		public final Set<GdlSentence> removed = new HashSet<GdlSentence>();
+	}
+
+	/**
+	 * Tarjan's algorithm for the strongly connected components of the
+	 * dependency graph, which produces them dependencies first.
+	 */
+	private static final class ComponentFinder
+	{
+		private final Map<GdlConstant, Set<GdlConstant>> dependencies;
+		private final Map<GdlConstant, Integer> indices;
+		private final Map<GdlConstant, Integer> lowLinks;
+		private final List<GdlConstant> stack;
+		private final Set<GdlConstant> onStack;
+		private final List<Set<GdlConstant>> components;
+
+		public ComponentFinder(Map<GdlConstant, Set<GdlConstant>> dependencies)
+		{
+			this.dependencies = dependencies;
+			this.indices = new HashMap<GdlConstant, Integer>();
+			this.lowLinks = new HashMap<GdlConstant, Integer>();
+			this.stack = new ArrayList<GdlConstant>();
+			this.onStack = new HashSet<GdlConstant>();
+			this.components = new ArrayList<Set<GdlConstant>>();
+		}
+
+		public List<Set<GdlConstant>> find()
+		{
+			for (GdlConstant name : dependencies.keySet())
+			{
+				if (!indices.containsKey(name))
+				{
+					visit(name);
+				}
+			}
+			return components;
+		}
+
+		private void visit(GdlConstant name)
+		{
+			int index = indices.size();
+			indices.put(name, index);
+			lowLinks.put(name, index);
+			stack.add(name);
+			onStack.add(name);
+
+			for (GdlConstant dependency : dependencies.get(name))
+			{
+				if (!indices.containsKey(dependency))
+				{
+					visit(dependency);
+					lowLinks.put(name, Math.min(lowLinks.get(name), lowLinks.get(dependency)));
+				}
+				else if (onStack.contains(dependency))
+				{
+					lowLinks.put(name, Math.min(lowLinks.get(name), indices.get(dependency)));
+				}
+			}
+
+			if (lowLinks.get(name) == index)
+			{
+				Set<GdlConstant> component = new LinkedHashSet<GdlConstant>();
+				GdlConstant member;
+				do
+				{
+					member = stack.remove(stack.size() - 1);
+					onStack.remove(member);
+					component.add(member);
+				}
+				while (member != name);
+				components.add(component);
+			}
+		}
+	}
+
+}
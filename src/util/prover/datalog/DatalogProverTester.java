@@ -0,0 +1,131 @@
+package util.prover.datalog;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import util.game.GameRepository;
+import util.game.LocalGameRepository;
+import util.gdl.grammar.Gdl;
+import util.gdl.grammar.GdlSentence;
+import util.prover.Prover;
+import util.prover.aima.AimaProver;
+import util.statemachine.MachineState;
+import util.statemachine.Move;
+import util.statemachine.Role;
+import util.statemachine.implementation.prover.ProverStateMachine;
+import util.statemachine.implementation.prover.query.ProverQueryBuilder;
+
+/**
+ * Checks the DatalogProver, both plain and incremental, against the
+ * AimaProver on every game in the local repository. It plays random games
+ * and, at every state along the way, asks all three provers for the legal
+ * moves and goals of every role, for terminal, and for the next state after
+ * the joint move played, reporting every query on which they disagree. The
+ * queries come in the order of a real playout, so that the incremental
+ * prover sees the context change one state at a time.
+ *
+ * Usage: DatalogProverTester [playoutsPerGame]
+ */
+public class DatalogProverTester
+{
+	public static void main(String[] args)
+	{
+		int nPlayouts = (args.length > 0) ? Integer.parseInt(args[0]) : 10;
+
+		GameRepository theRepository = new LocalGameRepository();
+		List<String> theKeys = new ArrayList<String>(theRepository.getGameKeys());
+		Collections.sort(theKeys);
+
+		int nFailedGames = 0;
+		for (String gameKey : theKeys)
+		{
+			List<Gdl> description = theRepository.getGame(gameKey).getRules();
+			try
+			{
+				int nMismatches = checkGame(description, nPlayouts, new Random(gameKey.hashCode()));
+				System.out.println(gameKey + ": " + nMismatches + " mismatches in " + nPlayouts + " playouts.");
+				if (nMismatches > 0)
+				{
+					nFailedGames++;
+				}
+			}
+			catch (Exception e)
+			{
+				System.out.println(gameKey + ": failed with " + e);
+				nFailedGames++;
+			}
+		}
+		System.out.println(nFailedGames + " of " + theKeys.size() + " games failed.");
+	}
+
+	/**
+	 * Plays the given number of random games, and returns the number of
+	 * queries on which either DatalogProver disagreed with the AimaProver.
+	 */
+	private static int checkGame(List<Gdl> description, int nPlayouts, Random random) throws Exception
+	{
+		Set<Gdl> rules = new HashSet<Gdl>(description);
+		Prover theReference = new AimaProver(rules);
+		Prover[] theProvers = { new DatalogProver(rules), new DatalogProver(rules, true) };
+		String[] theNames = { "datalog", "incremental" };
+
+		ProverStateMachine theMachine = new ProverStateMachine(ProverStateMachine.AIMA_PROVER);
+		theMachine.initialize(description);
+		List<Role> roles = theMachine.getRoles();
+
+		int nMismatches = 0;
+		for (int i = 0; i < nPlayouts; i++)
+		{
+			MachineState state = theMachine.getInitialState();
+			while (true)
+			{
+				Set<GdlSentence> context = ProverQueryBuilder.getContext(state);
+				nMismatches += compare(ProverQueryBuilder.getTerminalQuery(), context, theReference, theProvers, theNames);
+				for (Role role : roles)
+				{
+					nMismatches += compare(ProverQueryBuilder.getLegalQuery(role), context, theReference, theProvers, theNames);
+					nMismatches += compare(ProverQueryBuilder.getGoalQuery(role), context, theReference, theProvers, theNames);
+				}
+				if (theMachine.isTerminal(state))
+				{
+					break;
+				}
+
+				List<Move> moves = new ArrayList<Move>(roles.size());
+				for (Role role : roles)
+				{
+					List<Move> legals = theMachine.getLegalMoves(state, role);
+					moves.add(legals.get(random.nextInt(legals.size())));
+				}
+				Set<GdlSentence> moveContext = ProverQueryBuilder.getContext(state, roles, moves);
+				nMismatches += compare(ProverQueryBuilder.getNextQuery(), moveContext, theReference, theProvers, theNames);
+				state = theMachine.getNextState(state, moves);
+			}
+		}
+		return nMismatches;
+	}
+
+	/**
+	 * Asks every prover the query, and returns how many of them gave a
+	 * different answer from the reference.
+	 */
+	private static int compare(GdlSentence query, Set<GdlSentence> context, Prover theReference, Prover[] theProvers, String[] theNames)
+	{
+		Set<GdlSentence> expected = theReference.askAll(query, context);
+		int nMismatches = 0;
+		for (int i = 0; i < theProvers.length; i++)
+		{
+			Set<GdlSentence> actual = theProvers[i].askAll(query, context);
+			if (!actual.equals(expected))
+			{
+				System.out.println("  " + theNames[i] + " disagrees on " + query + ": expected " + expected + ", got " + actual);
+				nMismatches++;
+			}
+		}
+		return nMismatches;
+	}
+}
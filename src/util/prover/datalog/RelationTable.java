@@ -0,0 +1,196 @@
+package util.prover.datalog;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import util.gdl.grammar.GdlSentence;
+import util.gdl.grammar.GdlTerm;
+
+/**
+ * A RelationTable holds the ground facts derived so far for one relation
+ * name, in the order they were added. Lookups by the value of a single
+ * argument go through a hash index for that position, which is built the
+ * first time it is asked for and kept up to date as facts are added.
+ *
+ * Facts can also be removed, so that a table can be kept up to date as the
+ * context changes. The order of the remaining facts is not preserved.
+ *
+ * The lists returned by getFacts() and lookup() are the table's own, so they
+ * must not be modified, and must not be iterated over while facts are added
+ * or removed.
+ *
+ * Once freeze() has been called, every index is built and the table can no
+ * longer change, so it can be read from any number of threads.
+ */
+final class RelationTable
+{
+
+	private final List<GdlSentence> facts;
+	/** The position of each fact in the list of facts. */
+	private final Map<GdlSentence, Integer> positions;
+	/** For each argument position, the facts with each term there, or null if not yet built. */
+	private final List<Map<GdlTerm, List<GdlSentence>>> indexes;
+	private boolean frozen;
+
+	public RelationTable()
+	{
+		facts = new ArrayList<GdlSentence>();
+		positions = new HashMap<GdlSentence, Integer>();
+		indexes = new ArrayList<Map<GdlTerm, List<GdlSentence>>>();
+	}
+
+	/**
+	 * Adds a ground fact, returning false if it was already in the table.
+	 */
+	public boolean add(GdlSentence fact)
+	{
+		if (frozen)
+		{
+			throw new IllegalStateException("Cannot add " + fact + " to a frozen relation table.");
+		}
+		if (positions.containsKey(fact))
+		{
+			return false;
+		}
+
+		positions.put(fact, facts.size());
+		facts.add(fact);
+		for (int i = 0; i < indexes.size(); i++)
+		{
+			Map<GdlTerm, List<GdlSentence>> index = indexes.get(i);
+			if (index != null)
+			{
+				addToIndex(index, fact, i);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Removes a fact, returning false if it was not in the table. The last
+	 * fact takes its place in the list of facts.
+	 */
+	public boolean remove(GdlSentence fact)
+	{
+		if (frozen)
+		{
+			throw new IllegalStateException("Cannot remove " + fact + " from a frozen relation table.");
+		}
+		Integer position = positions.remove(fact);
+		if (position == null)
+		{
+			return false;
+		}
+
+		GdlSentence last = facts.remove(facts.size() - 1);
+		if (!last.equals(fact))
+		{
+			facts.set(position, last);
+			positions.put(last, position);
+		}
+		for (int i = 0; i < indexes.size(); i++)
+		{
+			Map<GdlTerm, List<GdlSentence>> index = indexes.get(i);
+			if (index != null && i < fact.arity())
+			{
+				List<GdlSentence> matches = index.get(fact.get(i));
+				matches.remove(fact);
+				if (matches.isEmpty())
+				{
+					index.remove(fact.get(i));
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Builds the index for every argument position and stops the table from
+	 * changing any further.
+	 */
+	public void freeze()
+	{
+		int maxArity = 0;
+		for (GdlSentence fact : facts)
+		{
+			maxArity = Math.max(maxArity, fact.arity());
+		}
+		for (int i = 0; i < maxArity; i++)
+		{
+			lookup(i, null);
+		}
+		frozen = true;
+	}
+
+	public boolean contains(GdlSentence fact)
+	{
+		return positions.containsKey(fact);
+	}
+
+	public List<GdlSentence> getFacts()
+	{
+		return facts;
+	}
+
+	public int size()
+	{
+		return facts.size();
+	}
+
+	/**
+	 * Returns the facts whose argument at the given position is the given
+	 * ground term.
+	 */
+	public List<GdlSentence> lookup(int position, GdlTerm value)
+	{
+		if (frozen && position >= indexes.size())
+		{
+			// No fact has an argument at this position.
+			return Collections.emptyList();
+		}
+
+		while (indexes.size() <= position)
+		{
+			indexes.add(null);
+		}
+
+		Map<GdlTerm, List<GdlSentence>> index = indexes.get(position);
+		if (index == null)
+		{
+			index = new HashMap<GdlTerm, List<GdlSentence>>();
+			for (GdlSentence fact : facts)
+			{
+				addToIndex(index, fact, position);
+			}
+			indexes.set(position, index);
+		}
+
+		List<GdlSentence> matches = index.get(value);
+		if (matches == null)
+		{
+			return Collections.emptyList();
+		}
+		return matches;
+	}
+
+	private static void addToIndex(Map<GdlTerm, List<GdlSentence>> index, GdlSentence fact, int position)
+	{
+		if (position >= fact.arity())
+		{
+			return;
+		}
+
+		GdlTerm key = fact.get(position);
+		List<GdlSentence> matches = index.get(key);
+		if (matches == null)
+		{
+			matches = new ArrayList<GdlSentence>();
+			index.put(key, matches);
+		}
+		matches.add(fact);
+	}
+
+}
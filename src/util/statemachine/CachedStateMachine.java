@@ -0,0 +1,372 @@
+package util.statemachine;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SplittableRandom;
+
+import util.gdl.grammar.Gdl;
+import util.gdl.grammar.GdlProposition;
+import util.gdl.grammar.GdlSentence;
+import util.logging.GamerLogger;
+import util.statemachine.exceptions.GoalDefinitionException;
+import util.statemachine.exceptions.MoveDefinitionException;
+import util.statemachine.exceptions.TransitionDefinitionException;
+
+/**
+ * The CachedStateMachine is a wrapper around a particular state machine. It
+ * remembers what the backing machine answered about each state (whether it
+ * is terminal, the goals, the legal moves and the next states), so a search
+ * that comes back to a state it has already seen does not have to ask the
+ * backing machine again. This matters most for slow machines, such as the
+ * ProverStateMachine.
+ *
+ * The cache is bounded by an estimate of the memory its entries take up, and
+ * when it is full the least recently used states are evicted first. When
+ * updateRoot() moves the root, and again in doPerMoveWork(), every state that
+ * cannot be reached from the root through the cached transitions is dropped,
+ * since it will not be asked about again. doPerMoveWork() also logs the hit
+ * rate, which is available from getHitRate() as well.
+ *
+ * Depth charges are passed straight to the backing machine: random playouts
+ * rarely revisit states, and would only push the useful entries out. Next
+ * states are never computed destructively, since a state in the cache may be
+ * handed out again.
+ *
+ * A CachedStateMachine must not be shared between threads; each instance
+ * from createThreadInstance() has a cache of its own.
+ */
+public class CachedStateMachine extends StateMachine
+{
+    /** The default memory budget for the cache, in bytes. */
+    public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+    /* Rough sizes, in bytes, of the objects the cache holds on to. */
+    private static final long ENTRY_BYTES = 200;
+    private static final long MAP_ENTRY_BYTES = 48;
+    private static final long LIST_BYTES = 40;
+    private static final long MOVE_BYTES = 32;
+    private static final long STATE_BYTES = 64;
+    private static final long SENTENCE_BYTES = 40;
+
+    private static final class Entry
+    {
+        public Boolean terminal;
+        public final Map<Role, Integer> goals = new HashMap<Role, Integer>();
+        public final Map<Role, List<Move>> legalMoves = new HashMap<Role, List<Move>>();
+        public final Map<List<Move>, MachineState> nextStates = new HashMap<List<Move>, MachineState>();
+        public long bytes;
+    }
+
+    private final StateMachine theBackingMachine;
+    private final long maxBytes;
+    private final LinkedHashMap<MachineState, Entry> theCache;
+    private long usedBytes;
+    private long stateBytes;
+    private MachineState theRoot;
+    private long hits;
+    private long misses;
+
+    public CachedStateMachine(StateMachine theBackingMachine) {
+        this(theBackingMachine, DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * Creates a caching machine around the backing machine whose cache holds
+     * roughly maxBytes worth of entries at most.
+     */
+    public CachedStateMachine(StateMachine theBackingMachine, long maxBytes) {
+        this.theBackingMachine = theBackingMachine;
+        this.maxBytes = maxBytes;
+        this.theCache = new LinkedHashMap<MachineState, Entry>(16, 0.75f, true);
+        this.stateBytes = STATE_BYTES;
+    }
+
+    @Override
+    public String getName() {
+        return "Cached(" + theBackingMachine.getName() + ")";
+    }
+
+    @Override
+    public void initialize(List<Gdl> description) {
+        theBackingMachine.initialize(description);
+        clear();
+
+        // States of the same game tend to be about the same size.
+        stateBytes = STATE_BYTES + SENTENCE_BYTES * theBackingMachine.getInitialState().getContents().size();
+    }
+
+    @Override
+    public StateMachine createThreadInstance() {
+        StateMachine theInstance = theBackingMachine.createThreadInstance();
+        if(theInstance == null)
+            return null;
+
+        CachedStateMachine theCachedInstance = new CachedStateMachine(theInstance, maxBytes);
+        theCachedInstance.stateBytes = stateBytes;
+        theCachedInstance.theRoot = theRoot;
+        return theCachedInstance;
+    }
+
+    @Override
+    public int getGoal(MachineState state, Role role) throws GoalDefinitionException {
+        Entry entry = getEntry(state);
+        Integer goal = entry.goals.get(role);
+        if(goal != null) {
+            hits++;
+            return goal;
+        }
+
+        misses++;
+        goal = theBackingMachine.getGoal(state, role);
+        entry.goals.put(role, goal);
+        grow(entry, MAP_ENTRY_BYTES);
+        return goal;
+    }
+
+    @Override
+    public boolean isTerminal(MachineState state) {
+        Entry entry = getEntry(state);
+        if(entry.terminal != null) {
+            hits++;
+            return entry.terminal;
+        }
+
+        misses++;
+        entry.terminal = theBackingMachine.isTerminal(state);
+        return entry.terminal;
+    }
+
+    @Override
+    public List<Move> getLegalMoves(MachineState state, Role role) throws MoveDefinitionException {
+        Entry entry = getEntry(state);
+        List<Move> moves = entry.legalMoves.get(role);
+        if(moves != null) {
+            hits++;
+        } else {
+            misses++;
+            moves = new ArrayList<Move>(theBackingMachine.getLegalMoves(state, role));
+            entry.legalMoves.put(role, moves);
+            grow(entry, MAP_ENTRY_BYTES + LIST_BYTES + MOVE_BYTES * moves.size());
+        }
+
+        // Callers are free to modify the list they get, so they get a copy.
+        return new ArrayList<Move>(moves);
+    }
+
+    @Override
+    public MachineState getNextState(MachineState state, List<Move> moves) throws TransitionDefinitionException {
+        Entry entry = getEntry(state);
+        MachineState nextState = entry.nextStates.get(moves);
+        if(nextState != null) {
+            hits++;
+            return nextState;
+        }
+
+        misses++;
+        nextState = theBackingMachine.getNextState(state, moves);
+        entry.nextStates.put(new ArrayList<Move>(moves), nextState);
+        grow(entry, MAP_ENTRY_BYTES + LIST_BYTES + MOVE_BYTES * moves.size() + stateBytes);
+        return nextState;
+    }
+
+    @Override
+    public MachineState performDepthCharge(MachineState state, int[] theDepth) throws TransitionDefinitionException, MoveDefinitionException {
+        return theBackingMachine.performDepthCharge(state, theDepth);
+    }
+
+    @Override
+    public DepthChargeResult performDepthCharges(MachineState state, int count, SplittableRandom random) throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException {
+        return theBackingMachine.performDepthCharges(state, count, random);
+    }
+
+    @Override
+    public MachineState getInitialState() {
+        return theBackingMachine.getInitialState();
+    }
+
+    @Override
+    public List<Role> getRoles() {
+        return theBackingMachine.getRoles();
+    }
+
+    @Override
+    public int getMoveId(int roleIndex, Move move) {
+        return theBackingMachine.getMoveId(roleIndex, move);
+    }
+
+    @Override
+    public Move getMoveFromId(int roleIndex, int moveId) {
+        return theBackingMachine.getMoveFromId(roleIndex, moveId);
+    }
+
+    /**
+     * Numbers the cached legal moves with the backing machine's move ids.
+     */
+    @Override
+    public int[] getLegalMoveIds(MachineState state, int roleIndex) throws MoveDefinitionException {
+        List<Move> legals = getLegalMoves(state, getRoles().get(roleIndex));
+        int[] legalIds = new int[legals.size()];
+        for(int i = 0; i < legalIds.length; i++) {
+            legalIds[i] = theBackingMachine.getMoveId(roleIndex, legals.get(i));
+        }
+        return legalIds;
+    }
+
+    /**
+     * Looks up the next state in the cache, by the moves with the given ids
+     * in the backing machine.
+     */
+    @Override
+    public MachineState getNextState(MachineState state, int[] jointMove) throws TransitionDefinitionException {
+        Move[] moves = new Move[jointMove.length];
+        for(int r = 0; r < moves.length; r++) {
+            moves[r] = theBackingMachine.getMoveFromId(r, jointMove[r]);
+        }
+        return getNextState(state, Arrays.asList(moves));
+    }
+
+    @Override
+    public Role getRoleFromProp(GdlProposition proposition) {
+        return theBackingMachine.getRoleFromProp(proposition);
+    }
+
+    @Override
+    public Move getMoveFromSentence(GdlSentence sentence) {
+        return theBackingMachine.getMoveFromSentence(sentence);
+    }
+
+    @Override
+    public MachineState getMachineStateFromSentenceList(Set<GdlSentence> sentenceList) {
+        return theBackingMachine.getMachineStateFromSentenceList(sentenceList);
+    }
+
+    @Override
+    public void doPerMoveWork() {
+        theBackingMachine.doPerMoveWork();
+        pruneUnreachable();
+        GamerLogger.log("StateMachine", "Cached Machine: " + theCache.size() + " states, about " + (usedBytes / 1024) + " KB; hit rate " + String.format("%.3f", getHitRate()) + " (" + hits + " hits, " + misses + " misses).");
+    }
+
+    @Override
+    public void updateRoot(MachineState theState) {
+        theBackingMachine.updateRoot(theState);
+        theRoot = theState;
+        pruneUnreachable();
+    }
+
+    /**
+     * Returns the fraction of queries answered from the cache, or zero if
+     * there have been none.
+     */
+    public double getHitRate() {
+        long total = hits + misses;
+        return (total == 0) ? 0 : (double) hits / total;
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Returns the estimated number of bytes the cached entries take up.
+     */
+    public long getUsedBytes() {
+        return usedBytes;
+    }
+
+    public int getCachedStateCount() {
+        return theCache.size();
+    }
+
+    public StateMachine getBackingMachine() {
+        return theBackingMachine;
+    }
+
+    /**
+     * Forgets every cached state, and resets the hit rate.
+     */
+    public void clear() {
+        theCache.clear();
+        usedBytes = 0;
+        theRoot = null;
+        hits = 0;
+        misses = 0;
+    }
+
+    private Entry getEntry(MachineState state) {
+        Entry entry = theCache.get(state);
+        if(entry == null) {
+            entry = new Entry();
+            theCache.put(state, entry);
+            grow(entry, ENTRY_BYTES + stateBytes);
+        }
+        return entry;
+    }
+
+    /**
+     * Accounts for memory added to an entry, and evicts the least recently
+     * used states until the cache fits in its budget again. The entry being
+     * filled is the most recently used one, so it is never evicted itself.
+     */
+    private void grow(Entry entry, long bytes) {
+        entry.bytes += bytes;
+        usedBytes += bytes;
+
+        Iterator<Entry> theEntries = theCache.values().iterator();
+        while(usedBytes > maxBytes && theCache.size() > 1) {
+            usedBytes -= theEntries.next().bytes;
+            theEntries.remove();
+        }
+    }
+
+    /**
+     * Drops every state that is not reachable from the root through the
+     * cached transitions, and marks the root as the most recently used. Does
+     * nothing until the root is known. The search looks the states up in a
+     * copy of the cache, since looking them up in the cache itself would
+     * move each of them to the front of the eviction order.
+     */
+    private void pruneUnreachable() {
+        if(theRoot == null)
+            return;
+
+        Map<MachineState, Entry> theEntriesByState = new HashMap<MachineState, Entry>(theCache);
+        Set<MachineState> reachable = new HashSet<MachineState>();
+        LinkedList<MachineState> frontier = new LinkedList<MachineState>();
+        reachable.add(theRoot);
+        frontier.add(theRoot);
+        while(!frontier.isEmpty()) {
+            Entry entry = theEntriesByState.get(frontier.removeFirst());
+            if(entry == null)
+                continue;
+
+            for(MachineState nextState : entry.nextStates.values()) {
+                if(reachable.add(nextState)) {
+                    frontier.add(nextState);
+                }
+            }
+        }
+
+        Iterator<Map.Entry<MachineState, Entry>> theEntries = theCache.entrySet().iterator();
+        while(theEntries.hasNext()) {
+            Map.Entry<MachineState, Entry> theEntry = theEntries.next();
+            if(!reachable.contains(theEntry.getKey())) {
+                usedBytes -= theEntry.getValue().bytes;
+                theEntries.remove();
+            }
+        }
+        theCache.get(theRoot);
+    }
+}
@@ -0,0 +1,148 @@
+package util.statemachine;
+
+import java.util.Arrays;
+
+/**
+ * A DepthChargeResult sums up a batch of random playouts, as run by
+ * StateMachine.performDepthCharges(): how many there were, how deep they
+ * went, and the goal values each role ended up with. Everything is kept in
+ * primitive fields and arrays indexed by role, in the order of getRoles(),
+ * so recording a playout allocates nothing.
+ *
+ * Playouts that a machine gave up on before reaching a terminal state (see
+ * CompiledPropNetStateMachine.MAX_PLAYOUT_DEPTH) are only counted, by
+ * addCapped(); their goals and depths are left out of every other figure.
+ *
+ * Results of batches run separately, for instance on several threads, can
+ * be combined with add(DepthChargeResult).
+ */
+public final class DepthChargeResult {
+    /** The highest goal value in GDL. */
+    public static final int MAX_GOAL = 100;
+
+    private final long[] goalSums;
+    private final int[][] goalCounts;
+    private int playouts;
+    private int cappedPlayouts;
+    private long depthSum;
+    private int minDepth;
+    private int maxDepth;
+
+    public DepthChargeResult(int roleCount) {
+        goalSums = new long[roleCount];
+        goalCounts = new int[roleCount][MAX_GOAL + 1];
+        playouts = 0;
+        cappedPlayouts = 0;
+        depthSum = 0;
+        minDepth = Integer.MAX_VALUE;
+        maxDepth = 0;
+    }
+
+    /**
+     * Records a playout that ended after the given number of moves with the
+     * given goal value for each role.
+     */
+    public void add(int depth, int[] goals) {
+        playouts++;
+        depthSum += depth;
+        minDepth = Math.min(minDepth, depth);
+        maxDepth = Math.max(maxDepth, depth);
+        for (int r = 0; r < goalSums.length; r++) {
+            goalSums[r] += goals[r];
+            if (goals[r] >= 0 && goals[r] <= MAX_GOAL)
+                goalCounts[r][goals[r]]++;
+        }
+    }
+
+    /**
+     * Records a playout that was stopped before it reached a terminal state.
+     */
+    public void addCapped() {
+        cappedPlayouts++;
+    }
+
+    /**
+     * Adds in every playout of another result for the same roles.
+     */
+    public void add(DepthChargeResult other) {
+        cappedPlayouts += other.cappedPlayouts;
+        if (other.playouts == 0)
+            return;
+        playouts += other.playouts;
+        depthSum += other.depthSum;
+        minDepth = Math.min(minDepth, other.minDepth);
+        maxDepth = Math.max(maxDepth, other.maxDepth);
+        for (int r = 0; r < goalSums.length; r++) {
+            goalSums[r] += other.goalSums[r];
+            for (int g = 0; g <= MAX_GOAL; g++) {
+                goalCounts[r][g] += other.goalCounts[r][g];
+            }
+        }
+    }
+
+    /**
+     * Returns the number of playouts that reached a terminal state, which
+     * does not include the capped ones.
+     */
+    public int getPlayouts() {
+        return playouts;
+    }
+
+    /**
+     * Returns the number of playouts stopped before a terminal state.
+     */
+    public int getCappedPlayouts() {
+        return cappedPlayouts;
+    }
+
+    /**
+     * Returns the sum of each role's goal values over every playout. The
+     * array is the result's own.
+     */
+    public long[] getGoalSums() {
+        return goalSums;
+    }
+
+    /**
+     * Returns how many playouts ended with each goal value, from 0 to
+     * MAX_GOAL, for the role with the given index. The array is the
+     * result's own.
+     */
+    public int[] getGoalCounts(int roleIndex) {
+        return goalCounts[roleIndex];
+    }
+
+    public double getAverageGoal(int roleIndex) {
+        return (playouts == 0) ? 0 : (double) goalSums[roleIndex] / playouts;
+    }
+
+    public long getDepthSum() {
+        return depthSum;
+    }
+
+    public double getAverageDepth() {
+        return (playouts == 0) ? 0 : (double) depthSum / playouts;
+    }
+
+    /**
+     * Returns the fewest moves made in any playout, or zero if there were
+     * none.
+     */
+    public int getMinDepth() {
+        return (playouts == 0) ? 0 : minDepth;
+    }
+
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    @Override
+    public String toString() {
+        double[] averages = new double[goalSums.length];
+        for (int r = 0; r < averages.length; r++) {
+            averages[r] = getAverageGoal(r);
+        }
+        String capped = (cappedPlayouts == 0) ? "" : " (and " + cappedPlayouts + " capped)";
+        return playouts + " playouts" + capped + ", depth " + getMinDepth() + "-" + maxDepth + " (average " + String.format("%.2f", getAverageDepth()) + "), average goals " + Arrays.toString(averages);
+    }
+}
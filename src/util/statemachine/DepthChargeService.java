@@ -0,0 +1,240 @@
+package util.statemachine;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import util.statemachine.exceptions.GoalDefinitionException;
+import util.statemachine.exceptions.MoveDefinitionException;
+import util.statemachine.exceptions.TransitionDefinitionException;
+
+/**
+ * The DepthChargeService runs random playouts on every core. It owns one
+ * worker thread per state machine it is given, and each worker only ever
+ * uses its own machine, so the machines need not be thread-safe. They are
+ * usually thread instances of the gamer's machine, or machines initialized
+ * separately from the same rules (see StateMachineGamer).
+ *
+ * run() takes a batch of states and a number of playouts to run from each,
+ * shares the playouts out among the workers in small chunks (enough of them
+ * that every worker gets one, even for a handful of playouts), and returns
+ * the combined DepthChargeResult of every state. It never runs past the
+ * deadline it is given: when the deadline passes, or cancel() is called
+ * from another thread, the workers stop after their current chunk, and
+ * run() returns the playouts completed by then. Results of a cancelled batch
+ * may therefore hold fewer playouts than were asked for, or none at all.
+ *
+ * Each worker picks its moves with its own SplittableRandom, split from the
+ * seed of the service. Since chunks go to whichever worker is free, the
+ * playouts are only reproducible from run to run with a single worker.
+ */
+public final class DepthChargeService {
+    /** The most playouts a worker runs between checks of the deadline. */
+    public static final int MAX_CHUNK_SIZE = 8;
+
+    private static final class Worker {
+        public final StateMachine machine;
+        public final SplittableRandom random;
+
+        public Worker(StateMachine machine, SplittableRandom random) {
+            this.machine = machine;
+            this.random = random;
+        }
+    }
+
+    /**
+     * A batch being run: the chunks not yet handed out, and the results of
+     * those completed. Workers add their results under the batch's lock, and
+     * only while the batch is still open.
+     */
+    private static final class Batch {
+        public final List<MachineState> states;
+        public final int count;
+        public final long timeout;
+        public final int chunkSize;
+        public final int nChunksPerState;
+        public final AtomicInteger nextChunk = new AtomicInteger();
+        public final DepthChargeResult[] results;
+        public volatile boolean open = true;
+
+        public Batch(List<MachineState> states, int count, long timeout, int nRoles, int nWorkers) {
+            this.states = states;
+            this.count = count;
+            this.timeout = timeout;
+            this.chunkSize = Math.max(1, Math.min(MAX_CHUNK_SIZE, (count + nWorkers - 1) / nWorkers));
+            this.nChunksPerState = (count + chunkSize - 1) / chunkSize;
+            this.results = new DepthChargeResult[states.size()];
+            for (int i = 0; i < results.length; i++) {
+                results[i] = new DepthChargeResult(nRoles);
+            }
+        }
+
+        public boolean isRunning() {
+            return open && System.currentTimeMillis() < timeout;
+        }
+    }
+
+    private final BlockingQueue<Worker> idleWorkers;
+    private final int nWorkers;
+    private final int nRoles;
+    private final ExecutorService executor;
+    private volatile Batch currentBatch;
+
+    /**
+     * Creates a service with one worker thread for each of the given
+     * machines, which must all be initialized with the same rules.
+     */
+    public DepthChargeService(List<StateMachine> theMachines, long seed) {
+        if (theMachines.isEmpty())
+            throw new IllegalArgumentException("A depth charge service needs at least one state machine.");
+
+        SplittableRandom random = new SplittableRandom(seed);
+        this.idleWorkers = new LinkedBlockingQueue<Worker>();
+        for (StateMachine theMachine : theMachines) {
+            idleWorkers.add(new Worker(theMachine, random.split()));
+        }
+        this.nWorkers = theMachines.size();
+        this.nRoles = theMachines.get(0).getRoles().size();
+        this.executor = Executors.newFixedThreadPool(nWorkers, new ThreadFactory() {
+            private final AtomicInteger nThreads = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread theThread = new Thread(r, "DepthChargeService-" + nThreads.incrementAndGet());
+                theThread.setDaemon(true);
+                return theThread;
+            }
+        });
+    }
+
+    public int getWorkerCount() {
+        return nWorkers;
+    }
+
+    /**
+     * Runs up to count playouts from the state, stopping at the timeout,
+     * which is a time in milliseconds as given by System.currentTimeMillis().
+     */
+    public DepthChargeResult run(MachineState state, int count, long timeout) throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException {
+        return run(Collections.singletonList(state), count, timeout)[0];
+    }
+
+    /**
+     * Runs up to count playouts from each of the states, stopping at the
+     * timeout, and returns the results in the order of the states. Only one
+     * batch runs at a time; a call made while another batch is running waits
+     * for the workers to be free.
+     */
+    public synchronized DepthChargeResult[] run(List<MachineState> states, int count, long timeout) throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException {
+        final Batch batch = new Batch(new ArrayList<MachineState>(states), count, timeout, nRoles, nWorkers);
+        currentBatch = batch;
+        try {
+            List<Future<Void>> futures = new ArrayList<Future<Void>>(nWorkers);
+            for (int i = 0; i < nWorkers; i++) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        runChunks(batch);
+                        return null;
+                    }
+                }));
+            }
+
+            for (Future<Void> future : futures) {
+                long remaining = batch.timeout - System.currentTimeMillis();
+                if (!batch.open || remaining <= 0)
+                    break;
+                try {
+                    future.get(remaining, TimeUnit.MILLISECONDS);
+                } catch (TimeoutException e) {
+                    break;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                } catch (ExecutionException e) {
+                    closeBatch(batch);
+                    rethrow(e.getCause());
+                }
+            }
+        } finally {
+            closeBatch(batch);
+            currentBatch = null;
+        }
+        return batch.results;
+    }
+
+    /**
+     * Stops the batch that is running, if any, so that run() returns with
+     * the playouts completed so far. Can be called from any thread.
+     */
+    public void cancel() {
+        Batch batch = currentBatch;
+        if (batch != null)
+            batch.open = false;
+    }
+
+    /**
+     * Cancels any running batch and stops the worker threads. The service
+     * cannot be used afterwards.
+     */
+    public void shutdown() {
+        cancel();
+        executor.shutdownNow();
+    }
+
+    /**
+     * Hands out chunks of the batch to a free worker until there are none
+     * left or the batch stops running.
+     */
+    private void runChunks(Batch batch) throws Exception {
+        Worker worker = idleWorkers.take();
+        try {
+            int nChunks = batch.nChunksPerState * batch.states.size();
+            int chunk;
+            while (batch.isRunning() && (chunk = batch.nextChunk.getAndIncrement()) < nChunks) {
+                int stateIndex = chunk / batch.nChunksPerState;
+                int chunkSize = Math.min(batch.chunkSize, batch.count - (chunk % batch.nChunksPerState) * batch.chunkSize);
+                DepthChargeResult result = worker.machine.performDepthCharges(batch.states.get(stateIndex), chunkSize, worker.random);
+                synchronized (batch) {
+                    if (!batch.open)
+                        break;
+                    batch.results[stateIndex].add(result);
+                }
+            }
+        } finally {
+            idleWorkers.add(worker);
+        }
+    }
+
+    /**
+     * Stops the batch, so that workers still running a chunk throw away its
+     * result rather than change the results returned.
+     */
+    private static void closeBatch(Batch batch) {
+        synchronized (batch) {
+            batch.open = false;
+        }
+    }
+
+    private static void rethrow(Throwable cause) throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException {
+        if (cause instanceof TransitionDefinitionException)
+            throw (TransitionDefinitionException) cause;
+        if (cause instanceof MoveDefinitionException)
+            throw (MoveDefinitionException) cause;
+        if (cause instanceof GoalDefinitionException)
+            throw (GoalDefinitionException) cause;
+        throw new RuntimeException("Depth charge failed", cause);
+    }
+}
@@ -1,7 +1,9 @@
 package util.statemachine;
 
+import java.util.Arrays;
 import java.util.List;
 import java.util.Set;
+import java.util.SplittableRandom;
 
 import util.gdl.grammar.Gdl;
 import util.gdl.grammar.GdlProposition;
@@ -24,12 +26,22 @@ import util.statemachine.implementation.prover.ProverStateMachine;
 public class FailsafeStateMachine extends StateMachine
 {   
     private StateMachine theBackingMachine = null;
+    private StateMachine theFallbackMachine = null;
     private List<Gdl> gameDescription;
     
     public FailsafeStateMachine (StateMachine theInitialMachine) {
         theBackingMachine = theInitialMachine;
     }    
     
+    /**
+     * Creates a failsafe machine that, if the initial machine cannot be
+     * initialized, tries the fallback machine before the regular prover.
+     */
+    public FailsafeStateMachine (StateMachine theInitialMachine, StateMachine theFallbackMachine) {
+        theBackingMachine = theInitialMachine;
+        this.theFallbackMachine = theFallbackMachine;
+    }    
+    
     @Override
     public String getName() {
         if(theBackingMachine != null) {
@@ -46,6 +58,9 @@ public class FailsafeStateMachine extends StateMachine
             return;
 
         GamerLogger.logError("StateMachine", "Failsafe Machine: failed to compile propnet. Falling back...");
+        if(theFallbackMachine != null && attemptLoadingFallbackMachine())
+            return;
+        
         if(attemptLoadingProverMachine())
             return;
         
@@ -82,6 +97,22 @@ public class FailsafeStateMachine extends StateMachine
         return false;
     }
 
+    private boolean attemptLoadingFallbackMachine() {
+        try {
+            theFallbackMachine.initialize(gameDescription);
+            theBackingMachine = theFallbackMachine;
+            GamerLogger.log("StateMachine", "Failsafe Machine: successfully activated fallback state machine for use!");
+            return true;
+        } catch(Exception e1) {
+        } catch(ThreadDeath d) {
+            throw d;
+        } catch(OutOfMemoryError e) {
+            throw e;            
+        } catch(Error e2) {
+        }        
+        return false;
+    }
+
     private boolean attemptLoadingProverMachine() {
         try {
             StateMachine theStateMachine = new ProverStateMachine();
@@ -99,6 +130,20 @@ public class FailsafeStateMachine extends StateMachine
         return false;
     }        
     
+    @Override
+    public StateMachine createThreadInstance() {
+        if(theBackingMachine == null)
+            return null;
+        
+        StateMachine theInstance = theBackingMachine.createThreadInstance();
+        if(theInstance == null)
+            return null;
+        
+        FailsafeStateMachine theFailsafeInstance = new FailsafeStateMachine(theInstance);
+        theFailsafeInstance.gameDescription = gameDescription;
+        return theFailsafeInstance;
+    }
+    
     @Override
     public int getGoal(MachineState state, Role role) throws GoalDefinitionException {
         if(theBackingMachine == null)
@@ -269,6 +314,106 @@ public class FailsafeStateMachine extends StateMachine
         return getNextStateDestructively(state, moves);
     }    
 
+    /*
+     * Move ids are only meaningful to the machine that gave them out, and
+     * the prover that replaces a failed machine numbers its moves afresh.
+     * So the indexed calls below are not retried with the same ids on the
+     * new machine. getNextState() turns the ids back into moves with the
+     * failed machine and retries with those. The other calls throw an
+     * IllegalStateException, which tells the caller that every id it holds
+     * is stale; from then on, ids come from the new machine.
+     */
+    private static final String MOVE_IDS_LOST = "Failsafe Machine: the move ids of the failed state machine mean nothing to its replacement.";
+
+    @Override
+    public int getMoveId(int roleIndex, Move move) {
+        if(theBackingMachine == null)
+            return -1;
+
+        try {
+            return theBackingMachine.getMoveId(roleIndex, move);
+        } catch(Exception e) {
+            failGracefully(e, null);
+            throw new IllegalStateException(MOVE_IDS_LOST, e);
+        } catch(ThreadDeath d) {
+            throw d;
+        } catch(OutOfMemoryError e) {
+            throw e;
+        } catch(Error e) {
+            failGracefully(null, e);
+            throw new IllegalStateException(MOVE_IDS_LOST, e);
+        }
+    }
+
+    @Override
+    public Move getMoveFromId(int roleIndex, int moveId) {
+        if(theBackingMachine == null)
+            return null;
+
+        try {
+            return theBackingMachine.getMoveFromId(roleIndex, moveId);
+        } catch(Exception e) {
+            failGracefully(e, null);
+            throw new IllegalStateException(MOVE_IDS_LOST, e);
+        } catch(ThreadDeath d) {
+            throw d;
+        } catch(OutOfMemoryError e) {
+            throw e;
+        } catch(Error e) {
+            failGracefully(null, e);
+            throw new IllegalStateException(MOVE_IDS_LOST, e);
+        }
+    }
+
+    @Override
+    public int[] getLegalMoveIds(MachineState state, int roleIndex) throws MoveDefinitionException {
+        if(theBackingMachine == null)
+            return null;
+
+        try {
+            return theBackingMachine.getLegalMoveIds(state, roleIndex);
+        } catch(MoveDefinitionException me) {
+            throw me;
+        } catch(Exception e) {
+            failGracefully(e, null);
+            throw new IllegalStateException(MOVE_IDS_LOST, e);
+        } catch(ThreadDeath d) {
+            throw d;
+        } catch(OutOfMemoryError e) {
+            throw e;
+        } catch(Error e) {
+            failGracefully(null, e);
+            throw new IllegalStateException(MOVE_IDS_LOST, e);
+        }
+    }
+
+    @Override
+    public MachineState getNextState(MachineState state, int[] jointMove) throws TransitionDefinitionException {
+        if(theBackingMachine == null)
+            return null;
+
+        StateMachine theFailedMachine = theBackingMachine;
+        try {
+            return theBackingMachine.getNextState(state, jointMove);
+        } catch(TransitionDefinitionException te) {
+            throw te;
+        } catch(Exception e) {
+            failGracefully(e, null);
+        } catch(ThreadDeath d) {
+            throw d;
+        } catch(OutOfMemoryError e) {
+            throw e;
+        } catch(Error e) {
+            failGracefully(null, e);            
+        }
+
+        Move[] moves = new Move[jointMove.length];
+        for(int r = 0; r < moves.length; r++) {
+            moves[r] = theFailedMachine.getMoveFromId(r, jointMove[r]);
+        }
+        return getNextState(state, Arrays.asList(moves));
+    }
+
     @Override
     public Role getRoleFromProp(GdlProposition proposition) {
         if(theBackingMachine == null)
@@ -348,6 +493,26 @@ public class FailsafeStateMachine extends StateMachine
         
         return performDepthCharge(state, theDepth);
     }
+
+    @Override
+    public DepthChargeResult performDepthCharges(MachineState state, int count, SplittableRandom random) throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException {
+        if(theBackingMachine == null)
+            return null;
+        
+        try {
+            return theBackingMachine.performDepthCharges(state, count, random);
+        } catch(Exception e) {
+            failGracefully(e, null);
+        } catch(ThreadDeath d) {
+            throw d;
+        } catch(OutOfMemoryError e) {
+            throw e;
+        } catch(Error e) {
+            failGracefully(null, e);            
+        }
+        
+        return performDepthCharges(state, count, random);
+    }
     
     @Override
     public void updateRoot(MachineState theState) {
@@ -0,0 +1,105 @@
+package util.statemachine;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A JointMoveCursor steps through the joint moves of a state one at a time,
+ * in the same order as getLegalJointMoves(), without building their cross
+ * product. It keeps a single array with one move per role and advances it
+ * like an odometer, so stepping allocates nothing, and a search that cuts
+ * off early never pays for the joint moves it did not look at.
+ *
+ * The list returned by getMoves() is a read-only view of that array, so it
+ * changes as the cursor moves on. Callers that keep a joint move must copy
+ * it.
+ */
+public final class JointMoveCursor {
+    private final List<List<Move>> legals;
+    private final Move[] moves;
+    private final int[] indices;
+    private final List<Move> view;
+    private boolean started;
+    private boolean finished;
+
+    /**
+     * Creates a cursor over the cross product of the legal moves of each
+     * role, given in role order.
+     */
+    public JointMoveCursor(List<List<Move>> legals) {
+        this.legals = legals;
+        this.moves = new Move[legals.size()];
+        this.indices = new int[legals.size()];
+        this.view = Collections.unmodifiableList(Arrays.asList(moves));
+        reset();
+    }
+
+    /**
+     * Advances to the next joint move, returning false when there are no
+     * more.
+     */
+    public boolean next() {
+        if (finished) {
+            return false;
+        }
+
+        if (!started) {
+            started = true;
+            for (int i = 0; i < moves.length; i++) {
+                moves[i] = legals.get(i).get(0);
+            }
+            return true;
+        }
+
+        // The last role's move changes fastest.
+        for (int i = moves.length - 1; i >= 0; i--) {
+            List<Move> roleMoves = legals.get(i);
+            if (++indices[i] < roleMoves.size()) {
+                moves[i] = roleMoves.get(indices[i]);
+                return true;
+            }
+            indices[i] = 0;
+            moves[i] = roleMoves.get(0);
+        }
+
+        finished = true;
+        return false;
+    }
+
+    /**
+     * Returns the current joint move. It is only valid after next() has
+     * returned true, and only until next() is called again.
+     */
+    public List<Move> getMoves() {
+        return view;
+    }
+
+    /**
+     * Returns the current move of the role with the given index.
+     */
+    public Move getMove(int roleIndex) {
+        return moves[roleIndex];
+    }
+
+    /**
+     * Returns the total number of joint moves, without enumerating them.
+     */
+    public long getCount() {
+        long count = 1;
+        for (List<Move> roleMoves : legals) {
+            count *= roleMoves.size();
+        }
+        return count;
+    }
+
+    /**
+     * Moves the cursor back to before the first joint move.
+     */
+    public void reset() {
+        Arrays.fill(indices, 0);
+        Arrays.fill(moves, null);
+        started = false;
+        finished = (getCount() == 0);
+    }
+}
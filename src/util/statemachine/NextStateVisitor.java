@@ -0,0 +1,21 @@
+package util.statemachine;
+
+import java.util.List;
+
+import util.statemachine.exceptions.GoalDefinitionException;
+import util.statemachine.exceptions.MoveDefinitionException;
+import util.statemachine.exceptions.TransitionDefinitionException;
+
+/**
+ * A NextStateVisitor is handed the successors of a state one at a time by
+ * StateMachine.forEachNextState(), and can stop the enumeration early, for
+ * instance when a search finds a cutoff.
+ */
+public interface NextStateVisitor {
+    /**
+     * Visits the state reached by one joint move. The list of moves is only
+     * valid during the call, and must be copied to be kept. Returns false to
+     * stop visiting any further successors.
+     */
+    boolean visit(List<Move> jointMove, MachineState nextState) throws MoveDefinitionException, TransitionDefinitionException, GoalDefinitionException;
+}
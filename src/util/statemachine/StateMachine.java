@@ -1,12 +1,15 @@
 package util.statemachine;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.Random;
 import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.concurrent.ThreadLocalRandom;
 
 import util.gdl.grammar.Gdl;
 import util.gdl.grammar.GdlProposition;
@@ -75,6 +78,80 @@ public abstract class StateMachine
         ;
     }
     
+    // Override this to provide cheap per-thread copies of an initialized state machine, which
+    // share its immutable data (such as a compiled propnet) but hold their own evaluation state.
+    // Returns null when the machine does not support this; callers should then initialize a
+    // separate state machine for each thread.
+    // CONTRACT: The returned machine is already initialized, behaves identically to this one,
+    //           and can be used concurrently with this one and with any other instance.
+    public StateMachine createThreadInstance() {
+        return null;
+    }
+
+    // The indexed API lets hot search loops work on ints instead of Role and Move objects.
+    // Roles are numbered by their position in getRoles(), and each role's moves get small,
+    // dense ids. By default, moves are numbered in the order this machine first sees them;
+    // override these to number them with a fixed table, such as a propnet's legal propositions.
+    // CONTRACT: A move id names the same move of the same role for the life of the machine,
+    //           and getMoveFromId(r, getMoveId(r, m)) equals m. Machines with a fixed table
+    //           return -1 for a move that is not in it. Ids are only meaningful to the
+    //           machine that gave them out, not necessarily to its thread instances.
+    public int getMoveId(int roleIndex, Move move) {
+        ensureMoveTables();
+        Integer moveId = moveIds.get(roleIndex).get(move);
+        if (moveId == null) {
+            moveId = movesById.get(roleIndex).size();
+            movesById.get(roleIndex).add(move);
+            moveIds.get(roleIndex).put(move, moveId);
+        }
+        return moveId;
+    }
+
+    public Move getMoveFromId(int roleIndex, int moveId) {
+        ensureMoveTables();
+        return movesById.get(roleIndex).get(moveId);
+    }
+
+    public int[] getLegalMoveIds(MachineState state, int roleIndex) throws MoveDefinitionException {
+        List<Move> legals = getLegalMoves(state, getRoles().get(roleIndex));
+        int[] legalIds = new int[legals.size()];
+        for (int i = 0; i < legalIds.length; i++) {
+            legalIds[i] = getMoveId(roleIndex, legals.get(i));
+        }
+        return legalIds;
+    }
+
+    // CONTRACT: "jointMove" holds one move id per role, in role order.
+    public MachineState getNextState(MachineState state, int[] jointMove) throws TransitionDefinitionException {
+        Move[] moves = new Move[jointMove.length];
+        for (int r = 0; r < moves.length; r++) {
+            moves[r] = getMoveFromId(r, jointMove[r]);
+        }
+        return getNextState(state, Arrays.asList(moves));
+    }
+
+    // Forgets the default move ids and role indices, which belong to the game the machine
+    // was last initialized with. Machines that use them should call this from initialize().
+    protected void clearMoveTables() {
+        movesById = null;
+        moveIds = null;
+        roleIndices = null;
+    }
+
+    private List<List<Move>> movesById = null;
+    private List<Map<Move, Integer>> moveIds = null;
+    private void ensureMoveTables() {
+        if (movesById == null) {
+            int nRoles = getRoles().size();
+            movesById = new ArrayList<List<Move>>(nRoles);
+            moveIds = new ArrayList<Map<Move, Integer>>(nRoles);
+            for (int r = 0; r < nRoles; r++) {
+                movesById.add(new ArrayList<Move>());
+                moveIds.add(new HashMap<Move, Integer>());
+            }
+        }
+    }
+    
     // ============================================
     //   Implementations of convenience methods
     // ============================================
@@ -84,42 +161,52 @@ public abstract class StateMachine
     }    
     
     public List<List<Move>> getLegalJointMoves(MachineState state) throws MoveDefinitionException
+    {
+        return toList(getJointMoveCursor(state));
+    }
+
+    public List<List<Move>> getLegalJointMoves(MachineState state, Role role, Move move) throws MoveDefinitionException
+    {
+        return toList(getJointMoveCursor(state, role, move));
+    }
+
+    /**
+     * Returns a cursor over the joint moves of a state, which produces them
+     * one at a time, in the same order as getLegalJointMoves(), without
+     * building the whole cross product.
+     */
+    public JointMoveCursor getJointMoveCursor(MachineState state) throws MoveDefinitionException
     {
         List<List<Move>> legals = new ArrayList<List<Move>>();
         for (Role role : getRoles()) {
             legals.add(getLegalMoves(state, role));
         }
-
-        List<List<Move>> crossProduct = new ArrayList<List<Move>>();
-        crossProductLegalMoves(legals, crossProduct, new LinkedList<Move>());
-
-        return crossProduct;
+        return new JointMoveCursor(legals);
     }
 
-    public List<List<Move>> getLegalJointMoves(MachineState state, Role role, Move move) throws MoveDefinitionException
+    /**
+     * Returns a cursor over the joint moves of a state in which the given
+     * role makes the given move.
+     */
+    public JointMoveCursor getJointMoveCursor(MachineState state, Role role, Move move) throws MoveDefinitionException
     {
         List<List<Move>> legals = new ArrayList<List<Move>>();
         for (Role r : getRoles()) {
             if (r.equals(role)) {
-                List<Move> m = new ArrayList<Move>();
-                m.add(move);
-                legals.add(m);
+                legals.add(Collections.singletonList(move));
             } else {
                 legals.add(getLegalMoves(state, r));
             }
         }
-
-        List<List<Move>> crossProduct = new ArrayList<List<Move>>();
-        crossProductLegalMoves(legals, crossProduct, new LinkedList<Move>());
-
-        return crossProduct;
+        return new JointMoveCursor(legals);
     }
 
     public List<MachineState> getNextStates(MachineState state) throws MoveDefinitionException, TransitionDefinitionException
     {
         List<MachineState> nextStates = new ArrayList<MachineState>();
-        for (List<Move> move : getLegalJointMoves(state)) {
-            nextStates.add(getNextState(state, move));
+        JointMoveCursor cursor = getJointMoveCursor(state);
+        while (cursor.next()) {
+            nextStates.add(getNextState(state, cursor.getMoves()));
         }
 
         return nextStates;
@@ -128,29 +215,74 @@ public abstract class StateMachine
     public Map<Move, List<MachineState>> getNextStates(MachineState state, Role role) throws MoveDefinitionException, TransitionDefinitionException
     {
         Map<Move, List<MachineState>> nextStates = new HashMap<Move, List<MachineState>>();
-        Map<Role, Integer> roleIndices = getRoleIndices();
-        for (List<Move> moves : getLegalJointMoves(state)) {
-            Move move = moves.get(roleIndices.get(role));
+        int roleIndex = getRoleIndices().get(role);
+        JointMoveCursor cursor = getJointMoveCursor(state);
+        while (cursor.next()) {
+            Move move = cursor.getMove(roleIndex);
             if (!nextStates.containsKey(move)) {
                 nextStates.put(move, new ArrayList<MachineState>());
             }
-            nextStates.get(move).add(getNextState(state, moves));
+            nextStates.get(move).add(getNextState(state, cursor.getMoves()));
         }
 
         return nextStates;
     }
 
-    protected void crossProductLegalMoves(List<List<Move>> legals, List<List<Move>> crossProduct, LinkedList<Move> partial)
+    /**
+     * Hands each joint move of a state, and the state it leads to, to the
+     * visitor, until the visitor returns false. Returns whether every joint
+     * move was visited. The joint moves are enumerated lazily, so stopping
+     * early saves computing the rest of them and their next states.
+     */
+    public boolean forEachNextState(MachineState state, NextStateVisitor visitor) throws MoveDefinitionException, TransitionDefinitionException, GoalDefinitionException
     {
-        if (partial.size() == legals.size()) {
-            crossProduct.add(new ArrayList<Move>(partial));
-        } else {
-            for (Move move : legals.get(partial.size())) {
-                partial.addLast(move);
-                crossProductLegalMoves(legals, crossProduct, partial);
-                partial.removeLast();
+        return forEachNextState(state, getJointMoveCursor(state), visitor);
+    }
+
+    /**
+     * Like forEachNextState(state, visitor), but only for the joint moves in
+     * which the given role makes the given move.
+     */
+    public boolean forEachNextState(MachineState state, Role role, Move move, NextStateVisitor visitor) throws MoveDefinitionException, TransitionDefinitionException, GoalDefinitionException
+    {
+        return forEachNextState(state, getJointMoveCursor(state, role, move), visitor);
+    }
+
+    private boolean forEachNextState(MachineState state, JointMoveCursor cursor, NextStateVisitor visitor) throws MoveDefinitionException, TransitionDefinitionException, GoalDefinitionException
+    {
+        while (cursor.next()) {
+            if (!visitor.visit(cursor.getMoves(), getNextState(state, cursor.getMoves()))) {
+                return false;
             }
         }
+        return true;
+    }
+
+    private static List<List<Move>> toList(JointMoveCursor cursor)
+    {
+        List<List<Move>> crossProduct = new ArrayList<List<Move>>();
+        while (cursor.next()) {
+            crossProduct.add(new ArrayList<Move>(cursor.getMoves()));
+        }
+        return crossProduct;
+    }
+
+    /**
+     * Adds to crossProduct every joint move that starts with the moves in
+     * partial, followed by a legal move of each remaining role.
+     *
+     * @deprecated Use a JointMoveCursor, which does not build the whole cross
+     * product.
+     */
+    @Deprecated
+    protected void crossProductLegalMoves(List<List<Move>> legals, List<List<Move>> crossProduct, LinkedList<Move> partial)
+    {
+        List<List<Move>> remaining = new ArrayList<List<Move>>(legals.size());
+        for (Move move : partial) {
+            remaining.add(Collections.singletonList(move));
+        }
+        remaining.addAll(legals.subList(partial.size(), legals.size()));
+        crossProduct.addAll(toList(new JointMoveCursor(remaining)));
     }
 
     private Map<Role,Integer> roleIndices = null;
@@ -202,7 +334,7 @@ public abstract class StateMachine
     public Move getRandomMove(MachineState state, Role role) throws MoveDefinitionException
     {
         List<Move> legals = getLegalMoves(state, role);
-        return legals.get(new Random().nextInt(legals.size()));
+        return legals.get(ThreadLocalRandom.current().nextInt(legals.size()));
     }
 
     public MachineState getRandomNextState(MachineState state) throws MoveDefinitionException, TransitionDefinitionException
@@ -226,5 +358,36 @@ public abstract class StateMachine
         if(theDepth != null)
             theDepth[0] = nDepth;
         return state;
-    }    
+    }
+
+    // Override this to provide a faster way to run many random playouts, such as
+    // running them directly on a propnet's values.
+    // CONTRACT: Plays "count" random games from "state" to a terminal state, picking every
+    //           move with "random" (so the same seed gives the same playouts), and returns
+    //           their depths and goals. "state" itself is left untouched.
+    public DepthChargeResult performDepthCharges(MachineState state, int count, SplittableRandom random) throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException {
+        List<Role> roles = getRoles();
+        DepthChargeResult result = new DepthChargeResult(roles.size());
+        Move[] moves = new Move[roles.size()];
+        List<Move> jointMove = Arrays.asList(moves);
+        int[] goals = new int[roles.size()];
+        for (int i = 0; i < count; i++) {
+            MachineState current = state;
+            int nDepth = 0;
+            while(!isTerminal(current)) {
+                for (int r = 0; r < moves.length; r++) {
+                    List<Move> legals = getLegalMoves(current, roles.get(r));
+                    moves[r] = legals.get(random.nextInt(legals.size()));
+                }
+                // The first move must not destroy the caller's state.
+                current = (nDepth == 0) ? getNextState(current, jointMove) : getNextStateDestructively(current, jointMove);
+                nDepth++;
+            }
+            for (int r = 0; r < goals.length; r++) {
+                goals[r] = getGoal(current, roles.get(r));
+            }
+            result.add(nDepth, goals);
+        }
+        return result;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,152 @@
+package util.statemachine.implementation.propnet;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import util.gdl.grammar.GdlSentence;
+import util.statemachine.MachineState;
+
+/**
+ * The BitMachineState is a compact MachineState that stores which base
+ * propositions are true as a <tt>long[]</tt> bitset over base ids, rather
+ * than as a set of sentences. The mapping from ids to sentences lives in a
+ * BaseTable shared by every state of a machine.
+ *
+ * The hash code is computed once, when the state is created, and can be
+ * derived incrementally from a previous state by looking only at the bits
+ * that changed. It is the sum of the hash codes of the true sentences, which
+ * is exactly the hash code of the equivalent Set<GdlSentence>, so these
+ * states can share a hash table with other kinds of MachineState. Equality
+ * with another BitMachineState over the same table is a comparison of hash
+ * codes and then of bitsets; the set of sentences is only built, and then
+ * kept, when getContents() is called.
+ */
+public final class BitMachineState extends MachineState {
+    /**
+     * The sentences and hash codes for each base id, shared by all of the
+     * states produced by a single machine.
+     */
+    public static final class BaseTable {
+        private final GdlSentence[] sentences;
+        private final int[] hashes;
+
+        public BaseTable(GdlSentence[] sentences) {
+            this.sentences = sentences;
+            this.hashes = new int[sentences.length];
+            for (int i = 0; i < sentences.length; i++) {
+                hashes[i] = sentences[i].hashCode();
+            }
+        }
+
+        public int size() {
+            return sentences.length;
+        }
+
+        public GdlSentence getSentence(int id) {
+            return sentences[id];
+        }
+    }
+
+    private final BaseTable table;
+    private final long[] bits;
+    private final int hash;
+    /**
+     * The sentences, built on the first call to getContents(). States are
+     * shared between threads, so the set is only published once complete.
+     */
+    private volatile Set<GdlSentence> contents = null;
+
+    /**
+     * Creates a state from a bitset over the base ids of <tt>table</tt>. The
+     * bitset is owned by the state from now on and must not be modified.
+     */
+    public BitMachineState(BaseTable table, long[] bits) {
+        this.table = table;
+        this.bits = bits;
+        int h = 0;
+        for (int w = 0; w < bits.length; w++) {
+            long word = bits[w];
+            while (word != 0) {
+                h += table.hashes[(w << 6) + Long.numberOfTrailingZeros(word)];
+                word &= word - 1;
+            }
+        }
+        this.hash = h;
+    }
+
+    /**
+     * Creates a state from a bitset, computing its hash code incrementally
+     * from <tt>previous</tt>, which must use the same table: only the bits
+     * that differ between the two states are visited.
+     */
+    public BitMachineState(BaseTable table, long[] bits, BitMachineState previous) {
+        this.table = table;
+        this.bits = bits;
+        int h = previous.hash;
+        for (int w = 0; w < bits.length; w++) {
+            long changed = bits[w] ^ previous.bits[w];
+            while (changed != 0) {
+                int id = (w << 6) + Long.numberOfTrailingZeros(changed);
+                if ((bits[w] & (1L << id)) != 0)
+                    h += table.hashes[id];
+                else
+                    h -= table.hashes[id];
+                changed &= changed - 1;
+            }
+        }
+        this.hash = h;
+    }
+
+    public BaseTable getTable() {
+        return table;
+    }
+
+    /**
+     * Returns the bitset backing this state. It must not be modified.
+     */
+    public long[] getBits() {
+        return bits;
+    }
+
+    /**
+     * Returns whether the base proposition with the given id is true.
+     */
+    public boolean isTrue(int baseId) {
+        return (bits[baseId >>> 6] & (1L << baseId)) != 0;
+    }
+
+    @Override
+    public Set<GdlSentence> getContents() {
+        Set<GdlSentence> theContents = contents;
+        if (theContents == null) {
+            theContents = new HashSet<GdlSentence>();
+            for (int w = 0; w < bits.length; w++) {
+                long word = bits[w];
+                while (word != 0) {
+                    theContents.add(table.sentences[(w << 6) + Long.numberOfTrailingZeros(word)]);
+                    word &= word - 1;
+                }
+            }
+            contents = theContents;
+        }
+        return theContents;
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (o == this)
+            return true;
+        if (o instanceof BitMachineState) {
+            BitMachineState state = (BitMachineState) o;
+            if (state.table == table)
+                return state.hash == hash && Arrays.equals(state.bits, bits);
+        }
+        return super.equals(o);
+    }
+}
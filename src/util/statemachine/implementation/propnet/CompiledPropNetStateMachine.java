@@ -0,0 +1,710 @@
+package util.statemachine.implementation.propnet;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SplittableRandom;
+
+import util.gdl.grammar.Gdl;
+import util.gdl.grammar.GdlProposition;
+import util.gdl.grammar.GdlSentence;
+import util.gdl.grammar.GdlTerm;
+import util.propnet.architecture.CompiledPropNet;
+import util.propnet.architecture.PropNet;
+import util.propnet.factory.OptimizingPropNetFactory;
+import util.propnet.factory.analyzer.PropNetLatchAnalyzer;
+import util.propnet.factory.factorer.PropNetFactorer;
+import util.propnet.factory.preprocessor.PropNetPreprocessor;
+import util.statemachine.DepthChargeResult;
+import util.statemachine.MachineState;
+import util.statemachine.Move;
+import util.statemachine.Role;
+import util.statemachine.StateMachine;
+import util.statemachine.exceptions.GoalDefinitionException;
+import util.statemachine.exceptions.MoveDefinitionException;
+import util.statemachine.exceptions.TransitionDefinitionException;
+
+/**
+ * The CompiledPropNetStateMachine is a propnet-based state machine that runs
+ * on a CompiledPropNet rather than on the Component object graph. The truth
+ * values of every component are kept in a single <tt>long[]</tt> bitset, and
+ * the network is evaluated with one pass over the topologically ordered ids,
+ * so legal moves, next states, terminality and goals are all computed without
+ * touching the original PropNet.
+ *
+ * The machine remembers which state its value buffer currently holds,
+ * so the usual sequence of "is it terminal? what are the legal moves? what is
+ * the goal?" queries on a single state only propagates the network once.
+ * The states it returns are BitMachineStates over the base ids of the net,
+ * which load straight into the value buffer.
+ *
+ * Only the value buffer is mutable, so createThreadInstance() hands out
+ * machines that share the compiled net and every table built from it, and
+ * differ only in their own buffer.
+ */
+public class CompiledPropNetStateMachine extends StateMachine {
+    /**
+     * The most moves a play-out makes before it gives up on reaching a
+     * terminal state, e.g. in a factor whose terminal test also depends on
+     * parts of the game that it does not play.
+     */
+    public static final int MAX_PLAYOUT_DEPTH = 10000;
+
+    /**
+     * Runs the latch analysis of a network the first time it is asked for,
+     * so that machines which never look for settled goals never pay for it.
+     * One holder is shared by a machine and all of its thread instances.
+     */
+    private static final class LatchHolder {
+        private final CompiledPropNet net;
+        private PropNetLatchAnalyzer analyzer = null;
+
+        public LatchHolder(CompiledPropNet net) {
+            this.net = net;
+        }
+
+        public synchronized PropNetLatchAnalyzer get() {
+            if (analyzer == null)
+                analyzer = PropNetLatchAnalyzer.analyze(net);
+            return analyzer;
+        }
+    }
+
+    /** The frozen network; shared, never modified. */
+    private CompiledPropNet net;
+    /** The player roles */
+    private List<Role> roles;
+
+    /** Cached copies of the network tables, to keep the inner loops tight. */
+    private int[] types;
+    private int[] inputOffsets;
+    private int[] inputIds;
+    private int firstEvaluatedId;
+    private int numBases;
+
+    /** The moves for every legal proposition, indexed by role. */
+    private Move[][] legalMoves;
+    /** The input ids for every move, indexed by role. */
+    private List<Map<Move, Integer>> moveInputIds;
+    /** The move id of every move, which is its index in legalMoves, by role. */
+    private List<Map<Move, Integer>> moveIds;
+
+    /** The base sentences shared by every state this machine produces. */
+    private BitMachineState.BaseTable baseTable;
+
+    /** The current truth value of every component, as a bitset over ids. */
+    private long[] values;
+    /** A template with only the constant components set. */
+    private long[] constantValues;
+
+    /** Finds the latches of the network on first use; shared. */
+    private LatchHolder latches;
+    /** The latches, once this instance has asked for them, or null. */
+    private PropNetLatchAnalyzer latchAnalyzer = null;
+    /** Scratch space for working out which goals are settled. */
+    private long[] settledTrue;
+    private long[] settledFalse;
+
+    /** Generated straight-line evaluator, or null to interpret the tables. */
+    private PropNetEvaluator evaluator = null;
+
+    /** The state whose values are currently propagated, or null. */
+    private MachineState loadedState = null;
+
+    private final SplittableRandom random = new SplittableRandom();
+
+    public CompiledPropNetStateMachine() {
+    }
+
+    /**
+     * Creates a machine over an already-built network, for callers that want
+     * to control how the network is constructed. The machine should not be
+     * initialized again afterwards.
+     */
+    public CompiledPropNetStateMachine(PropNet propNet) {
+        initialize(new CompiledPropNet(propNet));
+    }
+
+    /**
+     * Creates a thread instance of an initialized machine, sharing all of its
+     * immutable data but with its own value buffer.
+     */
+    protected CompiledPropNetStateMachine(CompiledPropNetStateMachine other) {
+        net = other.net;
+        roles = other.roles;
+        types = other.types;
+        inputOffsets = other.inputOffsets;
+        inputIds = other.inputIds;
+        firstEvaluatedId = other.firstEvaluatedId;
+        numBases = other.numBases;
+        legalMoves = other.legalMoves;
+        moveInputIds = other.moveInputIds;
+        moveIds = other.moveIds;
+        baseTable = other.baseTable;
+        constantValues = other.constantValues;
+        evaluator = other.evaluator;
+        latches = other.latches;
+        values = new long[other.values.length];
+        loadedState = null;
+    }
+
+    /**
+     * Initializes the machine by building a propnet for the description with
+     * the OptimizingPropNetFactory, simplifying it with the PropNetPreprocessor
+     * and freezing it into a CompiledPropNet.
+     */
+    @Override
+    public void initialize(List<Gdl> description) {
+        PropNet propNet = PropNetPreprocessor.process(OptimizingPropNetFactory.create(description));
+        initialize(new CompiledPropNet(propNet));
+    }
+
+    /**
+     * Builds a propnet for the description, splits it with the PropNetFactorer
+     * and returns one machine for each independent factor of the game, so that
+     * search can work on each small game separately.
+     *
+     * Each factor machine only knows the moves of its own factor, and ignores
+     * any other moves it is given in getNextState(). Every role has a noop
+     * move in every factor, which is legal when the role has nothing else to
+     * do there. The terminal and goal propositions of the game are kept in
+     * every factor that they depend on; the bases of other factors that they
+     * read stay at their values in the state the machine is given, which is
+     * the initial state unless a state of the whole game is loaded into it.
+     * Such a factor may never end on its own, so its play-outs stop after
+     * MAX_PLAYOUT_DEPTH moves; performDepthCharges() counts those as capped,
+     * and the other play-out methods throw. When the game does not split, the
+     * result holds a single machine.
+     */
+    public static List<CompiledPropNetStateMachine> createFactorMachines(List<Gdl> description) {
+        PropNet propNet = PropNetPreprocessor.process(OptimizingPropNetFactory.create(description));
+        CompiledPropNetStateMachine fullMachine = new CompiledPropNetStateMachine(propNet);
+        List<PropNet> factors = PropNetFactorer.factor(propNet, fullMachine.getInitialState().getContents());
+        if (factors.size() == 1 && factors.get(0) == propNet)
+            return Collections.singletonList(fullMachine);
+
+        List<CompiledPropNetStateMachine> machines = new ArrayList<CompiledPropNetStateMachine>();
+        for (PropNet factor : factors) {
+            machines.add(new CompiledPropNetStateMachine(factor));
+        }
+        return machines;
+    }
+
+    protected void initialize(CompiledPropNet theNet) {
+        clearMoveTables();
+        net = theNet;
+        roles = net.getRoles();
+
+        types = net.getTypes();
+        inputOffsets = net.getInputOffsets();
+        inputIds = net.getInputIds();
+        firstEvaluatedId = net.getFirstEvaluatedId();
+        numBases = net.getNumBases();
+
+        GdlTerm[] names = net.getNames();
+        int[][] legalIds = net.getLegalIds();
+        int[][] legalInputIds = net.getLegalInputIds();
+        legalMoves = new Move[roles.size()][];
+        moveInputIds = new ArrayList<Map<Move, Integer>>(roles.size());
+        moveIds = new ArrayList<Map<Move, Integer>>(roles.size());
+        for (int r = 0; r < roles.size(); r++) {
+            legalMoves[r] = new Move[legalIds[r].length];
+            Map<Move, Integer> inputsForRole = new HashMap<Move, Integer>();
+            Map<Move, Integer> idsForRole = new HashMap<Move, Integer>();
+            for (int i = 0; i < legalIds[r].length; i++) {
+                legalMoves[r][i] = new PropNetMove(names[legalIds[r][i]].toSentence().get(1).toSentence());
+                inputsForRole.put(legalMoves[r][i], legalInputIds[r][i]);
+                idsForRole.put(legalMoves[r][i], i);
+            }
+            moveInputIds.add(inputsForRole);
+            moveIds.add(idsForRole);
+        }
+
+        baseTable = new BitMachineState.BaseTable(net.getBaseSentences());
+        values = new long[(net.getSize() + 63) / 64];
+        constantValues = new long[values.length];
+        for (int id = 0; id < firstEvaluatedId; id++) {
+            if (types[id] == CompiledPropNet.TYPE_TRUE)
+                setBit(constantValues, id, true);
+        }
+        latches = new LatchHolder(net);
+        latchAnalyzer = null;
+        loadedState = null;
+    }
+
+    /**
+     * Replaces the table interpreter with an evaluator for the same network,
+     * e.g. one produced by the PropNetEvaluatorGenerator.
+     */
+    protected void setEvaluator(PropNetEvaluator theEvaluator) {
+        evaluator = theEvaluator;
+        loadedState = null;
+    }
+
+    @Override
+    public StateMachine createThreadInstance() {
+        return new CompiledPropNetStateMachine(this);
+    }
+
+    /**
+     * Returns the compiled network that this machine runs on.
+     */
+    public CompiledPropNet getCompiledPropNet() {
+        return net;
+    }
+
+    @Override
+    public boolean isTerminal(MachineState state) {
+        loadState(state);
+        int terminalId = net.getTerminalId();
+        return terminalId >= 0 && getBit(values, terminalId);
+    }
+
+    @Override
+    public int getGoal(MachineState state, Role role) throws GoalDefinitionException {
+        loadState(state);
+        int goal = getGoalFromValues(getRoleIndices().get(role));
+        if (goal < 0)
+            throw new GoalDefinitionException(state, role);
+        return goal;
+    }
+
+    @Override
+    public MachineState getInitialState() {
+        System.arraycopy(constantValues, 0, values, 0, values.length);
+        if (net.getInitId() >= 0)
+            setBit(values, net.getInitId(), true);
+        propagate();
+        MachineState initialState = new BitMachineState(baseTable, computeNextBases());
+        loadedState = null;
+        return initialState;
+    }
+
+    @Override
+    public List<Move> getLegalMoves(MachineState state, Role role) throws MoveDefinitionException {
+        loadState(state);
+        int roleIndex = getRoleIndices().get(role);
+        int[] legalIds = net.getLegalIds()[roleIndex];
+        List<Move> moves = new ArrayList<Move>();
+        for (int i = 0; i < legalIds.length; i++) {
+            if (getBit(values, legalIds[i]))
+                moves.add(legalMoves[roleIndex][i]);
+        }
+        if (moves.isEmpty())
+            throw new MoveDefinitionException(state, role);
+        return moves;
+    }
+
+    @Override
+    public MachineState getNextState(MachineState state, List<Move> moves) throws TransitionDefinitionException {
+        loadState(state);
+        for (int r = 0; r < roles.size(); r++) {
+            Integer inputId = moveInputIds.get(r).get(moves.get(r));
+            if (inputId != null && inputId >= 0)
+                setBit(values, inputId, true);
+        }
+        propagate();
+        loadedState = null;
+        long[] nextBases = computeNextBases();
+        if (state instanceof BitMachineState && ((BitMachineState) state).getTable() == baseTable)
+            return new BitMachineState(baseTable, nextBases, (BitMachineState) state);
+        return new BitMachineState(baseTable, nextBases);
+    }
+
+    /**
+     * Move ids are indices into the legal propositions of each role, so they
+     * are the same for every thread instance of this machine. A move that no
+     * legal proposition stands for has no id, and gets -1.
+     */
+    @Override
+    public int getMoveId(int roleIndex, Move move) {
+        Integer moveId = moveIds.get(roleIndex).get(move);
+        return (moveId == null) ? -1 : moveId;
+    }
+
+    @Override
+    public Move getMoveFromId(int roleIndex, int moveId) {
+        return legalMoves[roleIndex][moveId];
+    }
+
+    @Override
+    public int[] getLegalMoveIds(MachineState state, int roleIndex) throws MoveDefinitionException {
+        loadState(state);
+        int[] legalIds = net.getLegalIds()[roleIndex];
+        int nLegal = 0;
+        for (int i = 0; i < legalIds.length; i++) {
+            if (getBit(values, legalIds[i]))
+                nLegal++;
+        }
+        if (nLegal == 0)
+            throw new MoveDefinitionException(state, roles.get(roleIndex));
+        int[] moveIds = new int[nLegal];
+        nLegal = 0;
+        for (int i = 0; i < legalIds.length; i++) {
+            if (getBit(values, legalIds[i]))
+                moveIds[nLegal++] = i;
+        }
+        return moveIds;
+    }
+
+    /**
+     * Sets the inputs straight from the move ids, with no Move lookups.
+     */
+    @Override
+    public MachineState getNextState(MachineState state, int[] jointMove) throws TransitionDefinitionException {
+        loadState(state);
+        int[][] legalInputIds = net.getLegalInputIds();
+        for (int r = 0; r < roles.size(); r++) {
+            int inputId = legalInputIds[r][jointMove[r]];
+            if (inputId >= 0)
+                setBit(values, inputId, true);
+        }
+        propagate();
+        loadedState = null;
+        long[] nextBases = computeNextBases();
+        if (state instanceof BitMachineState && ((BitMachineState) state).getTable() == baseTable)
+            return new BitMachineState(baseTable, nextBases, (BitMachineState) state);
+        return new BitMachineState(baseTable, nextBases);
+    }
+
+    /**
+     * Plays random moves from the given state until reaching a terminal state,
+     * working directly on the value buffer so that no intermediate states or
+     * moves are created along the way. Throws an IllegalStateException if the
+     * play-out reaches MAX_PLAYOUT_DEPTH first.
+     */
+    @Override
+    public MachineState performDepthCharge(MachineState state, int[] theDepth) throws TransitionDefinitionException, MoveDefinitionException {
+        loadState(state);
+        playOut(theDepth, false, random);
+        checkTerminal();
+        MachineState terminalState = new BitMachineState(baseTable, copyBases());
+        loadedState = terminalState;
+        return terminalState;
+    }
+
+    /**
+     * Plays random moves from the given state like performDepthCharge(), and
+     * returns the goal value of every role at the end. The play-out stops
+     * early, before reaching a terminal state, as soon as the latched bases
+     * settle every goal (see getSettledGoals()); in that case the depth is
+     * the number of moves made until then. Throws an IllegalStateException if
+     * the play-out reaches MAX_PLAYOUT_DEPTH first.
+     */
+    public int[] performDepthChargeForGoals(MachineState state, int[] theDepth) throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException {
+        loadState(state);
+        int[] goals = playOut(theDepth, true, random);
+        if (goals != null)
+            return goals;
+        checkTerminal();
+        goals = new int[roles.size()];
+        for (int r = 0; r < roles.size(); r++) {
+            goals[r] = getGoalFromValues(r);
+            if (goals[r] < 0)
+                throw new GoalDefinitionException(new BitMachineState(baseTable, copyBases()), roles.get(r));
+        }
+        return goals;
+    }
+
+    /**
+     * Runs the play-outs on the value buffer like performDepthCharge(), so
+     * that the only things created per play-out are the buffers playOut()
+     * works in. Each play-out runs to a real terminal state, so that the
+     * depths are comparable with those of other machines. Play-outs that
+     * reach MAX_PLAYOUT_DEPTH first are counted as capped, without goals.
+     */
+    @Override
+    public DepthChargeResult performDepthCharges(MachineState state, int count, SplittableRandom random) throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException {
+        DepthChargeResult result = new DepthChargeResult(roles.size());
+        int[] theDepth = new int[1];
+        int[] goals = new int[roles.size()];
+        for (int i = 0; i < count; i++) {
+            loadState(state);
+            playOut(theDepth, false, random);
+            if (!getBit(values, net.getTerminalId())) {
+                result.addCapped();
+                continue;
+            }
+            for (int r = 0; r < roles.size(); r++) {
+                goals[r] = getGoalFromValues(r);
+                if (goals[r] < 0)
+                    throw new GoalDefinitionException(new BitMachineState(baseTable, copyBases()), roles.get(r));
+            }
+            result.add(theDepth[0], goals);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the goal value of every role if the latched bases of the state
+     * already decide every goal for the rest of the game, or null otherwise.
+     * Latches are bases that can never change back once set, as found by the
+     * PropNetLatchAnalyzer.
+     */
+    public int[] getSettledGoals(MachineState state) {
+        loadState(state);
+        return getSettledGoalsFromValues();
+    }
+
+    /**
+     * Returns the latch analysis of the network, which is shared by all of
+     * the thread instances of this machine. The analysis runs the first time
+     * any of them needs it.
+     */
+    public PropNetLatchAnalyzer getLatchAnalyzer() {
+        if (latchAnalyzer == null) {
+            latchAnalyzer = latches.get();
+            settledTrue = new long[values.length];
+            settledFalse = new long[values.length];
+        }
+        return latchAnalyzer;
+    }
+
+    @Override
+    public Move getMoveFromSentence(GdlSentence sentence) {
+        return new PropNetMove(sentence);
+    }
+
+    @Override
+    public MachineState getMachineStateFromSentenceList(Set<GdlSentence> sentenceList) {
+        return new PropNetMachineState(sentenceList);
+    }
+
+    @Override
+    public Role getRoleFromProp(GdlProposition proposition) {
+        return new PropNetRole(proposition);
+    }
+
+    @Override
+    public List<Role> getRoles() {
+        return roles;
+    }
+
+    /* Helper methods */
+
+    /**
+     * Throws if a play-out stopped at MAX_PLAYOUT_DEPTH, rather than at the
+     * terminal state now in the value buffer.
+     */
+    private void checkTerminal() {
+        if (!getBit(values, net.getTerminalId()))
+            throw new IllegalStateException("No terminal state within " + MAX_PLAYOUT_DEPTH + " moves.");
+    }
+
+    /**
+     * Plays random joint moves on the value buffer until it holds a terminal
+     * state, or until MAX_PLAYOUT_DEPTH moves have been made. If
+     * <tt>stopWhenSettled</tt> is set, it stops as soon as every goal is
+     * settled and returns the goals; otherwise it returns null. Moves are
+     * picked with the given source of randomness.
+     *
+     * The value buffer no longer holds the loaded state once moves are
+     * played on it, so the machine forgets that state first, in case the
+     * play-out throws half way through.
+     */
+    private int[] playOut(int[] theDepth, boolean stopWhenSettled, SplittableRandom random) throws MoveDefinitionException {
+        loadedState = null;
+        int[][] legalIds = net.getLegalIds();
+        int[][] legalInputIds = net.getLegalInputIds();
+        int terminalId = net.getTerminalId();
+        if (terminalId < 0)
+            throw new IllegalStateException("Cannot play out a game that has no terminal proposition.");
+        int[] chosenInputs = new int[roles.size()];
+        long[] nextBases = new long[values.length];
+        int nDepth = 0;
+        PropNetLatchAnalyzer theLatches = stopWhenSettled ? getLatchAnalyzer() : null;
+        int nLatched = -1;
+        while (!getBit(values, terminalId) && nDepth < MAX_PLAYOUT_DEPTH) {
+            // The settled goals can only change when another latch engages.
+            int nLatchedNow = stopWhenSettled ? theLatches.getLatchedCount(values) : -1;
+            if (nLatchedNow > nLatched) {
+                nLatched = nLatchedNow;
+                int[] goals = getSettledGoalsFromValues();
+                if (goals != null) {
+                    if (theDepth != null)
+                        theDepth[0] = nDepth;
+                    return goals;
+                }
+            }
+
+            // Pick a random legal move for each role, by reservoir sampling
+            // over the legal propositions that are currently true.
+            for (int r = 0; r < roles.size(); r++) {
+                int nLegal = 0;
+                int chosen = -1;
+                for (int i = 0; i < legalIds[r].length; i++) {
+                    if (getBit(values, legalIds[r][i]) && random.nextInt(++nLegal) == 0)
+                        chosen = i;
+                }
+                if (chosen < 0)
+                    throw new MoveDefinitionException(new BitMachineState(baseTable, copyBases()), roles.get(r));
+                chosenInputs[r] = legalInputIds[r][chosen];
+            }
+            for (int r = 0; r < roles.size(); r++) {
+                if (chosenInputs[r] >= 0)
+                    setBit(values, chosenInputs[r], true);
+            }
+            propagate();
+
+            // Move the transition values into the bases and propagate again.
+            System.arraycopy(constantValues, 0, nextBases, 0, nextBases.length);
+            transition(nextBases);
+            long[] swap = values;
+            values = nextBases;
+            nextBases = swap;
+            propagate();
+            nDepth++;
+        }
+        if (theDepth != null)
+            theDepth[0] = nDepth;
+        return null;
+    }
+
+    /**
+     * Makes the value buffer hold the given state, with no moves set, unless
+     * it already does.
+     */
+    private void loadState(MachineState state) {
+        if (state == loadedState)
+            return;
+        System.arraycopy(constantValues, 0, values, 0, values.length);
+        if (state instanceof BitMachineState && ((BitMachineState) state).getTable() == baseTable) {
+            // Base ids come first, so the state's bits can be or'ed straight in.
+            long[] bits = ((BitMachineState) state).getBits();
+            for (int w = 0; w < bits.length; w++) {
+                values[w] |= bits[w];
+            }
+        } else {
+            for (GdlSentence sentence : state.getContents()) {
+                int id = net.getBaseId(sentence);
+                if (id >= 0)
+                    setBit(values, id, true);
+            }
+        }
+        propagate();
+        loadedState = state;
+    }
+
+    /**
+     * Evaluates every non-source component, in topological order.
+     */
+    private void propagate() {
+        if (evaluator != null) {
+            evaluator.propagate(values);
+            return;
+        }
+        long[] v = values;
+        for (int id = firstEvaluatedId; id < types.length; id++) {
+            boolean value;
+            switch (types[id]) {
+            case CompiledPropNet.TYPE_AND:
+                value = true;
+                for (int i = inputOffsets[id]; i < inputOffsets[id + 1]; i++) {
+                    if (!getBit(v, inputIds[i])) {
+                        value = false;
+                        break;
+                    }
+                }
+                break;
+            case CompiledPropNet.TYPE_OR:
+                value = false;
+                for (int i = inputOffsets[id]; i < inputOffsets[id + 1]; i++) {
+                    if (getBit(v, inputIds[i])) {
+                        value = true;
+                        break;
+                    }
+                }
+                break;
+            case CompiledPropNet.TYPE_NOT:
+                value = !getBit(v, inputIds[inputOffsets[id]]);
+                break;
+            default:
+                // Propositions and transitions just copy their single input.
+                value = getBit(v, inputIds[inputOffsets[id]]);
+                break;
+            }
+            setBit(v, id, value);
+        }
+    }
+
+    /**
+     * Returns the goal value for a role in the propagated state, or -1 if
+     * there is not exactly one goal proposition true for that role.
+     */
+    private int getGoalFromValues(int roleIndex) {
+        int[] goalIds = net.getGoalIds()[roleIndex];
+        int goal = -1;
+        for (int i = 0; i < goalIds.length; i++) {
+            if (getBit(values, goalIds[i])) {
+                if (goal >= 0)
+                    return -1;
+                goal = net.getGoalValues()[roleIndex][i];
+            }
+        }
+        return goal;
+    }
+
+    /**
+     * Returns the goal value of every role if the latched bases in the value
+     * buffer decide them all, or null otherwise.
+     */
+    private int[] getSettledGoalsFromValues() {
+        getLatchAnalyzer().getSettled(values, settledTrue, settledFalse);
+        int[][] goalIds = net.getGoalIds();
+        int[] goals = new int[roles.size()];
+        for (int r = 0; r < roles.size(); r++) {
+            goals[r] = -1;
+            for (int i = 0; i < goalIds[r].length; i++) {
+                if (getBit(settledTrue, goalIds[r][i]))
+                    goals[r] = net.getGoalValues()[r][i];
+            }
+            if (goals[r] < 0)
+                return null;
+        }
+        return goals;
+    }
+
+    /**
+     * Copies the values of the base transitions into the base ids of the
+     * given bitset, leaving every other bit alone.
+     */
+    private void transition(long[] bases) {
+        if (evaluator != null) {
+            evaluator.transition(values, bases);
+            return;
+        }
+        int[] baseTransitionIds = net.getBaseTransitionIds();
+        for (int id = 0; id < numBases; id++) {
+            setBit(bases, id, getBit(values, baseTransitionIds[id]));
+        }
+    }
+
+    private long[] computeNextBases() {
+        long[] bases = new long[(numBases + 63) / 64];
+        transition(bases);
+        return bases;
+    }
+
+    private long[] copyBases() {
+        long[] bases = new long[(numBases + 63) / 64];
+        for (int id = 0; id < numBases; id++) {
+            if (getBit(values, id))
+                setBit(bases, id, true);
+        }
+        return bases;
+    }
+
+    private static boolean getBit(long[] bits, int id) {
+        return (bits[id >>> 6] & (1L << id)) != 0;
+    }
+
+    private static void setBit(long[] bits, int id, boolean value) {
+        if (value)
+            bits[id >>> 6] |= (1L << id);
+        else
+            bits[id >>> 6] &= ~(1L << id);
+    }
+}
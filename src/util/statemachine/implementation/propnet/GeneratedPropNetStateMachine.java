@@ -0,0 +1,148 @@
+package util.statemachine.implementation.propnet;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import util.gdl.grammar.Gdl;
+import util.logging.GamerLogger;
+import util.propnet.architecture.CompiledPropNet;
+import util.propnet.factory.OptimizingPropNetFactory;
+import util.propnet.factory.preprocessor.PropNetPreprocessor;
+import util.statemachine.FailsafeStateMachine;
+import util.statemachine.StateMachine;
+
+/**
+ * The GeneratedPropNetStateMachine is a CompiledPropNetStateMachine whose
+ * network is evaluated by Java code generated for the specific game, rather
+ * than by interpreting the component tables. The code is generated and
+ * compiled during initialization, which must finish by the given deadline;
+ * otherwise initialization fails with a RuntimeException.
+ *
+ * Use createFailsafe() to get a machine that falls back to the interpreted
+ * CompiledPropNetStateMachine (and then to the prover) when that happens.
+ * A gamer would usually pass a deadline within the START_CLOCK of the match
+ * (see Match.getStartClock()), less whatever time it needs for the rest of
+ * its metagaming.
+ *
+ * The compiler cannot be stopped once it has started: it ignores interrupts.
+ * When the deadline passes, initialize() gives up waiting for it, but the
+ * compiler goes on until it finishes, and its result is thrown away. It runs
+ * on a daemon thread at the lowest priority, so that it gets in the way of
+ * the fallback machine and the search as little as possible, but on a busy
+ * machine it still takes up a core until then.
+ */
+public class GeneratedPropNetStateMachine extends CompiledPropNetStateMachine {
+    private final long compileDeadline;
+    /** The network built by the last initialize(), even if it then failed. */
+    private CompiledPropNet builtNet = null;
+
+    /**
+     * Creates a machine that takes as long as it needs to build the propnet
+     * and compile its evaluator.
+     */
+    public GeneratedPropNetStateMachine() {
+        this(Long.MAX_VALUE);
+    }
+
+    /**
+     * Creates a machine that must finish building the propnet and generating
+     * and compiling its evaluator by <tt>compileDeadline</tt>, a time in
+     * milliseconds as given by System.currentTimeMillis().
+     */
+    public GeneratedPropNetStateMachine(long compileDeadline) {
+        this.compileDeadline = compileDeadline;
+    }
+
+    protected GeneratedPropNetStateMachine(GeneratedPropNetStateMachine other) {
+        super(other);
+        this.compileDeadline = other.compileDeadline;
+    }
+
+    @Override
+    public StateMachine createThreadInstance() {
+        return new GeneratedPropNetStateMachine(this);
+    }
+
+    /**
+     * Returns a FailsafeStateMachine that tries this machine first and falls
+     * back to the interpreted CompiledPropNetStateMachine if compilation
+     * fails or runs past the deadline. The fallback runs on the network that
+     * this machine already built, when there is one, rather than building it
+     * again.
+     */
+    public static StateMachine createFailsafe(long compileDeadline) {
+        GeneratedPropNetStateMachine theMachine = new GeneratedPropNetStateMachine(compileDeadline);
+        return new FailsafeStateMachine(theMachine, new Fallback(theMachine));
+    }
+
+    /**
+     * The interpreted machine that createFailsafe() falls back to, which
+     * reuses the network built by the generated machine.
+     */
+    private static final class Fallback extends CompiledPropNetStateMachine {
+        private final GeneratedPropNetStateMachine theGeneratedMachine;
+
+        public Fallback(GeneratedPropNetStateMachine theGeneratedMachine) {
+            this.theGeneratedMachine = theGeneratedMachine;
+        }
+
+        @Override
+        public void initialize(List<Gdl> description) {
+            if (theGeneratedMachine.builtNet != null)
+                initialize(theGeneratedMachine.builtNet);
+            else
+                super.initialize(description);
+        }
+
+        @Override
+        public String getName() {
+            return "CompiledPropNetStateMachine";
+        }
+    }
+
+    @Override
+    public void initialize(List<Gdl> description) {
+        long startTime = System.currentTimeMillis();
+        builtNet = null;
+        final CompiledPropNet net = new CompiledPropNet(PropNetPreprocessor.process(OptimizingPropNetFactory.create(description)));
+        builtNet = net;
+        initialize(net);
+
+        long remaining = compileDeadline - System.currentTimeMillis();
+        if (remaining <= 0)
+            throw new RuntimeException("Propnet construction ran past the compile deadline, after " + (System.currentTimeMillis() - startTime) + " ms.");
+
+        // Compile on a separate daemon thread, so that we can stop waiting
+        // for it when the budget runs out. The thread itself cannot be
+        // stopped, so it yields to everything else.
+        FutureTask<PropNetEvaluator> task = new FutureTask<PropNetEvaluator>(new Callable<PropNetEvaluator>() {
+            @Override
+            public PropNetEvaluator call() {
+                return PropNetEvaluatorGenerator.generate(net);
+            }
+        });
+        Thread compileThread = new Thread(task, "PropNetEvaluatorGenerator");
+        compileThread.setDaemon(true);
+        compileThread.setPriority(Thread.MIN_PRIORITY);
+        compileThread.start();
+
+        try {
+            setEvaluator(task.get(remaining, TimeUnit.MILLISECONDS));
+        } catch (TimeoutException e) {
+            task.cancel(true);
+            GamerLogger.log("StateMachine", "Gave up waiting for the evaluator compiler; its thread runs on until it finishes.");
+            throw new RuntimeException("Evaluator compilation ran past the compile deadline, after " + (System.currentTimeMillis() - startTime) + " ms.");
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Evaluator compilation failed.", e.getCause());
+        } catch (InterruptedException e) {
+            task.cancel(true);
+            GamerLogger.log("StateMachine", "Gave up waiting for the evaluator compiler; its thread runs on until it finishes.");
+            throw new RuntimeException("Interrupted while compiling evaluator.", e);
+        }
+        GamerLogger.log("StateMachine", "Generated evaluator for " + net.getSize() + " components in " + (System.currentTimeMillis() - startTime) + " ms.");
+    }
+}
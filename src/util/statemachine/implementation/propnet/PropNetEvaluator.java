@@ -0,0 +1,21 @@
+package util.statemachine.implementation.propnet;
+
+/**
+ * A PropNetEvaluator computes the values of a CompiledPropNet over a bitset
+ * indexed by component id. Implementations are stateless, so one evaluator
+ * can be shared by every machine running on the same network.
+ */
+public interface PropNetEvaluator {
+    /**
+     * Evaluates every non-source component, in topological order, given the
+     * values of the sources already set in <tt>values</tt>.
+     */
+    public void propagate(long[] values);
+
+    /**
+     * Copies the values of the base transitions in <tt>values</tt> into the
+     * base ids of <tt>bases</tt>, leaving every other bit of <tt>bases</tt>
+     * unchanged.
+     */
+    public void transition(long[] values, long[] bases);
+}
@@ -0,0 +1,312 @@
+package util.statemachine.implementation.propnet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.ToolProvider;
+
+import util.propnet.architecture.CompiledPropNet;
+
+/**
+ * The PropNetEvaluatorGenerator turns a CompiledPropNet into Java source for
+ * a PropNetEvaluator, with one straight-line statement per component in
+ * topological order and every bit index and mask written as a literal, and
+ * compiles and loads that source in-process.
+ *
+ * The statements are split across many small static methods, each kept well
+ * under the size at which HotSpot refuses to JIT-compile a method. Gates with
+ * too many inputs for one method are split over several statements, and the
+ * calls to the small methods are themselves split over as many levels of
+ * dispatcher methods as it takes.
+ */
+public final class PropNetEvaluatorGenerator {
+    /** Rough upper bound on the bytecode emitted into a single method. */
+    private static final int MAX_METHOD_BYTES = 6000;
+    /** Rough bytecode sizes of the parts of the generated statements. */
+    private static final int STATEMENT_BYTES = 30;
+    private static final int INPUT_BYTES = 14;
+    private static final int BASE_BYTES = 25;
+    private static final int CALL_BYTES = 6;
+    /** The most gate inputs tested by a single statement. */
+    private static final int MAX_STATEMENT_INPUTS = (MAX_METHOD_BYTES - STATEMENT_BYTES) / INPUT_BYTES;
+
+    /**
+     * Collects statements into static methods, starting a new method before
+     * a statement that would take the current one over MAX_METHOD_BYTES.
+     */
+    private static final class MethodWriter {
+        private final StringBuilder body;
+        private final String prefix;
+        private final String params;
+        private final String args;
+        private final List<String> names = new ArrayList<String>();
+        private final StringBuilder method = new StringBuilder();
+        private int methodBytes = 0;
+
+        public MethodWriter(StringBuilder body, String prefix, String params, String args) {
+            this.body = body;
+            this.prefix = prefix;
+            this.params = params;
+            this.args = args;
+        }
+
+        public void add(String statement, int bytes) {
+            if (methodBytes > 0 && methodBytes + bytes > MAX_METHOD_BYTES)
+                flush();
+            method.append(statement);
+            methodBytes += bytes;
+        }
+
+        /**
+         * Writes out the last method, and returns the statements that call
+         * every method written, going through dispatcher methods when there
+         * are too many calls for one method.
+         */
+        public String finish() {
+            if (methodBytes > 0)
+                flush();
+            List<String> calls = names;
+            int level = 0;
+            while (calls.size() * CALL_BYTES > MAX_METHOD_BYTES) {
+                List<String> dispatchers = new ArrayList<String>();
+                for (int i = 0; i < calls.size(); i += MAX_METHOD_BYTES / CALL_BYTES) {
+                    String name = prefix + "d" + level + "_" + dispatchers.size();
+                    body.append("    private static void ").append(name).append("(").append(params).append(") {\n");
+                    for (String call : calls.subList(i, Math.min(i + MAX_METHOD_BYTES / CALL_BYTES, calls.size()))) {
+                        body.append(toCall(call));
+                    }
+                    body.append("    }\n\n");
+                    dispatchers.add(name);
+                }
+                calls = dispatchers;
+                level++;
+            }
+            StringBuilder statements = new StringBuilder();
+            for (String call : calls) {
+                statements.append(toCall(call));
+            }
+            return statements.toString();
+        }
+
+        private void flush() {
+            String name = prefix + names.size();
+            body.append("    private static void ").append(name).append("(").append(params).append(") {\n");
+            body.append(method);
+            body.append("    }\n\n");
+            names.add(name);
+            method.setLength(0);
+            methodBytes = 0;
+        }
+
+        private String toCall(String name) {
+            return "        " + name + "(" + args + ");\n";
+        }
+    }
+
+    private static int nextClassNumber = 0;
+
+    private PropNetEvaluatorGenerator() {
+    }
+
+    /**
+     * Generates, compiles and instantiates an evaluator for the network.
+     * Throws a RuntimeException if no system compiler is available or if the
+     * generated source fails to compile.
+     */
+    public static PropNetEvaluator generate(CompiledPropNet net) {
+        String className = nextClassName();
+        String source = generateSource(net, className);
+        Class<?> theClass = compile(className, source);
+        try {
+            return (PropNetEvaluator) theClass.newInstance();
+        } catch (Exception e) {
+            throw new RuntimeException("Could not instantiate generated evaluator " + className, e);
+        }
+    }
+
+    /**
+     * Returns the Java source for an evaluator of the network, as a class
+     * with the given name in the default package.
+     */
+    public static String generateSource(CompiledPropNet net, String className) {
+        int[] types = net.getTypes();
+        int[] inputOffsets = net.getInputOffsets();
+        int[] inputIds = net.getInputIds();
+
+        StringBuilder body = new StringBuilder();
+
+        // propagate(): one statement per evaluated component, or several
+        // for a gate with too many inputs for one method.
+        MethodWriter propagate = new MethodWriter(body, "p", "long[] v", "v");
+        for (int id = net.getFirstEvaluatedId(); id < types.length; id++) {
+            int from = inputOffsets[id];
+            int to = inputOffsets[id + 1];
+            switch (types[id]) {
+            case CompiledPropNet.TYPE_AND:
+            case CompiledPropNet.TYPE_OR:
+                boolean isAnd = (types[id] == CompiledPropNet.TYPE_AND);
+                int end = Math.min(to, from + MAX_STATEMENT_INPUTS);
+                String value = joinBits(inputIds, from, end, isAnd ? " && " : " || ", isAnd ? "true" : "false");
+                propagate.add(assign(id, value), STATEMENT_BYTES + INPUT_BYTES * (end - from));
+                // Each further chunk can only clear an And, or set an Or.
+                for (int i = end; i < to; i = end) {
+                    end = Math.min(to, i + MAX_STATEMENT_INPUTS);
+                    if (isAnd)
+                        propagate.add("        if (!(" + joinBits(inputIds, i, end, " && ", "true") + ")) " + clear(id) + ";\n", STATEMENT_BYTES + INPUT_BYTES * (end - i));
+                    else
+                        propagate.add("        if (" + joinBits(inputIds, i, end, " || ", "false") + ") " + set(id) + ";\n", STATEMENT_BYTES + INPUT_BYTES * (end - i));
+                }
+                break;
+            case CompiledPropNet.TYPE_NOT:
+                propagate.add(assign(id, "(" + word("v", inputIds[from]) + " & " + mask(inputIds[from]) + ") == 0L"), STATEMENT_BYTES + INPUT_BYTES);
+                break;
+            default:
+                propagate.add(assign(id, bit("v", inputIds[from])), STATEMENT_BYTES + INPUT_BYTES);
+                break;
+            }
+        }
+        String propagateCalls = propagate.finish();
+
+        // transition(): assemble each word of base bits, then merge it in.
+        MethodWriter transition = new MethodWriter(body, "t", "long[] v, long[] b", "v, b");
+        int[] baseTransitionIds = net.getBaseTransitionIds();
+        int numBases = net.getNumBases();
+        for (int w = 0; w * 64 < numBases; w++) {
+            StringBuilder statement = new StringBuilder();
+            long baseMask = 0L;
+            statement.append("        long w").append(w).append(" = 0L;\n");
+            for (int id = w * 64; id < numBases && id < (w + 1) * 64; id++) {
+                baseMask |= 1L << id;
+                statement.append("        if (").append(bit("v", baseTransitionIds[id])).append(") w").append(w)
+                         .append(" |= ").append(mask(id)).append(";\n");
+            }
+            statement.append("        b[").append(w).append("] = (b[").append(w).append("] & ").append(literal(~baseMask))
+                     .append(") | w").append(w).append(";\n");
+            transition.add(statement.toString(), STATEMENT_BYTES + BASE_BYTES * Long.bitCount(baseMask));
+        }
+        String transitionCalls = transition.finish();
+
+        StringBuilder source = new StringBuilder();
+        source.append("public final class ").append(className).append(" implements ")
+              .append(PropNetEvaluator.class.getName()).append(" {\n");
+        source.append("    public void propagate(long[] v) {\n").append(propagateCalls).append("    }\n\n");
+        source.append("    public void transition(long[] v, long[] b) {\n").append(transitionCalls).append("    }\n\n");
+        source.append(body);
+        source.append("}\n");
+        return source.toString();
+    }
+
+    /**
+     * Compiles the source of a single class in memory and loads it in a new
+     * class loader.
+     */
+    public static Class<?> compile(final String className, String source) {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        if (compiler == null)
+            throw new RuntimeException("No system Java compiler is available to compile " + className);
+
+        final Map<String, ByteArrayOutputStream> classBytes = new HashMap<String, ByteArrayOutputStream>();
+        JavaFileManager fileManager = new ForwardingJavaFileManager<JavaFileManager>(compiler.getStandardFileManager(null, null, null)) {
+            @Override
+            public JavaFileObject getJavaFileForOutput(Location location, final String outputName, JavaFileObject.Kind kind, FileObject sibling) {
+                return new SimpleJavaFileObject(URI.create("mem:///" + outputName.replace('.', '/') + kind.extension), kind) {
+                    @Override
+                    public OutputStream openOutputStream() {
+                        ByteArrayOutputStream out = new ByteArrayOutputStream();
+                        classBytes.put(outputName, out);
+                        return out;
+                    }
+                };
+            }
+        };
+        final String theSource = source;
+        JavaFileObject sourceFile = new SimpleJavaFileObject(URI.create("string:///" + className + JavaFileObject.Kind.SOURCE.extension), JavaFileObject.Kind.SOURCE) {
+            @Override
+            public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+                return theSource;
+            }
+        };
+
+        StringWriter diagnostics = new StringWriter();
+        List<String> options = Arrays.asList("-classpath", System.getProperty("java.class.path"), "-g:none", "-nowarn");
+        Boolean success = compiler.getTask(diagnostics, fileManager, null, options, null, Collections.singletonList(sourceFile)).call();
+        if (success == null || !success)
+            throw new RuntimeException("Could not compile generated class " + className + ": " + diagnostics);
+
+        ClassLoader loader = new ClassLoader(PropNetEvaluator.class.getClassLoader()) {
+            @Override
+            protected Class<?> findClass(String name) throws ClassNotFoundException {
+                ByteArrayOutputStream bytes = classBytes.get(name);
+                if (bytes == null)
+                    throw new ClassNotFoundException(name);
+                byte[] b = bytes.toByteArray();
+                return defineClass(name, b, 0, b.length);
+            }
+        };
+        try {
+            return loader.loadClass(className);
+        } catch (ClassNotFoundException e) {
+            throw new RuntimeException("Could not load generated class " + className, e);
+        }
+    }
+
+    /* Helper methods */
+
+    private static synchronized String nextClassName() {
+        return "GeneratedPropNetEvaluator" + (nextClassNumber++);
+    }
+
+    private static String assign(int id, String value) {
+        return "        if (" + value + ") " + set(id) + "; else " + clear(id) + ";\n";
+    }
+
+    private static String set(int id) {
+        return word("v", id) + " |= " + mask(id);
+    }
+
+    private static String clear(int id) {
+        return word("v", id) + " &= " + literal(~(1L << id));
+    }
+
+    private static String joinBits(int[] inputIds, int from, int to, String operator, String empty) {
+        if (from == to)
+            return empty;
+        StringBuilder s = new StringBuilder();
+        for (int i = from; i < to; i++) {
+            if (i > from)
+                s.append(operator);
+            s.append(bit("v", inputIds[i]));
+        }
+        return s.toString();
+    }
+
+    private static String bit(String array, int id) {
+        return "(" + word(array, id) + " & " + mask(id) + ") != 0L";
+    }
+
+    private static String word(String array, int id) {
+        return array + "[" + (id >>> 6) + "]";
+    }
+
+    private static String mask(int id) {
+        return literal(1L << id);
+    }
+
+    private static String literal(long value) {
+        return "0x" + Long.toHexString(value) + "L";
+    }
+}
@@ -1,6 +1,7 @@
 package util.statemachine.implementation.propnet;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
@@ -15,9 +16,13 @@ import util.gdl.grammar.GdlSentence;
 import util.gdl.grammar.GdlTerm;
 import util.propnet.architecture.Component;
 import util.propnet.architecture.PropNet;
+import util.propnet.architecture.components.And;
+import util.propnet.architecture.components.Not;
+import util.propnet.architecture.components.Or;
 import util.propnet.architecture.components.Proposition;
 import util.propnet.factory.CachedPropNetFactory;
 import util.propnet.factory.OptimizingPropNetFactory;
+import util.propnet.factory.preprocessor.PropNetPreprocessor;
 import util.statemachine.MachineState;
 import util.statemachine.Move;
 import util.statemachine.Role;
@@ -47,7 +52,54 @@ public class PropNetStateMachine extends StateMachine {
     private Map<Role, Set<Proposition>> legalProps = null;
     private Map<Role, Set<Proposition>> goalProps = null;
     
+    // Move tables, indexed by role and then by move id: the legal proposition of each move,
+    // its Move, and its input proposition (or null if it has none). Built once, so that
+    // transitions never have to rebuild (does ?player ?action) sentences.
+    private Proposition[][] legalArray = null;
+    private Move[][] moveArray = null;
+    private Proposition[][] inputArray = null;
+    private List<Map<Move, Integer>> moveIds = null;
     
+    // State for the differential propagation mode; see updateStateDifferential.
+    private final boolean differential;
+    private Map<Component, Integer> componentIds = null;
+    private Component[] components = null;
+    private int[][] componentOutputs = null;
+    private boolean[] values = null;
+    private boolean[] isSource = null;
+    private int[] trueInputCounts = null;
+    private Proposition[] baseArray = null;
+    private int[] baseTransitionIds = null;
+    // The base and input propositions that are true, as component ids, and
+    // the ones requested by the next update, marked in requested[].
+    private int[] trueSources = null;
+    private int nTrueSources = 0;
+    private int[] newSources = null;
+    private boolean[] requested = null;
+    // Work queue of components to re-evaluate, as a ring buffer; a component
+    // is in it at most once, as marked in queued[].
+    private int[] queue = null;
+    private int queueHead = 0;
+    private int queueSize = 0;
+    private boolean[] queued = null;
+    
+    // Frozen copy of the network that thread instances are created from.
+    private CompiledPropNetStateMachine threadPrototype = null;
+    
+    public PropNetStateMachine() {
+        this(false);
+    }
+    
+    /**
+     * Creates a PropNetStateMachine. When <tt>differential</tt> is true, the
+     * machine remembers the values of every component between calls, and on
+     * a new state or joint move only pushes the base and input propositions
+     * that actually changed forward through the network, instead of clearing
+     * and re-propagating the entire ordering.
+     */
+    public PropNetStateMachine(boolean differential) {
+        this.differential = differential;
+    }
     
     /**
      * Initializes the PropNetStateMachine. You should compute the topological
@@ -56,7 +108,9 @@ public class PropNetStateMachine extends StateMachine {
      */
     @Override
     public void initialize(List<Gdl> description) {
-        propNet = OptimizingPropNetFactory.create(description);
+        clearMoveTables();
+        threadPrototype = null;
+        propNet = PropNetPreprocessor.process(OptimizingPropNetFactory.create(description));
         roles = propNet.getRoles();
         
         inputProps = propNet.getInputPropositions();
@@ -70,6 +124,9 @@ public class PropNetStateMachine extends StateMachine {
         
         
         ordering = getOrdering();
+        initializeMoveTables();
+        if (differential)
+        	initializeDifferential();
     }    
     
 	/**
@@ -122,6 +179,10 @@ public class PropNetStateMachine extends StateMachine {
 	@Override
 	public MachineState getInitialState() {
 		saved = null;
+		if (differential) {
+			propagateDifferential(0, true);
+			return getStateFromTransitions();
+		}
 		for (Proposition p : inputProps.values()) {
 			p.setValue(false);
 		}
@@ -150,10 +211,11 @@ public class PropNetStateMachine extends StateMachine {
 		if (saved != state)
 			updateState(state, null);
 
+		int roleIndex = getRoleIndices().get(role);
 		List<Move> moves = new ArrayList<Move>();
-		for (Proposition p : legalProps.get(role)) {
-			if (p.getValue()) {
-				moves.add(getMoveFromProposition(p));
+		for (int i = 0; i < legalArray[roleIndex].length; i++) {
+			if (legalArray[roleIndex][i].getValue()) {
+				moves.add(moveArray[roleIndex][i]);
 			}			
 		}
 		return moves;
@@ -165,11 +227,79 @@ public class PropNetStateMachine extends StateMachine {
 	@Override
 	public MachineState getNextState(MachineState state, List<Move> moves)
 	throws TransitionDefinitionException {
-		updateState(state, moves);		
+		updateState(state, moves);
+		if (differential)
+			return getStateFromTransitions();
+		return getStateFromBase();
+	}
+	
+	/**
+	 * Move ids index the legal propositions of each role, in the order of
+	 * the move tables built by initialize(). A move with no legal
+	 * proposition has no id, and gets -1.
+	 */
+	@Override
+	public int getMoveId(int roleIndex, Move move) {
+		Integer moveId = moveIds.get(roleIndex).get(move);
+		return (moveId == null) ? -1 : moveId;
+	}
+	
+	@Override
+	public Move getMoveFromId(int roleIndex, int moveId) {
+		return moveArray[roleIndex][moveId];
+	}
+	
+	@Override
+	public int[] getLegalMoveIds(MachineState state, int roleIndex)
+	throws MoveDefinitionException {
+		if (saved != state)
+			updateState(state, null);
+		
+		int nLegal = 0;
+		for (Proposition p : legalArray[roleIndex]) {
+			if (p.getValue())
+				nLegal++;
+		}
+		int[] legalIds = new int[nLegal];
+		nLegal = 0;
+		for (int i = 0; i < legalArray[roleIndex].length; i++) {
+			if (legalArray[roleIndex][i].getValue())
+				legalIds[nLegal++] = i;
+		}
+		return legalIds;
+	}
+	
+	/**
+	 * Computes the next state, setting the input propositions straight from
+	 * the move tables.
+	 */
+	@Override
+	public MachineState getNextState(MachineState state, int[] jointMove)
+	throws TransitionDefinitionException {
+		Proposition[] inputs = new Proposition[jointMove.length];
+		for (int r = 0; r < inputs.length; r++) {
+			inputs[r] = inputArray[r][jointMove[r]];
+		}
+		loadState(state, inputs);
+		if (differential)
+			return getStateFromTransitions();
 		return getStateFromBase();
 	}
 	
 	public void updateState(MachineState state, List<Move> moves) {
+		loadState(state, (moves == null) ? null : toInputs(moves));
+	}
+	
+	/**
+	 * Sets the base propositions from the state and the given input
+	 * propositions (none if <tt>inputs</tt> is null, which leaves the
+	 * state cached), and propagates. Null inputs are skipped.
+	 */
+	private void loadState(MachineState state, Proposition[] inputs) {
+		if (differential) {
+			updateStateDifferential(state, inputs);
+			return;
+		}
 		//This if condition doesn't seem to improve the efficiency.
 		//if (savedState == null || state != savedState) {
 			// Set base propositions
@@ -187,11 +317,10 @@ public class PropNetStateMachine extends StateMachine {
 			p.setValue(false);
 		}
 
-		if (moves != null) {			
-			List<GdlTerm> does = toDoes(moves);
-			for (GdlTerm term : does) {
-				Proposition p = inputProps.get(term);
-				p.setValue(true);
+		if (inputs != null) {			
+			for (Proposition p : inputs) {
+				if (p != null)
+					p.setValue(true);
 			}
 		}
 
@@ -204,8 +333,8 @@ public class PropNetStateMachine extends StateMachine {
 			}
 		}
 
-		// When moves = null, clear the cache since it's already one move ahead of the state. 
-		if (moves != null)
+		// When inputs = null, clear the cache since it's already one move ahead of the state. 
+		if (inputs != null)
 			saved = null;
 		else
 			saved = state;
@@ -229,61 +358,227 @@ public class PropNetStateMachine extends StateMachine {
 	{
 	    // List to contain the topological ordering.
 	    List<Proposition> order = new LinkedList<Proposition>();
-	    				
-		// All of the components in the PropNet
-		List<Component> components = new ArrayList<Component>(propNet.getComponents());
-		
-		// All of the propositions in the PropNet.
-		List<Proposition> propositions = new ArrayList<Proposition>(propNet.getPropositions());
-		
-	    // TODO: Compute the topological ordering.		
-		Set<Proposition> visited = new HashSet<Proposition>();
-		Set<Proposition> unvisited = new HashSet<Proposition>();
-
-		visited.addAll(baseProps.values());
-		visited.addAll(inputProps.values());
-		visited.add(propNet.getInitProposition()); // not sure if necessary, but shouldn't hurt
-
-		unvisited.addAll(propositions);
-		unvisited.removeAll(visited);
-
-		while (!unvisited.isEmpty()) {
-			// Pick next proposition whose inputs have all been visited
-			Proposition nextProposition = null;
-			for (Proposition unvisitedProp : unvisited) {
-				// Calculate all propositional inputs of unvisitedProp
-				Set<Proposition> inputs = new HashSet<Proposition>();
-		        Set<Component> toCheck = new HashSet<Component>();
-
-		        toCheck.add(unvisitedProp);
-		        while (!toCheck.isEmpty()) {
-		        	Component comp = toCheck.iterator().next();
-		        	toCheck.remove(comp);
-		        	for (Component input : comp.getInputs()) {
-		            	if (input instanceof Proposition)
-		            		inputs.add((Proposition) input);
-		                else
-		                	toCheck.add(input);
-		            }
-		        }
-
-				if (visited.containsAll(inputs)) {
-					nextProposition = unvisitedProp;
-					break;
-				}
-			}
 
-			// Add to visited set and remove from unvisited set
-			visited.add(nextProposition);
-			unvisited.remove(nextProposition);
+	    // The components come back in O(V+E) Kahn order; keep the propositions
+	    // whose values are computed rather than set from outside.
+		Set<Component> sources = new HashSet<Component>();
+		sources.addAll(baseProps.values());
+		sources.addAll(inputProps.values());
+		sources.add(propNet.getInitProposition());
 
-			// Add to order
-			order.add(nextProposition);
+		for (Component component : PropNetPreprocessor.getTopologicalOrdering(propNet)) {
+			if (component instanceof Proposition && !sources.contains(component)) {
+				order.add((Proposition) component);
+			}
 		}
 
 		return order;
 	}
 	
+	/**
+	 * Since this machine keeps its values in the shared Proposition objects,
+	 * its thread instances run on a frozen CompiledPropNet copy of the same
+	 * network instead. The copy is made once and shared by every instance.
+	 */
+	@Override
+	public synchronized StateMachine createThreadInstance() {
+		if (threadPrototype == null)
+			threadPrototype = new CompiledPropNetStateMachine(propNet);
+		return threadPrototype.createThreadInstance();
+	}
+
+	/**
+	 * Sets up the differential mode: numbers the components, records their
+	 * outputs, and takes a full propagation of the empty state as the
+	 * starting point that all later updates are computed against.
+	 */
+	private void initializeDifferential() {
+		components = propNet.getComponents().toArray(new Component[0]);
+		componentIds = new HashMap<Component, Integer>(components.length);
+		for (int i = 0; i < components.length; i++) {
+			componentIds.put(components[i], i);
+		}
+
+		isSource = new boolean[components.length];
+		for (Proposition p : baseProps.values())
+			isSource[componentIds.get(p)] = true;
+		for (Proposition p : inputProps.values())
+			isSource[componentIds.get(p)] = true;
+		if (initProp != null)
+			isSource[componentIds.get(initProp)] = true;
+
+		componentOutputs = new int[components.length][];
+		for (int i = 0; i < components.length; i++) {
+			Set<Component> outputs = components[i].getOutputs();
+			componentOutputs[i] = new int[outputs.size()];
+			int j = 0;
+			for (Component output : outputs) {
+				componentOutputs[i][j++] = componentIds.get(output);
+			}
+			// Components with no inputs (constants and dangling propositions)
+			// never change, so treat them as sources too.
+			if (components[i].getInputs().isEmpty())
+				isSource[i] = true;
+		}
+
+		baseArray = baseProps.values().toArray(new Proposition[0]);
+		baseTransitionIds = new int[baseArray.length];
+		for (int i = 0; i < baseArray.length; i++) {
+			baseTransitionIds[i] = componentIds.get(baseArray[i].getSingleInput());
+		}
+
+		// Full propagation of the empty state, with every Proposition holding
+		// its correct value, so that the component values can be read off.
+		for (Proposition p : baseProps.values())
+			p.setValue(false);
+		for (Proposition p : inputProps.values())
+			p.setValue(false);
+		if (initProp != null)
+			initProp.setValue(false);
+		for (Proposition p : ordering) {
+			if (p.getInputs().size() == 1)
+				p.setValue(p.getSingleInput().getValue());
+		}
+
+		values = new boolean[components.length];
+		trueInputCounts = new int[components.length];
+		for (int i = 0; i < components.length; i++) {
+			values[i] = components[i].getValue();
+		}
+		for (int i = 0; i < components.length; i++) {
+			if (values[i]) {
+				for (int output : componentOutputs[i])
+					trueInputCounts[output]++;
+			}
+		}
+		int nSources = baseArray.length + inputProps.size();
+		trueSources = new int[nSources];
+		nTrueSources = 0;
+		newSources = new int[nSources];
+		requested = new boolean[components.length];
+		queue = new int[components.length];
+		queued = new boolean[components.length];
+	}
+
+	/**
+	 * Differential counterpart of updateState: works out which base and
+	 * input propositions differ from the last state and joint move, and
+	 * propagates only those changes.
+	 */
+	private void updateStateDifferential(MachineState state, Proposition[] inputs) {
+		int nNew = 0;
+		for (GdlSentence s : state.getContents()) {
+			nNew = request(componentIds.get(baseProps.get(s.toTerm())), nNew);
+		}
+		if (inputs != null) {
+			for (Proposition p : inputs) {
+				if (p != null)
+					nNew = request(componentIds.get(p), nNew);
+			}
+		}
+
+		propagateDifferential(nNew, false);
+
+		if (inputs != null)
+			saved = null;
+		else
+			saved = state;
+	}
+
+	/**
+	 * Flips the sources whose values differ from the requested ones, then
+	 * pushes the changes forward through the outputs of each changed
+	 * component. Gates keep a count of their true inputs, so an And or Or is
+	 * re-evaluated in constant time, and propagation stops at any component
+	 * whose value does not change. Transitions are not propagated into the
+	 * base propositions; the next state is read from them directly.
+	 *
+	 * The sources to make true are the first nNew ids in newSources, as set
+	 * up by request(). Every buffer used here is allocated once, so the work
+	 * done only depends on the sources and components that change.
+	 */
+	private void propagateDifferential(int nNew, boolean init) {
+		for (int i = 0; i < nTrueSources; i++) {
+			if (!requested[trueSources[i]])
+				flip(trueSources[i], false);
+		}
+		for (int i = 0; i < nNew; i++) {
+			if (!values[newSources[i]])
+				flip(newSources[i], true);
+			requested[newSources[i]] = false;
+		}
+		int[] swap = trueSources;
+		trueSources = newSources;
+		newSources = swap;
+		nTrueSources = nNew;
+		if (initProp != null && values[componentIds.get(initProp)] != init)
+			flip(componentIds.get(initProp), init);
+
+		while (queueSize > 0) {
+			int id = queue[queueHead];
+			queueHead = (queueHead + 1) % queue.length;
+			queueSize--;
+			queued[id] = false;
+
+			Component component = components[id];
+			boolean value;
+			if (component instanceof And)
+				value = trueInputCounts[id] == component.getInputs().size();
+			else if (component instanceof Or)
+				value = trueInputCounts[id] > 0;
+			else if (component instanceof Not)
+				value = trueInputCounts[id] == 0;
+			else
+				value = trueInputCounts[id] > 0;
+
+			if (value != values[id])
+				flip(id, value);
+		}
+	}
+
+	/**
+	 * Adds a source to the ones the next propagateDifferential() makes true,
+	 * unless it is already there, and returns how many there are.
+	 */
+	private int request(int id, int nNew) {
+		if (!requested[id]) {
+			requested[id] = true;
+			newSources[nNew++] = id;
+		}
+		return nNew;
+	}
+
+	/**
+	 * Sets the value of a single component, updates the true-input counts of
+	 * its outputs and queues them for re-evaluation.
+	 */
+	private void flip(int id, boolean value) {
+		values[id] = value;
+		if (components[id] instanceof Proposition)
+			((Proposition) components[id]).setValue(value);
+		for (int output : componentOutputs[id]) {
+			trueInputCounts[output] += value ? 1 : -1;
+			if (!isSource[output] && !queued[output]) {
+				queued[output] = true;
+				queue[(queueHead + queueSize) % queue.length] = output;
+				queueSize++;
+			}
+		}
+	}
+
+	/**
+	 * Reads the next state off the transitions in differential mode, without
+	 * disturbing the values of the base propositions.
+	 */
+	private PropNetMachineState getStateFromTransitions() {
+		Set<GdlSentence> contents = new HashSet<GdlSentence>();
+		for (int i = 0; i < baseArray.length; i++) {
+			if (values[baseTransitionIds[i]])
+				contents.add(baseArray[i].getName().toSentence());
+		}
+		return new PropNetMachineState(contents);
+	}
+
 	/* Already implemented for you */
 	@Override
 	public Move getMoveFromSentence(GdlSentence sentence) {
@@ -312,27 +607,50 @@ public class PropNetStateMachine extends StateMachine {
 	/* Helper methods */
 		
 	/**
-	 * The Input propositions are indexed by (does ?player ?action).
-	 * 
-	 * This translates a list of Moves (backed by a sentence that is simply ?action)
-	 * into GdlTerms that can be used to get Propositions from inputPropositions.
-	 * and accordingly set their values etc.  This is a naive implementation when coupled with 
-	 * setting input values, feel free to change this for a more efficient implementation.
-	 * 
-	 * @param moves
-	 * @return
+	 * Numbers the legal propositions of each role, and looks up once the Move
+	 * and the input proposition, indexed by (does ?player ?action), that each
+	 * of them stands for.
 	 */
-	private List<GdlTerm> toDoes(List<Move> moves)
+	private void initializeMoveTables()
 	{
-		List<GdlTerm> doeses = new ArrayList<GdlTerm>(moves.size());
-		Map<Role, Integer> roleIndices = getRoleIndices();
-		
-		for (int i = 0; i < roles.size(); i++)
+		legalArray = new Proposition[roles.size()][];
+		moveArray = new Move[roles.size()][];
+		inputArray = new Proposition[roles.size()][];
+		moveIds = new ArrayList<Map<Move, Integer>>(roles.size());
+		for (int r = 0; r < roles.size(); r++)
+		{
+			Set<Proposition> legals = legalProps.get(roles.get(r));
+			legalArray[r] = legals.toArray(new Proposition[legals.size()]);
+			moveArray[r] = new Move[legalArray[r].length];
+			inputArray[r] = new Proposition[legalArray[r].length];
+			Map<Move, Integer> idsForRole = new HashMap<Move, Integer>();
+			for (int i = 0; i < legalArray[r].length; i++)
+			{
+				moveArray[r][i] = getMoveFromProposition(legalArray[r][i]);
+				inputArray[r][i] = inputProps.get(ProverQueryBuilder.toDoes(roles.get(r), moveArray[r][i]).toTerm());
+				idsForRole.put(moveArray[r][i], i);
+			}
+			moveIds.add(idsForRole);
+		}
+	}
+	
+	/**
+	 * Translates a joint move into the input propositions to set, one per
+	 * role. Moves come from the move tables; only a move that no legal
+	 * proposition stands for has its (does ?player ?action) built.
+	 */
+	private Proposition[] toInputs(List<Move> moves)
+	{
+		Proposition[] inputs = new Proposition[roles.size()];
+		for (int r = 0; r < roles.size(); r++)
 		{
-			int index = roleIndices.get(roles.get(i));
-			doeses.add(ProverQueryBuilder.toDoes(roles.get(i), moves.get(index)).toTerm());
+			Integer moveId = moveIds.get(r).get(moves.get(r));
+			if (moveId != null)
+				inputs[r] = inputArray[r][moveId];
+			else
+				inputs[r] = inputProps.get(ProverQueryBuilder.toDoes(roles.get(r), moves.get(r)).toTerm());
 		}
-		return doeses;
+		return inputs;
 	}
 	
 	/**
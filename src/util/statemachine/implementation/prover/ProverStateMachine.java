@@ -1,17 +1,29 @@
 package util.statemachine.implementation.prover;
 
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
+import util.configuration.ProjectConfiguration;
 import util.gdl.grammar.Gdl;
 import util.gdl.grammar.GdlConstant;
+import util.gdl.grammar.GdlPool;
 import util.gdl.grammar.GdlProposition;
 import util.gdl.grammar.GdlRelation;
 import util.gdl.grammar.GdlSentence;
 import util.logging.GamerLogger;
 import util.prover.Prover;
 import util.prover.aima.AimaProver;
+import util.prover.aima.cache.DerivationCache;
+import util.prover.aima.knowledge.KnowledgeBase;
+import util.prover.datalog.DatalogProver;
 import util.statemachine.MachineState;
 import util.statemachine.Move;
 import util.statemachine.Role;
@@ -22,23 +34,112 @@ import util.statemachine.exceptions.TransitionDefinitionException;
 import util.statemachine.implementation.prover.query.ProverQueryBuilder;
 import util.statemachine.implementation.prover.result.ProverResultParser;
 
+/**
+ * The ProverStateMachine answers every query by asking a Prover about the
+ * GDL description, with the state (and moves) as context. The prover is
+ * chosen by name: "aima" for the top-down AimaProver, "datalog" for the
+ * bottom-up DatalogProver, or "incremental" for a DatalogProver that updates
+ * what it derived for one state to the next rather than starting over, which
+ * suits the sequential playouts of performDepthCharge(). The default comes
+ * from ProjectConfiguration, which reads the "ggp.prover" system property.
+ *
+ * Terminality, legality and goal queries on the same state share their
+ * derivations: with the AimaProver, the sentences proven for the most
+ * recently queried states are kept, up to a fixed number of states, so asking
+ * "is it terminal?" and then for the legal moves of every role costs roughly
+ * one derivation. The cached derivations are dropped by doPerMoveWork() and
+ * updateRoot(). The DatalogProver keeps everything it computed for the last
+ * state itself.
+ *
+ * A ProverStateMachine must not be used from several threads at once, but
+ * createThreadInstance() gives each thread its own machine cheaply: the
+ * instances share the compiled rules (and the precomputed static relations)
+ * of one prover, and only the per-query scratch state and the cache of
+ * derivations belong to each thread. getLegalMovesForAllRoles() can also
+ * ask about the roles in parallel.
+ */
 public class ProverStateMachine extends StateMachine
 {
+	/** The most states whose derivations are kept at once. */
+	private static final int MAX_CACHED_STATES = 32;
+
+	public static final String AIMA_PROVER = "aima";
+	public static final String DATALOG_PROVER = "datalog";
+	public static final String INCREMENTAL_PROVER = "incremental";
+
+	private final String proverName;
 	private MachineState initialState;
 	private Prover prover;
 	private List<Role> roles;
 
+	/** Derivations for recently queried states, least recently used first. */
+	@SuppressWarnings("serial")
+	private final Map<MachineState, DerivationCache> derivations = new LinkedHashMap<MachineState, DerivationCache>(16, 0.75f, true)
+	{
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<MachineState, DerivationCache> eldest)
+		{
+			return size() > MAX_CACHED_STATES;
+		}
+	};
+
 	/**
 	 * Initialize must be called before using the StateMachine
 	 */
 	public ProverStateMachine()
 	{
-		
+		this(ProjectConfiguration.proverName);
+	}
+
+	/**
+	 * Creates a ProverStateMachine that uses the named prover, either
+	 * AIMA_PROVER, DATALOG_PROVER or INCREMENTAL_PROVER.
+	 */
+	public ProverStateMachine(String proverName)
+	{
+		if (!proverName.equals(AIMA_PROVER) && !proverName.equals(DATALOG_PROVER) && !proverName.equals(INCREMENTAL_PROVER))
+		{
+			throw new IllegalArgumentException("Unknown prover: " + proverName);
+		}
+		this.proverName = proverName;
+	}
+
+	/**
+	 * Creates an instance of an initialized machine for another thread. With
+	 * the AimaProver, which is safe to share, the prover itself is shared;
+	 * a DatalogProver is copied, sharing its rules and static relations.
+	 */
+	private ProverStateMachine(ProverStateMachine other)
+	{
+		proverName = other.proverName;
+		if (other.prover instanceof DatalogProver)
+		{
+			prover = new DatalogProver((DatalogProver) other.prover);
+		}
+		else
+		{
+			prover = other.prover;
+		}
+		roles = other.roles;
+		initialState = other.initialState;
 	}
 	
 	public void initialize(List<Gdl> description)
 	{
-		prover = new AimaProver(new HashSet<Gdl>(description));
+		if (proverName.equals(DATALOG_PROVER))
+		{
+			prover = new DatalogProver(new HashSet<Gdl>(description));
+		}
+		else if (proverName.equals(INCREMENTAL_PROVER))
+		{
+			prover = new DatalogProver(new HashSet<Gdl>(description), true);
+		}
+		else
+		{
+			prover = new AimaProver(new HashSet<Gdl>(description));
+		}
+		derivations.clear();
+		clearMoveTables();
 		roles = Role.computeRoles(description);
 		initialState = computeInitialState();
 	}
@@ -52,7 +153,7 @@ public class ProverStateMachine extends StateMachine
 	@Override
 	public int getGoal(MachineState state, Role role) throws GoalDefinitionException
 	{
-		Set<GdlSentence> results = prover.askAll(ProverQueryBuilder.getGoalQuery(role), ProverQueryBuilder.getContext(state));
+		Set<GdlSentence> results = askAll(ProverQueryBuilder.getGoalQuery(role), state);
 
 		if (results.size() != 1)
 		{
@@ -82,7 +183,7 @@ public class ProverStateMachine extends StateMachine
 	@Override
 	public List<Move> getLegalMoves(MachineState state, Role role) throws MoveDefinitionException
 	{
-		Set<GdlSentence> results = prover.askAll(ProverQueryBuilder.getLegalQuery(role), ProverQueryBuilder.getContext(state));
+		Set<GdlSentence> results = askAll(ProverQueryBuilder.getLegalQuery(role), state);
 
 		if (results.size() == 0)
 		{
@@ -92,6 +193,78 @@ public class ProverStateMachine extends StateMachine
 		return new ProverResultParser().toMoves(results);
 	}
 
+	/**
+	 * Returns the legal moves of every role, in the order of getRoles(). With
+	 * the AimaProver, each role is asked about in a separate task on the
+	 * executor, so the roles are evaluated in parallel. The tasks share the
+	 * indexed context of the state, but each derives its relations on its
+	 * own, so a relation that every role's legal rules depend on is derived
+	 * once per role; these queries do not use or fill the machine's cache of
+	 * derivations. With the DatalogProver, which computes the moves of every
+	 * role at once, the roles are simply asked about in turn.
+	 */
+	public List<List<Move>> getLegalMovesForAllRoles(MachineState state, ExecutorService executor) throws MoveDefinitionException
+	{
+		List<List<Move>> legals = new ArrayList<List<Move>>(roles.size());
+		if (!(prover instanceof AimaProver))
+		{
+			for (Role role : roles)
+			{
+				legals.add(getLegalMoves(state, role));
+			}
+			return legals;
+		}
+
+		final AimaProver theProver = (AimaProver) prover;
+		final KnowledgeBase context = new KnowledgeBase(ProverQueryBuilder.getContext(state));
+		List<Callable<Set<GdlSentence>>> tasks = new ArrayList<Callable<Set<GdlSentence>>>(roles.size());
+		for (final Role role : roles)
+		{
+			tasks.add(new Callable<Set<GdlSentence>>()
+			{
+				@Override
+				public Set<GdlSentence> call()
+				{
+					return theProver.askAll(ProverQueryBuilder.getLegalQuery(role), new DerivationCache(context));
+				}
+			});
+		}
+
+		List<Future<Set<GdlSentence>>> futures;
+		try
+		{
+			futures = executor.invokeAll(tasks);
+		}
+		catch (InterruptedException e)
+		{
+			throw new RuntimeException(e);
+		}
+
+		for (int i = 0; i < roles.size(); i++)
+		{
+			Set<GdlSentence> results;
+			try
+			{
+				results = futures.get(i).get();
+			}
+			catch (InterruptedException e)
+			{
+				throw new RuntimeException(e);
+			}
+			catch (ExecutionException e)
+			{
+				throw new RuntimeException("Failed to find the legal moves of " + roles.get(i), e.getCause());
+			}
+
+			if (results.size() == 0)
+			{
+				throw new MoveDefinitionException(state, roles.get(i));
+			}
+			legals.add(new ProverResultParser().toMoves(results));
+		}
+		return legals;
+	}
+
 	@Override
 	public MachineState getNextState(MachineState state, List<Move> moves) throws TransitionDefinitionException
 	{
@@ -117,7 +290,64 @@ public class ProverStateMachine extends StateMachine
 	@Override
 	public boolean isTerminal(MachineState state)
 	{
-		return prover.prove(ProverQueryBuilder.getTerminalQuery(), ProverQueryBuilder.getContext(state));
+		return prove(ProverQueryBuilder.getTerminalQuery(), state);
+	}
+
+	@Override
+	public StateMachine createThreadInstance()
+	{
+		return new ProverStateMachine(this);
+	}
+
+	@Override
+	public void doPerMoveWork()
+	{
+		derivations.clear();
+		GamerLogger.log("StateMachine", "GdlPool sizes: " + GdlPool.getPoolSizes());
+	}
+
+	@Override
+	public void updateRoot(MachineState theState)
+	{
+		derivations.clear();
+	}
+
+	/**
+	 * Asks the prover a query about a state, sharing the derivations with
+	 * earlier queries on that state if the prover supports it.
+	 */
+	private Set<GdlSentence> askAll(GdlSentence query, MachineState state)
+	{
+		if (prover instanceof AimaProver)
+		{
+			return ((AimaProver) prover).askAll(query, getDerivations(state));
+		}
+		return prover.askAll(query, ProverQueryBuilder.getContext(state));
+	}
+
+	private boolean prove(GdlSentence query, MachineState state)
+	{
+		if (prover instanceof AimaProver)
+		{
+			return ((AimaProver) prover).prove(query, getDerivations(state));
+		}
+		return prover.prove(query, ProverQueryBuilder.getContext(state));
+	}
+
+	/**
+	 * Returns the derivations for a state, creating them if the state has not
+	 * been queried recently. Next-state queries do not use these, since their
+	 * context includes the moves as well.
+	 */
+	private DerivationCache getDerivations(MachineState state)
+	{
+		DerivationCache theDerivations = derivations.get(state);
+		if (theDerivations == null)
+		{
+			theDerivations = new DerivationCache(ProverQueryBuilder.getContext(state));
+			derivations.put(state, theDerivations);
+		}
+		return theDerivations;
 	}
 
 	@Override